@@ -23,53 +23,37 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.poi.POIXMLProperties;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.poi.openxml4j.opc.OPCPackage;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.CreationHelper;
-import org.apache.poi.ss.usermodel.Font;
-import org.apache.poi.ss.usermodel.IndexedColors;
-import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
-import org.apache.poi.ss.util.CellRangeAddressList;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFColor;
-import org.apache.poi.xssf.usermodel.XSSFDataFormat;
-import org.apache.poi.xssf.usermodel.XSSFDataValidation;
-import org.apache.poi.xssf.usermodel.XSSFDataValidationConstraint;
-import org.apache.poi.xssf.usermodel.XSSFDataValidationHelper;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.ObjectNode;
-import org.openxmlformats.schemas.officeDocument.x2006.customProperties.CTProperty;
-import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCol;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.social.ExpiredAuthorizationException;
 import org.springframework.social.google.api.Google;
 import org.springframework.social.google.api.drive.DriveFile;
@@ -79,9 +63,28 @@ import org.springframework.social.google.api.drive.DriveOperations;
 import org.springframework.social.google.api.drive.FileProperty;
 import org.springframework.social.google.api.drive.PropertyVisibility;
 import org.springframework.social.quickstart.drive.DateOperators;
+import org.springframework.social.quickstart.drive.DriveBatch;
+import org.springframework.social.quickstart.drive.DriveIndex;
+import org.springframework.social.quickstart.drive.DriveListing;
+import org.springframework.social.quickstart.drive.DriveListingCache;
+import org.springframework.social.quickstart.drive.DriveMetadata;
+import org.springframework.social.quickstart.drive.DriveMetadataClient;
 import org.springframework.social.quickstart.drive.DriveSearchForm;
 import org.springframework.social.quickstart.drive.OptionalBoolean;
+import org.springframework.social.quickstart.drive.TemplatePool;
 import org.springframework.social.quickstart.drive.WorksheetForm;
+import org.springframework.social.quickstart.export.ExportJob;
+import org.springframework.social.quickstart.export.ExportService;
+import org.springframework.social.quickstart.export.ExportSettings;
+import org.springframework.social.quickstart.export.ExportSource;
+import org.springframework.social.quickstart.export.ExportSourceLookup;
+import org.springframework.social.quickstart.export.SingleFlight;
+import org.springframework.social.quickstart.export.TempStorage;
+import org.springframework.social.quickstart.export.WorkbookInfo;
+import org.springframework.social.quickstart.export.WorkbookProbe;
+import org.springframework.social.quickstart.user.SecurityContext;
+import org.springframework.social.quickstart.user.TokenRefresher;
+import org.springframework.social.quickstart.export.HrmWorkbook;
 import org.springframework.stereotype.Controller;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -92,58 +95,80 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.view.RedirectView;
 
 @Controller
 public class HomeController {
 
 	private final Google google;
 
+	private final SingleFlight<String, DriveMetadata> metadataCalls = new SingleFlight<String, DriveMetadata>();
+
 	@Autowired
 	ServletContext context;
 
-	private static final double HRM_VERSION_DEFAULT = 13.1;
-	private static final String HRM_TYPE_HASLER = "HRM";
-	private static final String HRM_TYPE_NATIONALS = "NRM";
-	private static final String HRM_TYPE_ASSESSMENT = "ARM";
+	@Autowired
+	ExportService exportService;
+
+	@Autowired
+	PoolingHttpClientConnectionManager httpConnectionManager;
+
+	@Autowired
+	TempStorage tempStorage;
+
+	@Autowired
+	DriveListingCache listingCache;
+
+	@Autowired
+	DriveIndex driveIndex;
+
+	@Autowired
+	DriveMetadataClient driveMetadata;
+
+	@Autowired
+	TemplatePool templatePool;
 
-	private static final String HRM_REGION_DEFAULT = "ALL";
+	@Autowired
+	DriveBatch driveBatch;
 
-	private static final String PROP_FMTID = "{D5CDD505-2E9C-101B-9397-08002B2CF9AE}";
+	@Autowired
+	TokenRefresher tokenRefresher;
 
-	private static final String SHEET_FINISHES = "Finishes";
-	private static final String SHEET_STARTS = "Starts";
-	private static final String SHEET_CLUBS = "Clubs";
-	private static final String SHEET_RESULTS = "Results";
-	private static final String SHEET_SUMMARY = "Summary";
-	private static final String SHEET_MEMBERSHIPS = "Memberships";
-	private static final String SHEET_ENTRY_SETS = "Entry Sets";
-	private static final String SHEET_RACES = "Races";
+	private static final double HRM_VERSION_DEFAULT = HrmWorkbook.VERSION_DEFAULT;
+	private static final String HRM_TYPE_HASLER = HrmWorkbook.TYPE_HASLER;
+	private static final String HRM_TYPE_NATIONALS = HrmWorkbook.TYPE_NATIONALS;
+	private static final String HRM_TYPE_ASSESSMENT = HrmWorkbook.TYPE_ASSESSMENT;
 
-	private static final String COLUMN_SET = "Set";
-	private static final String COLUMN_DUE = "Due";
-	private static final String COLUMN_FEE = "Fee";
-	private static final String COLUMN_PAID = "Paid";
-	private static final String COLUMN_NOTES = "Notes";
+	private static final String HRM_REGION_DEFAULT = HrmWorkbook.REGION_DEFAULT;
 
 	private static final String DRIVE_PROP_HRM_REGION = "hrmRegion";
 	private static final String DRIVE_PROP_HRM_RACE_NAME = "hrmRaceName";
 	private static final String DRIVE_PROP_HRM_VERSION = "hrmVersion";
 	private static final String DRIVE_PROP_HRM_TYPE = "hrmType";
 
-	private static Pattern numberPattern = Pattern.compile("\\d+");
-	private static Pattern timePattern = Pattern.compile("(\\d{1,2}):(\\d{2}):(\\d{2})");
-
-	// List of sheets which should not be present for the official HRM
-	private static final String[] disallowedSheets = { SHEET_STARTS, SHEET_ENTRY_SETS, SHEET_MEMBERSHIPS, SHEET_RACES, "Sheet1", "Courses", "Race Times", "Chip Finishes", "Hasler Points", "Lightning Points", "Entry Fees" };
+	private static final int LISTING_PAGE_SIZE = 10;
+	private static final int MAX_BATCH_FILES = 200;
 
 	@Autowired
 	public HomeController(Google google) {
 		this.google = google;
 	}
 	
+	/**
+	 * Refresh the user's token and send the request again, using a 307 redirect so that form posts and
+	 * uploads are sent again too. If the token has only just been refreshed the user has to sign in again.
+	 */
 	@ExceptionHandler(ExpiredAuthorizationException.class)
-	public String handleExpiredToken() {
-		return "redirect:/signout";
+	public View handleExpiredToken(HttpServletRequest request) {
+		if (SecurityContext.userSignedIn() && tokenRefresher.refreshExpired(SecurityContext.getCurrentUser().getId())) {
+			String query = request.getQueryString();
+			RedirectView retry = new RedirectView(request.getRequestURI() + (query != null ? "?" + query : ""));
+			retry.setStatusCode(HttpStatus.TEMPORARY_REDIRECT);
+			retry.setExposeModelAttributes(false);
+			return retry;
+		}
+		return new RedirectView("/signout", true);
 	}
 	
 	@ExceptionHandler(Exception.class)
@@ -173,21 +198,24 @@ public class HomeController {
 
 	private ModelAndView getDriveFiles(String hrmType, DriveSearchForm command) {
 
-		DriveFileQueryBuilder queryBuilder = google.driveOperations().driveFileQuery()
-				.fromPage(command.getPageToken());
-
-		queryBuilder.maxResultsNumber(10);
-		queryBuilder.trashed(false);
-		queryBuilder.mimeTypeIs("application/vnd.google-apps.spreadsheet");
-		//queryBuilder.parentIs("appdata");
-		
-		if(hasText(command.getTitleContains())) {
-			queryBuilder.titleContains(command.getTitleContains());
-		} else {
-			queryBuilder.propertiesHas("hrmType", hrmType, PropertyVisibility.PUBLIC);
+		String userId = SecurityContext.getCurrentUser().getId();
+		Object files = null;
+		// The index does not record folders, so folder listings always come from Drive, as do later pages
+		// of a listing which started there. Drive is also used until the index has first been built.
+		String pageToken = command.getPageToken();
+		if (!hasText(command.getParentId()) && (!hasText(pageToken) || DriveIndex.isPageToken(pageToken))) {
+			driveIndex.syncInBackground(userId, google.getAccessToken());
+			if (driveIndex.isBuilt(userId)) {
+				files = driveIndex.find(userId, hrmType, command.getTitleContains(), pageToken, LISTING_PAGE_SIZE);
+			}
+		}
+		if (files == null) {
+			if (DriveIndex.isPageToken(pageToken)) {
+				// Drive cannot continue from a page of the index, so start again from the first page
+				command.setPageToken(null);
+			}
+			files = getDriveListing(userId, hrmType, command);
 		}
-
-		DriveFilesPage files = queryBuilder.getPage();
 
 		Map<DateOperators, String> dateOperators = new LinkedHashMap<DateOperators, String>();
 		for(DateOperators operator : DateOperators.values()) {
@@ -207,10 +235,45 @@ public class HomeController {
 			.addObject("selected", hrmType.toLowerCase()) // Ensures nav context is shown correctly
 			.addObject("hrmType", hrmType.toUpperCase()); // For labels
 	}
+
+	/**
+	 * @return A page of files queried from Drive, or from the listing cache if the same page was queried recently
+	 */
+	private DriveListing getDriveListing(String userId, String hrmType, DriveSearchForm command) {
+		String listingKey = DriveListingCache.key(hrmType, command.getTitleContains(), command.getParentId(), command.getPageToken());
+		DriveListing files = listingCache.get(userId, listingKey);
+		if (files == null) {
+			DriveFileQueryBuilder queryBuilder = google.driveOperations().driveFileQuery()
+					.fromPage(command.getPageToken());
+
+			queryBuilder.maxResultsNumber(LISTING_PAGE_SIZE);
+			queryBuilder.trashed(false);
+			queryBuilder.mimeTypeIs("application/vnd.google-apps.spreadsheet");
+			//queryBuilder.parentIs("appdata");
+			if(hasText(command.getParentId())) {
+				queryBuilder.parentIs(command.getParentId());
+			}
+
+			if(hasText(command.getTitleContains())) {
+				queryBuilder.titleContains(command.getTitleContains());
+				templatePool.excludeSpares(queryBuilder);
+			} else {
+				queryBuilder.propertiesHas("hrmType", hrmType, PropertyVisibility.PUBLIC);
+			}
+
+			DriveFilesPage page = queryBuilder.getPage();
+			files = new DriveListing(page.getItems(), page.getNextPageToken());
+			listingCache.put(userId, listingKey, files);
+		}
+		return files;
+	}
 	
 	@RequestMapping(value="{hrmType}/new", method=GET)
 	public ModelAndView createWorksheet(@PathVariable String hrmType) {
 		
+		// Get spare copies of the templates ready while the user fills in the form
+		templatePool.refill(SecurityContext.getCurrentUser().getId(), google.getAccessToken());
+
 		WorksheetForm form = new WorksheetForm();
 		form.setType(hrmType);
 		return new ModelAndView("worksheet", "command", form)
@@ -219,54 +282,37 @@ public class HomeController {
 	}
 	
 	@RequestMapping(value="workbook", method=GET, params="id")
-	public ModelAndView task(String id) {
+	public ModelAndView task(String id) throws IOException {
 		
-		DriveFile file = google.driveOperations().getFile(id);
+		DriveMetadata file = getDriveMetadata(id);
 		WorksheetForm command = new WorksheetForm(file.getId(), file.getTitle());
 		return new ModelAndView("task", "command", command);
 	}
 	
 	@RequestMapping(value="{hrmType}/new", method=POST)
-	public ModelAndView saveWorksheet(WorksheetForm command, BindingResult result) {
+	public ModelAndView saveWorksheet(WorksheetForm command, BindingResult result) throws IOException {
 		
 		if(result.hasErrors()) {
 			return new ModelAndView("worksheet", "command", command);
 		}
 
-		String[] parents = { "root" };
-		String srcId = null;
-		String raceType = command.getType().toUpperCase();
-		if (raceType.equals(HRM_TYPE_HASLER)) {
-			srcId = "1V7FTXOszEFtA23BAmYBYekbRHAA3gaz3sZPLaJfacnw";
-		} else if (raceType.equals(HRM_TYPE_ASSESSMENT)) {
-			srcId = "10JNPb7LA0QIERO93JPgxsSn129dR-AddsAnHAx2iBXM";
-		} else if (raceType.equals(HRM_TYPE_NATIONALS)) {
-			srcId = "1A9USkMFEZtJL2KmsdFljk4eHag07yPvmZq3oInCYPo0";
-		}
-		DriveOperations driveOperations = google.driveOperations();
-		DriveFile file = driveOperations.copy(srcId, parents, command.getTitle());
-		// Record HRM type in a custom property
-		driveOperations.getProperties(file.getId());
-		FileProperty fp = new FileProperty("hrmType", raceType, PropertyVisibility.PUBLIC);
-		driveOperations.addProperty(file.getId(), fp);
+		// The template pool records the HRM type in a custom property
+		String userId = SecurityContext.getCurrentUser().getId();
+		templatePool.create(userId, google.getAccessToken(), command.getType().toUpperCase(), command.getTitle(), "root");
+		listingCache.invalidate(userId);
+		driveIndex.requestSync(userId);
 		return new ModelAndView("redirect:/", "list", command.getList());
 	}
 	
 	@RequestMapping(value="{hrmType}/{fileId}", method=GET)
-	public ModelAndView sheetDetails(@PathVariable String hrmType, @PathVariable String fileId) {
+	public ModelAndView sheetDetails(@PathVariable String hrmType, @PathVariable String fileId) throws IOException {
 
-		DriveOperations driveOperations = google.driveOperations();
-
-		DriveFile file = driveOperations.getFile(fileId);
+		DriveMetadata file = getDriveMetadata(fileId);
 		String fileTitle = file.getTitle();
 
 		// Copy HRM type if defined in custom properties
-		List<FileProperty> fps = driveOperations.getProperties(fileId);
-		for (FileProperty fp : fps) {
-			if (fp.getKey().equals("hrmType")) {
-				//driveOperations.addProperty(file.getId(), fp);
-				hrmType = fp.getValue();
-			}
+		if (file.getProperty(DRIVE_PROP_HRM_TYPE) != null) {
+			hrmType = file.getProperty(DRIVE_PROP_HRM_TYPE);
 		}
 
 		WorksheetForm form = new WorksheetForm();
@@ -298,43 +344,106 @@ public class HomeController {
 	@ResponseBody
 	public void starFile(String fileId, boolean star) {
 		DriveOperations drive = google.driveOperations();
+		DriveFile file;
 		if(star) {
-			drive.star(fileId);
+			file = drive.star(fileId);
 		} else {
-			drive.unstar(fileId);
+			file = drive.unstar(fileId);
 		}
+		String userId = SecurityContext.getCurrentUser().getId();
+		listingCache.updateFile(userId, file);
+		driveIndex.setStarred(userId, fileId, star);
 	}
 	
 	@RequestMapping(value="trashfile", method=POST)
 	@ResponseBody
 	public void trashFile(String fileId, boolean trash) {
 		DriveOperations drive = google.driveOperations();
+		String userId = SecurityContext.getCurrentUser().getId();
 		if(trash) {
 			drive.trash(fileId);
+			listingCache.removeFile(userId, fileId);
 		} else {
 			drive.untrash(fileId);
+			listingCache.invalidate(userId);
 		}
+		driveIndex.setTrashed(userId, fileId, trash);
 	}
 	
 	@RequestMapping(value="deletefile", method=POST)
 	@ResponseBody
 	public void deleteFile(String fileId) {
 		google.driveOperations().delete(fileId);
+		String userId = SecurityContext.getCurrentUser().getId();
+		listingCache.removeFile(userId, fileId);
+		driveIndex.remove(userId, fileId);
 	}
 	
+	/**
+	 * Star, unstar, trash, restore or delete several files at once, returning the outcome for each file
+	 */
+	@RequestMapping(value="batchfiles", method=POST, produces="application/json")
+	public void batchFiles(@RequestParam("fileId") List<String> fileIds, String action, HttpServletResponse response) throws Exception {
+		DriveBatch.Action batchAction;
+		try {
+			batchAction = DriveBatch.Action.valueOf(String.valueOf(action).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action " + action);
+			return;
+		}
+		if (fileIds.size() > MAX_BATCH_FILES) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many files, please select at most " + MAX_BATCH_FILES);
+			return;
+		}
+		List<DriveBatch.Result> results = driveBatch.apply(google.getAccessToken(), fileIds, batchAction);
+
+		String userId = SecurityContext.getCurrentUser().getId();
+		ObjectMapper mapper = new ObjectMapper();
+		ArrayNode resultsNode = mapper.createArrayNode();
+		for (DriveBatch.Result result : results) {
+			String fileId = result.getFileId();
+			if (result.isSuccess()) {
+				switch (batchAction) {
+				case STAR:
+				case UNSTAR:
+					driveIndex.setStarred(userId, fileId, batchAction == DriveBatch.Action.STAR);
+					break;
+				case TRASH:
+				case UNTRASH:
+					driveIndex.setTrashed(userId, fileId, batchAction == DriveBatch.Action.TRASH);
+					break;
+				case DELETE:
+					driveIndex.remove(userId, fileId);
+					break;
+				}
+			}
+			ObjectNode resultNode = resultsNode.addObject();
+			resultNode.put("id", fileId);
+			resultNode.put("success", result.isSuccess());
+			if (!result.isSuccess()) {
+				resultNode.put("error", result.getError());
+			}
+		}
+		listingCache.invalidate(userId);
+		response.setContentType("application/json");
+		mapper.writeValue(response.getWriter(), resultsNode);
+	}
+
 	@RequestMapping(value="copyfile", method=POST, produces="application/json")
 	public void copyFile(String fileId, String parentId, String newName, HttpServletResponse response) throws JsonGenerationException, JsonMappingException, IOException {
 		Writer writer = response.getWriter();
-		DriveOperations driveOperations = google.driveOperations();
-		DriveFile file = driveOperations.copy(fileId, new String[]{parentId}, newName);
 
 		// Copy HRM type if defined in custom properties
-		List<FileProperty> fps = driveOperations.getProperties(fileId);
-		for (FileProperty fp : fps) {
+		List<FileProperty> fps = new ArrayList<FileProperty>();
+		for (FileProperty fp : getDriveMetadata(fileId).getProperties()) {
 			if (fp.getKey().equals("hrmType")) {
-				driveOperations.addProperty(file.getId(), fp);
+				fps.add(fp);
 			}
 		}
+		DriveMetadata file = driveMetadata.copy(google.getAccessToken(), fileId, new String[]{parentId}, newName, fps);
+		String userId = SecurityContext.getCurrentUser().getId();
+		listingCache.invalidate(userId);
+		driveIndex.requestSync(userId);
 
 		// Return JSON response
 		ObjectMapper mapper = new ObjectMapper();
@@ -347,12 +456,105 @@ public class HomeController {
 	
 	@RequestMapping(value="downloadfile/*", method=GET, params="fileId")
 	public void downloadFile(String fileId, HttpServletResponse response) throws Exception {
-		DriveFile file = google.driveOperations().getFile(fileId);
-		if (file == null) {
-			throw new Exception("File not found");
+		ExportSource source = getExportSource(fileId);
+		String fileName = source.getTitle() + ".xlsx";
+		// Serve up the file
+		streamFileToResponse(exportService.openExport(source), fileName, response);
+	}
+
+	/**
+	 * Export several files as a single ZIP, either those listed or all of the spreadsheets in a folder
+	 */
+	@RequestMapping(value="downloadexports/*", method=GET)
+	public void downloadExports(@RequestParam(value="fileId", required=false) List<String> fileIds,
+			@RequestParam(required=false) String parentId, HttpServletResponse response) throws Exception {
+		List<String> exportIds = new ArrayList<String>();
+		if (fileIds != null) {
+			exportIds.addAll(fileIds);
+		}
+		if (hasText(parentId)) {
+			DriveFileQueryBuilder queryBuilder = google.driveOperations().driveFileQuery()
+					.parentIs(parentId)
+					.trashed(false)
+					.mimeTypeIs("application/vnd.google-apps.spreadsheet");
+			String pageToken = null;
+			do {
+				DriveFilesPage page = queryBuilder.fromPage(pageToken).getPage();
+				for (DriveFile file : page.getItems()) {
+					exportIds.add(file.getId());
+				}
+				pageToken = page.getNextPageToken();
+			} while (pageToken != null);
+		}
+		if (exportIds.isEmpty()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No files to export");
+			return;
+		}
+		// The files are looked up on the export threads, which cannot use the request scoped Google binding
+		final String accessToken = google.getAccessToken();
+		response.setContentType("application/zip");
+		response.setHeader("Content-Disposition","attachment;filename=\"hrm-exports.zip\"");
+		exportService.exportAll(exportIds, new ExportSourceLookup() {
+			public ExportSource lookup(String fileId) throws Exception {
+				return getExportSource(driveMetadata.getFile(accessToken, fileId), accessToken);
+			}
+		}, response.getOutputStream());
+	}
+
+	@RequestMapping(value="exportjob", method=POST, produces="application/json")
+	public void submitExportJob(String fileId, HttpServletResponse response) throws Exception {
+		if (!exportService.isJobsEnabled()) {
+			// The browser downloads the file directly instead
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Export jobs are not available");
+			return;
 		}
-		DriveOperations driveOperations = google.driveOperations();
-		List<FileProperty> driveProps = driveOperations.getProperties(file.getId());
+		ExportJob job;
+		try {
+			job = exportService.submit(getExportSource(fileId), SecurityContext.getCurrentUser().getId());
+		} catch (RejectedExecutionException e) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many exports are in progress, please try again later");
+			return;
+		}
+		writeExportJob(job, response);
+	}
+
+	@RequestMapping(value="exportstatus", method=GET, params="jobId", produces="application/json")
+	public void exportJobStatus(String jobId, HttpServletResponse response) throws IOException {
+		ExportJob job = getExportJob(jobId);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		writeExportJob(job, response);
+	}
+
+	@RequestMapping(value="downloadexport/*", method=GET, params="jobId")
+	public void downloadExport(String jobId, HttpServletResponse response) throws IOException {
+		ExportJob job = getExportJob(jobId);
+		if (job == null || job.getStage() != ExportJob.Stage.DONE) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		// The export is made again if it has been evicted from the cache since the job finished, by which time
+		// the access token captured when the job was submitted may have expired
+		ExportSource source = job.getSource().withAccessToken(google.getAccessToken());
+		streamFileToResponse(exportService.openExport(source), source.getTitle() + ".xlsx", response);
+	}
+
+	@RequestMapping(value="workbookinfo", method=GET, params="fileId", produces="application/json")
+	public void workbookInfo(String fileId, HttpServletResponse response) throws Exception {
+		writeWorkbookInfo(exportService.probe(getExportSource(fileId)), response);
+	}
+
+	/**
+	 * Look up the file and its HRM properties, ready to export it
+	 */
+	private ExportSource getExportSource(String fileId) throws Exception {
+		return getExportSource(getDriveMetadata(fileId), google.getAccessToken());
+	}
+
+	private ExportSource getExportSource(DriveMetadata file, String accessToken) throws Exception {
+		List<FileProperty> driveProps = file.getProperties();
 		String hrmFileType = null;
 		double hrmVersion = HRM_VERSION_DEFAULT;
 		String hrmRegion = HRM_REGION_DEFAULT;
@@ -381,316 +583,122 @@ public class HomeController {
 			}
 		}
 		String exportUri = file.getExportLinks().get("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
-		if (exportUri != null) {
-
-			// Download XLSX file from Google
-
-			HttpClient client = new DefaultHttpClient();
-			HttpGet httpget = new HttpGet(exportUri);
-			httpget.setHeader("Authorization", "Bearer " + google.getAccessToken());
-			HttpResponse resp = client.execute(httpget);
-			HttpEntity entity = resp.getEntity();
-			if (entity != null) {
-				InputStream instream = entity.getContent();
-				final File temp = File.createTempFile("hrmdownload-", ".xlsx");
-				OutputStream tos = new FileOutputStream(temp);
-				try {
-					byte[] buffer = new byte[1024]; // Adjust if you want
-					int bytesRead;
-					while ((bytesRead = instream.read(buffer)) != -1)
-					{
-						tos.write(buffer, 0, bytesRead);
-					}
-				} finally {
-					instream.close();
-				}
-				tos.close();
-
-				// Modify the .xlsx file using POI
-				// TODO Refactor this all into a helper class
-
-				OPCPackage pkg = OPCPackage.open(temp);
-				XSSFWorkbook wb = new XSSFWorkbook(pkg);
-				CreationHelper createHelper = wb.getCreationHelper();
-
-				if (hrmFileType == null) {
-					hrmFileType = autoDetectHRMType(wb);
-				}
-
-				// Write properties
-				POIXMLProperties props = wb.getProperties();
-				POIXMLProperties.CustomProperties cust =  props.getCustomProperties();
-
-				if (hrmFileType != null) {
-					CTProperty hrmProperty = cust.getUnderlyingProperties().addNewProperty();
-					hrmProperty.setBool(true);
-					hrmProperty.setName(hrmFileType);
-					hrmProperty.setFmtid(PROP_FMTID);
-					hrmProperty.setPid(2);
-				}
-
-				CTProperty versionProperty = cust.getUnderlyingProperties().addNewProperty();
-				versionProperty.setName("Version");
-				versionProperty.setR8(hrmVersion);
-				versionProperty.setFmtid(PROP_FMTID);
-				versionProperty.setPid(3);
-
-				String sheetPassword = hrmFileType;
-				XSSFSheet sheet;
-				String sheetName;
-
-				Font font = wb.createFont();
-				font.setFontHeightInPoints((short)10);
-				font.setFontName("Courier New");
-				Font boldFont = wb.createFont();
-				boldFont.setFontHeightInPoints((short)10);
-				boldFont.setFontName("Courier New");
-				boldFont.setBold(true);
-
-				XSSFCellStyle bodyStyle = wb.createCellStyle();
-				bodyStyle.setFont(font);
-
-				XSSFCellStyle firstColumnStyle = wb.createCellStyle();
-				firstColumnStyle.setFillForegroundColor(new XSSFColor(new java.awt.Color(255, 255, 153)));
-				firstColumnStyle.setFillPattern(CellStyle.SOLID_FOREGROUND);
-				firstColumnStyle.setBorderRight(CellStyle.BORDER_THIN);
-				firstColumnStyle.setRightBorderColor(IndexedColors.BLACK.getIndex());
-				firstColumnStyle.setFont(boldFont);
-
-				CellStyle dateStyle = (CellStyle) bodyStyle.clone();
-				short dateFormat = createHelper.createDataFormat().getFormat("dd/mm/yy");
-				dateStyle.setDataFormat(dateFormat);
-
-				CellStyle timeStyle = (CellStyle) bodyStyle.clone();
-				short timeFormat = createHelper.createDataFormat().getFormat("H:MM:SS");
-				timeStyle.setDataFormat(timeFormat);
-
-				List<String> raceSheetNames = new ArrayList<String>();
-				List<String> columnsToRemove = new ArrayList<String>();
-				columnsToRemove.add(COLUMN_DUE);
-				columnsToRemove.add(COLUMN_FEE);
-				columnsToRemove.add(COLUMN_SET);
-				columnsToRemove.add("Late?");
-				columnsToRemove.add("Chip Finish");
-				columnsToRemove.add("Manual Finish");
-				columnsToRemove.add("In Region");
-				columnsToRemove.add("Boat in Region");
-				columnsToRemove.add("Allowed Points");
-				columnsToRemove.add("Boat Allowed Points");
-				columnsToRemove.add("Regional Posn");
-				columnsToRemove.add("Regional Points");
-				columnsToRemove.add("Individual Points");
-				columnsToRemove.add("Individual Posn");
-				columnsToRemove.add("PDiv");
-				columnsToRemove.add("DDiv");
-				// Go through sheets
-				boolean isRaceSheet = true;
-				int numSheets = wb.getNumberOfSheets();
-				for (int i = 0; i < numSheets; i++) {
-					sheet = wb.getSheetAt(i);
-					sheetName = sheet.getSheetName();
-					isRaceSheet = isRaceSheet && !sheetName.equals(SHEET_FINISHES);
-					if (isRaceSheet) {
-						raceSheetNames.add(sheetName);
-					}
-					// Set sheet protection
-					if (sheetName.equals(SHEET_FINISHES) || sheetName.equals(SHEET_CLUBS)) {
-						sheet.protectSheet("");
-					} else if (sheetName.indexOf(SHEET_RESULTS) > -1) {
-						// No protection, at least for HRM (ARM seems to still apply empty password, Nationals applies none for Divisional / Singles but empty password for Doubles!)
-						if (sheet.getProtect()) {
-							sheet.protectSheet(null); // Throws IndexOutOfBoundsException if locking not enabled
-						}
-					} else {
-						if (sheetPassword != null) {
-							sheet.protectSheet(sheetPassword);
-						}
-					}
-					// Remove formulas from the race sheets
-					Row headerRow = sheet.getRow(0);
-					if (headerRow != null) {
-						int rowStart = 1;
-						int rowEnd = sheet.getLastRowNum() + 1;
-						for (int rowNum = rowStart; rowNum < rowEnd; rowNum++) {
-							Row r = sheet.getRow(rowNum);
-							if (r != null) {
-								short colStart = r.getFirstCellNum();
-								short colEnd = r.getLastCellNum();
-								for (short cn = colStart; cn < colEnd; cn++) {
-									Cell c = r.getCell(cn, Row.RETURN_NULL_AND_BLANK);
-									if (c != null) {
-										Cell headerCell = headerRow.getCell(cn, Row.RETURN_BLANK_AS_NULL);
-										String colName = "";
-										if (headerCell != null) {
-											try {
-												colName = headerCell.getStringCellValue();
-											} catch(IllegalStateException e) {
-												// We encountered a non-string value, move on
-											}
-											if (COLUMN_PAID.equals(colName)) {
-												c.setCellType(Cell.CELL_TYPE_BLANK);
-											}
-											if (COLUMN_NOTES.equals(colName) && !c.getStringCellValue().equals("ill")) {
-												c.setCellType(Cell.CELL_TYPE_BLANK);
-											}
-										}
-										if (c.getCellType() == Cell.CELL_TYPE_FORMULA) {
-											c.setCellFormula(null);
-											// Numeric values set as strings without this
-											setNumericValue(c);
-										}
-										c.removeCellComment();
-										if (isRaceSheet) {
-											if (cn > 0) {
-												if ("Expiry".equals(colName) && c.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-													c.setCellStyle(dateStyle);
-												} else if ((("Time+/-".equals(colName) || "Start".equals(colName) || "Finish".equals(colName) || "Elapsed".equals(colName))) && c.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-													c.setCellStyle(timeStyle);
-												} else {
-													c.setCellStyle(bodyStyle);
-												}
-											} else {
-												c.setCellStyle(firstColumnStyle);
-											}
-										}
-									}
-								}
-							}
-						}
-						// Remove unwanted columns, now that we have finished iterating
-						ArrayList<Cell> headerCellsToRemove = new ArrayList<Cell>();
-						for (short cn = 0; cn < headerRow.getLastCellNum(); cn++) {
-							Cell cell = headerRow.getCell(cn);
-							if (cell != null) {
-								try {
-									String colName = cell.getStringCellValue();
-									if (colName != null) {
-										if (columnsToRemove.indexOf(colName) >= 0) {
-											headerCellsToRemove.add(cell);
-										}
-										// For Nationals rename Posn header to be compliant with NRM
-										if (colName.equals("Posn") && HRM_TYPE_NATIONALS.equals(hrmFileType)) {
-											cell.setCellValue("Pos");
-										}
-									}
-								} catch(IllegalStateException e) {
-									// We encountered a non-string value, move on
-								}
-							}
-						}
-						for (Cell cell : headerCellsToRemove) {
-							int columnIndex = getColumnNames(sheet).indexOf(cell.getStringCellValue());
-							removeSheetColumn(sheet, columnIndex);
-						}
-					}
-					// Remove data validation from the sheet
-					// First we have to set up a new validation, or sheet.getDataValidations() returns an empty list
-					XSSFDataValidationHelper dvHelper = new XSSFDataValidationHelper(sheet);
-					XSSFDataValidationConstraint dvConstraint = (XSSFDataValidationConstraint) dvHelper.createExplicitListConstraint(new String[]{"11", "21", "31"});
-					CellRangeAddressList addressList = new CellRangeAddressList(0, 0, 0, 0);
-					XSSFDataValidation validation = (XSSFDataValidation)dvHelper.createValidation(dvConstraint, addressList);
-					validation.setSuppressDropDownArrow(false);
-					validation.setShowErrorBox(true);
-					sheet.addValidationData(validation);
-					if (sheet.getDataValidations().size() > 0) {
-						sheet.getCTWorksheet().unsetDataValidations();
-						// This sets the xsi:isNull property on the <dataValidations> element which causes the file to be unreadable by Excel
-						//sheet.getCTWorksheet().setDataValidations(null);
-					}
-					// Remove freeze pane
-					sheet.createFreezePane(0,0);
-				}
+		if (exportUri == null) {
+			throw new Exception("No Excel export found!");
+		}
+		ExportSettings settings = new ExportSettings(hrmFileType, hrmVersion, hrmRegion, hrmRaceName);
+		return new ExportSource(file.getId(), file.getTitle(), file.getModifiedDate(), exportUri, accessToken, settings);
+	}
 
-				Map<String, Double> finishTimes = getStartTimes(wb);
-				if (finishTimes != null && finishTimes.size() > 0 && raceSheetNames.size() > 0) {
-					setHRMFinishTimes(wb, raceSheetNames, finishTimes, timeStyle);
-				}
-				setHRMRaceInfo(wb, hrmRaceName, hrmRegion);
+	/**
+	 * Read a file together with its properties
+	 */
+	private DriveMetadata getDriveMetadata(final String fileId) throws IOException {
+		return coalesce(metadataCalls, fileId, new Callable<DriveMetadata>() {
+			public DriveMetadata call() throws IOException {
+				return driveMetadata.getFile(google.getAccessToken(), fileId);
+			}
+		});
+	}
 
-				for (int i = 0; i < disallowedSheets.length; i++) {
-					int sheetIndex = wb.getSheetIndex(disallowedSheets[i]);
-					if (sheetIndex > -1) {
-						wb.removeSheetAt(sheetIndex);
-					}
-				}
+	/**
+	 * Make a Drive call, or wait for the same call which the same user is already making, for example when
+	 * several tabs ask for the same file at once. Calls are not shared between users, as each user may see
+	 * a different view of the file.
+	 */
+	private <T> T coalesce(SingleFlight<String, T> calls, String fileId, Callable<T> call) throws IOException {
+		try {
+			return calls.execute(SecurityContext.getCurrentUser().getId() + "|" + fileId, call);
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for Drive");
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
 
-				// Finally, protect the workbook
-				wb.setWorkbookPassword(sheetPassword, null);
-				wb.lockStructure();
+	/**
+	 * @return The export job, or null if it does not exist or belongs to another user
+	 */
+	private ExportJob getExportJob(String jobId) {
+		ExportJob job = exportService.getJob(jobId);
+		if (job == null || !job.getOwner().equals(SecurityContext.getCurrentUser().getId())) {
+			return null;
+		}
+		return job;
+	}
 
-				final File exportFile = File.createTempFile("hrmexport-", ".xlsx");
-				OutputStream eos = new FileOutputStream(exportFile);
-				wb.write(eos);
-				eos.close();
+	private void writeExportJob(ExportJob job, HttpServletResponse response) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode rootNode = mapper.createObjectNode();
+		rootNode.put("id", job.getId());
+		rootNode.put("fileId", job.getSource().getFileId());
+		rootNode.put("title", job.getSource().getTitle());
+		rootNode.put("stage", job.getStage().name());
+		rootNode.put("progress", job.getProgress());
+		rootNode.put("bytesDownloaded", job.getBytesDownloaded());
+		if (job.getError() != null) {
+			rootNode.put("error", job.getError());
+		}
+		response.setContentType("application/json");
+		mapper.writeValue(response.getWriter(), rootNode);
+	}
 
-				// Serve up the file
-				streamFileToResponse(exportFile, file.getTitle() + ".xlsx", response);
+	private void writeWorkbookInfo(WorkbookInfo info, HttpServletResponse response) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode rootNode = mapper.createObjectNode();
+		rootNode.put("type", info.getType());
+		rootNode.put("version", info.getVersion());
+		ArrayNode sheetsNode = rootNode.putArray("sheets");
+		for (String sheetName : info.getSheetNames()) {
+			sheetsNode.add(sheetName);
+		}
+		rootNode.put("structureLocked", info.isStructureLocked());
+		rootNode.put("passwordProtected", info.isPasswordProtected());
+		response.setContentType("application/json");
+		mapper.writeValue(response.getWriter(), rootNode);
+	}
 
-			} else {
-				throw new Exception("Response entity is null!");
-			}
-		} else {
-			throw new Exception("No Excel export found!");
-		}
+	@RequestMapping(value="status/httpclient", method=GET, produces="application/json")
+	public void httpClientStatus(HttpServletResponse response) throws IOException {
+		PoolStats stats = httpConnectionManager.getTotalStats();
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode rootNode = mapper.createObjectNode();
+		rootNode.put("leased", stats.getLeased());
+		rootNode.put("available", stats.getAvailable());
+		rootNode.put("pending", stats.getPending());
+		rootNode.put("max", stats.getMax());
+		response.setContentType("application/json");
+		mapper.writeValue(response.getWriter(), rootNode);
 	}
-	
-	private List<String> getColumnNames(XSSFSheet sheet) {
-		List<String> columnNames = new ArrayList<String>();
-		Row headerRow = sheet.getRow(0);
-		if (headerRow != null) {
-			short colStart = headerRow.getFirstCellNum();
-			short colEnd = headerRow.getLastCellNum();
-			for (short cn = colStart; cn < colEnd; cn++) {
-				Cell c = headerRow.getCell(cn, Row.RETURN_NULL_AND_BLANK);
-				String colName = null;
-				if (c != null) {
-					Cell headerCell = headerRow.getCell(cn, Row.RETURN_BLANK_AS_NULL);
-					if (headerCell != null) {
-						try {
-							colName = headerCell.getStringCellValue();
-						} catch(IllegalStateException e) {
-							// We encountered a non-string value, move on
-						}
-					}
-				}
-				columnNames.add(colName);
-			}
-		}
-		return columnNames;
+
+	private void streamFileToResponse(File inputFile, String fileName, HttpServletResponse response) throws IOException {
+		streamFileToResponse(new FileInputStream(inputFile), fileName, response);
 	}
-	
-	private void streamFileToResponse(final File inputFile, String fileName, HttpServletResponse response) throws IOException {
-		InputStream eis = new FileInputStream(inputFile);
-		response.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
-		response.setHeader("Content-Disposition","attachment;filename=\"" + fileName + "\"");
-		response.setHeader("Content-Length", "" + inputFile.length());
-		OutputStream outputStream = response.getOutputStream();
+
+	/**
+	 * Send the opened file, and close it
+	 */
+	private void streamFileToResponse(FileInputStream input, String fileName, HttpServletResponse response) throws IOException {
+		FileChannel channel = input.getChannel();
 		try {
-			byte[] buffer = new byte[1024]; // Adjust if you want
-			int bytesRead;
-			while ((bytesRead = eis.read(buffer)) != -1)
-			{
-				outputStream.write(buffer, 0, bytesRead);
+			// Use the size of the open file, in case the file has been replaced since it was looked up
+			long length = channel.size();
+			response.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+			response.setHeader("Content-Disposition","attachment;filename=\"" + fileName + "\"");
+			response.setHeader("Content-Length", Long.toString(length));
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+			long position = 0;
+			while (position < length) {
+				position += channel.transferTo(position, length - position, out);
 			}
 		} finally {
-			eis.close();
-		}
-	}
-
-	private static String autoDetectHRMType(Workbook wb) {
-		// Auto-detect the sheet type based on the first sheet name
-		String hrmFileType = null;
-		if (wb.getNumberOfSheets() > 0) {
-			String firstSheetName = wb.getSheetAt(0).getSheetName();
-			if (firstSheetName.equals("Div1")) {
-				hrmFileType = HRM_TYPE_HASLER;
-			} else if (firstSheetName.equals("SMK1")) {
-				hrmFileType = HRM_TYPE_ASSESSMENT;
-			} else if (firstSheetName.equals("Div7") || firstSheetName.equals("U12 M")) {
-				hrmFileType = HRM_TYPE_NATIONALS;
-			}
+			channel.close();
 		}
-		return hrmFileType;
 	}
 
 	@RequestMapping(value = "/public/upload", method = RequestMethod.POST)
@@ -700,22 +708,33 @@ public class HomeController {
 			response.setStatus(200);
 			try {
 				MultipartFile uploadedFile = files.get(0);
-				final File temp = File.createTempFile("hrmupload-", ".xlsx");
-				uploadedFile.transferTo(temp);
-				OPCPackage pkg = OPCPackage.open(temp);
-				XSSFWorkbook wb = new XSSFWorkbook(pkg);
-				wb.setWorkbookPassword(null, null);
-				wb.unLock();
-
-				final File exportFile = File.createTempFile("hrmupload-",
-						".xlsx");
-				OutputStream eos = new FileOutputStream(exportFile);
-				wb.write(eos);
-				eos.close();
-				wb.close();
-
-				streamFileToResponse(exportFile, uploadedFile.getName(),
-						response);
+				File temp = null;
+				File exportFile = null;
+				try {
+					temp = tempStorage.createTempFile(TempStorage.PREFIX_UPLOAD, ".xlsx");
+					uploadedFile.transferTo(temp);
+					if (!WorkbookProbe.probe(temp).isProtected()) {
+						// Nothing to unlock, so send the workbook back as it is
+						streamFileToResponse(temp, uploadedFile.getName(), response);
+						return;
+					}
+					OPCPackage pkg = OPCPackage.open(temp);
+					XSSFWorkbook wb = new XSSFWorkbook(pkg);
+					wb.setWorkbookPassword(null, null);
+					wb.unLock();
+
+					exportFile = tempStorage.createTempFile(TempStorage.PREFIX_UPLOAD, ".xlsx");
+					OutputStream eos = new FileOutputStream(exportFile);
+					wb.write(eos);
+					eos.close();
+					wb.close();
+
+					streamFileToResponse(exportFile, uploadedFile.getName(),
+							response);
+				} finally {
+					tempStorage.delete(temp);
+					tempStorage.delete(exportFile);
+				}
 
 			} catch (Exception e) {
 				System.out.println(e.getMessage());
@@ -726,6 +745,25 @@ public class HomeController {
 		}
 	}
 
+	@RequestMapping(value = "/public/probe", method = RequestMethod.POST, produces="application/json")
+	public void probeUpload(@RequestParam("file") List<MultipartFile> files,
+			HttpServletResponse response) throws IOException {
+		if (files.isEmpty()) {
+			response.setStatus(400);
+			return;
+		}
+		File temp = null;
+		try {
+			temp = tempStorage.createTempFile(TempStorage.PREFIX_UPLOAD, ".xlsx");
+			files.get(0).transferTo(temp);
+			writeWorkbookInfo(WorkbookProbe.probe(temp), response);
+		} catch (IOException e) {
+			response.sendError(400, e.getMessage());
+		} finally {
+			tempStorage.delete(temp);
+		}
+	}
+
 	@RequestMapping(value = "/public/decrypt", method = RequestMethod.POST)
 	public void decryptUpload(@RequestParam("file") List<MultipartFile> files,
 			@RequestParam String password,
@@ -734,19 +772,25 @@ public class HomeController {
 			response.setStatus(200);
 			try {
 				MultipartFile uploadedFile = files.get(0);
-				final File temp = File.createTempFile("hrmupload-", ".xlsx");
-				uploadedFile.transferTo(temp);
-				Workbook wb = WorkbookFactory.create(temp, password);
-
-				final File exportFile = File.createTempFile("hrmupload-",
-						".xlsx");
-				OutputStream eos = new FileOutputStream(exportFile);
-				wb.write(eos);
-				eos.close();
-				wb.close();
-
-				streamFileToResponse(exportFile, uploadedFile.getName(),
-						response);
+				File temp = null;
+				File exportFile = null;
+				try {
+					temp = tempStorage.createTempFile(TempStorage.PREFIX_UPLOAD, ".xlsx");
+					uploadedFile.transferTo(temp);
+					Workbook wb = WorkbookFactory.create(temp, password);
+
+					exportFile = tempStorage.createTempFile(TempStorage.PREFIX_UPLOAD, ".xlsx");
+					OutputStream eos = new FileOutputStream(exportFile);
+					wb.write(eos);
+					eos.close();
+					wb.close();
+
+					streamFileToResponse(exportFile, uploadedFile.getName(),
+							response);
+				} finally {
+					tempStorage.delete(temp);
+					tempStorage.delete(exportFile);
+				}
 
 			} catch (Exception e) {
 				try {
@@ -760,165 +804,6 @@ public class HomeController {
 		}
 	}
 
-	private static void setNumericValue(Cell c) {
-		if (c.getCellType() == Cell.CELL_TYPE_NUMERIC && c.getCellType() == Cell.CELL_TYPE_BOOLEAN) {
-			return;
-		}
-		try {
-			if (numberPattern.matcher(c.getStringCellValue()).matches()) {
-				c.setCellValue(Double.parseDouble(c.getStringCellValue()));
-				c.setCellType(Cell.CELL_TYPE_NUMERIC);
-			} else {
-				Matcher timeMatcher = timePattern.matcher(c.getStringCellValue());
-				if (timeMatcher.matches()) {
-					Calendar calendar = Calendar.getInstance();
-					calendar.set(Calendar.HOUR_OF_DAY, Integer.parseInt(timeMatcher.group(1)));
-					calendar.set(Calendar.MINUTE, Integer.parseInt(timeMatcher.group(2)));
-					calendar.set(Calendar.SECOND, Integer.parseInt(timeMatcher.group(3)));
-					calendar.set(Calendar.MILLISECOND, 0);
-					c.setCellValue(calendar);
-					c.setCellType(Cell.CELL_TYPE_NUMERIC);
-				}
-			}
-		} catch (IllegalStateException e) {
-			
-		}
-	}
-
-	private static Map<String, Double> getStartTimes(XSSFWorkbook wb) {
-		Map<String, Double> times = new HashMap<String, Double>();
-		XSSFSheet startsSheet = wb.getSheet(SHEET_STARTS);
-		if (startsSheet == null) {
-			return null;
-		}
-		for (Row row : startsSheet) {
-			Cell raceNameCell = row.getCell(0);
-			Cell startTimeCell = row.getCell(1);
-			if (raceNameCell != null && startTimeCell != null) {
-				setNumericValue(startTimeCell);
-				if (raceNameCell != null && startTimeCell != null &&
-						raceNameCell.getCellType() == Cell.CELL_TYPE_STRING &&
-						startTimeCell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-					times.put(raceNameCell.getStringCellValue(), startTimeCell.getNumericCellValue());
-				}
-			}
-		}
-		return times;
-	}
-
-	private static void setHRMFinishTimes(XSSFWorkbook wb, List<String> sheetNames, Map<String, Double> times, CellStyle cellStyle) {
-		XSSFSheet summarySheet = wb.getSheet(SHEET_SUMMARY);
-		if (summarySheet != null) {
-			int i = 1;
-			for (String sheetName : sheetNames) {
-				Row row = summarySheet.getRow(i);
-				if (row == null) {
-					row = summarySheet.createRow(i);
-				}
-				// Add times to column AA from row 2 down, in the order that the sheets appear
-				Cell c = row.createCell(26, Cell.CELL_TYPE_BLANK);
-				if (times.get(sheetName) != null) {
-					c.setCellValue(times.get(sheetName));
-				}
-				if (cellStyle != null) {
-					c.setCellStyle(cellStyle);
-				}
-				i ++;
-			}
-		}
-	}
-
-	private static void setHRMRaceInfo(XSSFWorkbook wb, String raceName, String raceRegion) {
-		XSSFSheet clubsSheet = wb.getSheet(SHEET_CLUBS);
-		if (clubsSheet != null) {
-			Row row = clubsSheet.getRow(0);
-			if (row == null) {
-				row = clubsSheet.createRow(0);
-			}
-			row.createCell(18, Cell.CELL_TYPE_STRING).setCellValue(raceRegion);
-			row.createCell(19, Cell.CELL_TYPE_STRING).setCellValue(raceName);
-		}
-	}
-
-	private static void removeSheetColumn(XSSFSheet sheet, int columnToDelete) {
-		int maxColumn = 0;
-		for ( int r=0; r < sheet.getLastRowNum()+1; r++ ){
-			Row row = sheet.getRow( r );
-
-			// if no row exists here; then nothing to do; next!
-			if ( row == null )
-				continue;
-
-			// if the row doesn't have this many columns then we are good; next!
-			int lastColumn = row.getLastCellNum();
-			if ( lastColumn > maxColumn )
-				maxColumn = lastColumn;
-
-			if ( lastColumn < columnToDelete )
-				continue;
-
-			for ( int x=columnToDelete+1; x < lastColumn + 1; x++ ){
-				Cell oldCell	= row.getCell(x-1);
-				if ( oldCell != null )
-					row.removeCell( oldCell );
-
-				Cell nextCell   = row.getCell( x );
-				if ( nextCell != null ){
-					Cell newCell	= row.createCell( x-1, nextCell.getCellType() );
-					cloneCell(newCell, nextCell);
-				}
-			}
-		}
-
-
-		// Adjust the column widths
-		for ( int c=columnToDelete; c < maxColumn; c++ ) {
-			CTCol thisCol = sheet.getColumnHelper().getColumn(c, false),
-					nextCol = sheet.getColumnHelper().getColumn(c+1, false);
-			if (nextCol != null) {
-				if (nextCol.isSetCustomWidth()) {
-					sheet.setColumnWidth(c, sheet.getColumnWidth(c+1));
-				} else if (thisCol.isSetCustomWidth()) {
-					thisCol.unsetCustomWidth();
-				}
-			}
-			sheet.setColumnHidden(c, sheet.isColumnHidden(c+1));
-		}
-	}
-
-	/*
-	 * Takes an existing Cell and merges all the styles and forumla
-	 * into the new one
-	 */
-	private static void cloneCell( Cell cNew, Cell cOld ){
-
-		switch ( cOld.getCellType() ){
-			case Cell.CELL_TYPE_BOOLEAN:{
-				cNew.setCellValue( cOld.getBooleanCellValue() );
-				break;
-			}
-			case Cell.CELL_TYPE_NUMERIC:{
-				cNew.setCellValue( cOld.getNumericCellValue() );
-				break;
-			}
-			case Cell.CELL_TYPE_STRING:{
-				cNew.setCellValue( cOld.getStringCellValue() );
-				break;
-			}
-			case Cell.CELL_TYPE_ERROR:{
-				cNew.setCellValue( cOld.getErrorCellValue() );
-				break;
-			}
-			case Cell.CELL_TYPE_FORMULA:{
-				cNew.setCellFormula( cOld.getCellFormula() );
-				break;
-			}
-		}
-
-		cNew.setCellStyle( cOld.getCellStyle() );
-
-	}
-
 	private class FileInfo {
 
 		private String name;
@@ -0,0 +1,87 @@
+package org.springframework.social.quickstart.config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.apache.http.client.HttpClient;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.social.quickstart.drive.DriveBatch;
+import org.springframework.social.quickstart.drive.DriveChangesClient;
+import org.springframework.social.quickstart.drive.DriveIndex;
+import org.springframework.social.quickstart.drive.DriveListingCache;
+import org.springframework.social.quickstart.drive.DriveMetadataClient;
+import org.springframework.social.quickstart.drive.TemplatePool;
+import org.springframework.social.quickstart.export.HrmWorkbook;
+
+/**
+ * Drive configuration.
+ * Listing pages are cached for hrm.drive.listingCacheSeconds, keeping up to hrm.drive.listingCachePages pages for each user.
+ * HRM spreadsheets are listed from a local index, which is checked for changes at most every hrm.drive.indexSyncSeconds,
+ * in the background on up to hrm.drive.indexSyncThreads threads shared by all users.
+ * Changes, and files together with their properties, are read from the Drive API at hrm.drive.apiUrl, which can point at a local stand-in.
+ * New files are copied from the template spreadsheets hrm.template.HRM, hrm.template.ARM and hrm.template.NRM.
+ * Changes to several selected files at once are sent to Drive on up to hrm.drive.batchThreads threads, shared by all users.
+ * Set hrm.template.spares to keep that many spare copies of each template for each user, which are replaced after hrm.template.spareMaxAgeDays.
+ */
+@Configuration
+public class DriveConfig {
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private DataSource dataSource;
+
+	@Inject
+	private HttpClient httpClient;
+
+	@Bean
+	public DriveListingCache driveListingCache() {
+		long ttlSeconds = environment.getProperty("hrm.drive.listingCacheSeconds", Long.class, 30L);
+		int maxPages = environment.getProperty("hrm.drive.listingCachePages", Integer.class, 50);
+		return new DriveListingCache(ttlSeconds * 1000, maxPages);
+	}
+
+	@Bean
+	public DriveChangesClient driveChangesClient() {
+		return new DriveChangesClient(httpClient, getApiUrl());
+	}
+
+	@Bean
+	public DriveMetadataClient driveMetadataClient() {
+		return new DriveMetadataClient(httpClient, getApiUrl());
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public DriveBatch driveBatch() {
+		return new DriveBatch(driveMetadataClient(), environment.getProperty("hrm.drive.batchThreads", Integer.class, 8));
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public TemplatePool templatePool() {
+		Map<String, String> templateIds = new LinkedHashMap<String, String>();
+		templateIds.put(HrmWorkbook.TYPE_HASLER, environment.getProperty("hrm.template.HRM", "1V7FTXOszEFtA23BAmYBYekbRHAA3gaz3sZPLaJfacnw"));
+		templateIds.put(HrmWorkbook.TYPE_ASSESSMENT, environment.getProperty("hrm.template.ARM", "10JNPb7LA0QIERO93JPgxsSn129dR-AddsAnHAx2iBXM"));
+		templateIds.put(HrmWorkbook.TYPE_NATIONALS, environment.getProperty("hrm.template.NRM", "1A9USkMFEZtJL2KmsdFljk4eHag07yPvmZq3oInCYPo0"));
+		int spares = environment.getProperty("hrm.template.spares", Integer.class, 0);
+		long maxAgeDays = environment.getProperty("hrm.template.spareMaxAgeDays", Long.class, 7L);
+		return new TemplatePool(dataSource, driveMetadataClient(), templateIds, spares, maxAgeDays * 24 * 60 * 60 * 1000);
+	}
+
+	private String getApiUrl() {
+		return environment.getProperty("hrm.drive.apiUrl", "https://www.googleapis.com/drive/v2");
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public DriveIndex driveIndex() {
+		long syncSeconds = environment.getProperty("hrm.drive.indexSyncSeconds", Long.class, 30L);
+		return new DriveIndex(dataSource, driveChangesClient(), syncSeconds * 1000,
+				environment.getProperty("hrm.drive.indexSyncThreads", Integer.class, 2));
+	}
+
+}
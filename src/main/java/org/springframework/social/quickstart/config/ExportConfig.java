@@ -0,0 +1,89 @@
+package org.springframework.social.quickstart.config;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+
+import org.apache.http.client.HttpClient;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.social.quickstart.export.ExportCache;
+import org.springframework.social.quickstart.export.ExportService;
+import org.springframework.social.quickstart.export.HrmExporter;
+import org.springframework.social.quickstart.export.StreamingHrmExporter;
+import org.springframework.social.quickstart.export.TempStorage;
+import org.springframework.social.quickstart.export.WorkbookHrmExporter;
+
+/**
+ * HRM export configuration.
+ * Set hrm.export.engine=xssf to fall back to exporting through the POI object model.
+ * Exported workbooks are cached in hrm.export.cache.dir, up to hrm.export.cache.maxMegabytes in total.
+ * Background exports run on hrm.export.threads threads, with up to hrm.export.queueSize waiting.
+ * Bulk exports share hrm.export.bulkThreads threads, and each keeps at most that many files in progress.
+ * Temporary files are kept in hrm.temp.dir, up to hrm.temp.quotaMegabytes, and any left behind are removed after hrm.temp.maxAgeMinutes.
+ * Downloads are exported while the file is still arriving from Drive unless hrm.export.pipelined=false.
+ * The sheets of each workbook are rewritten on up to hrm.export.parallelism threads, set to 1 to rewrite them one at a time.
+ */
+@Configuration
+public class ExportConfig {
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private HttpClient httpClient;
+
+	@Bean
+	public HrmExporter hrmExporter() {
+		if ("xssf".equals(environment.getProperty("hrm.export.engine", "streaming"))) {
+			return new WorkbookHrmExporter();
+		}
+		if (getParallelism() > 1) {
+			return new StreamingHrmExporter(sheetExportPool(), tempStorage());
+		}
+		return new StreamingHrmExporter();
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService sheetExportPool() {
+		return Executors.newFixedThreadPool(Math.max(1, getParallelism()));
+	}
+
+	private int getParallelism() {
+		return environment.getProperty("hrm.export.parallelism", Integer.class, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Bean
+	public ExportCache exportCache() {
+		File directory = new File(environment.getProperty("hrm.export.cache.dir",
+				new File(System.getProperty("java.io.tmpdir"), "hrm-export-cache").getPath()));
+		long maxMegabytes = environment.getProperty("hrm.export.cache.maxMegabytes", Long.class, 256L);
+		return new ExportCache(directory, maxMegabytes * 1024 * 1024);
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public TempStorage tempStorage() {
+		File directory = new File(environment.getProperty("hrm.temp.dir", System.getProperty("java.io.tmpdir")));
+		long quotaMegabytes = environment.getProperty("hrm.temp.quotaMegabytes", Long.class, 512L);
+		long maxAgeMinutes = environment.getProperty("hrm.temp.maxAgeMinutes", Long.class, 60L);
+		long sweepIntervalMinutes = environment.getProperty("hrm.temp.sweepIntervalMinutes", Long.class, 10L);
+		return new TempStorage(directory, quotaMegabytes * 1024 * 1024, maxAgeMinutes * 60 * 1000, sweepIntervalMinutes * 60 * 1000);
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public ExportService exportService() {
+		ExportService exportService = new ExportService(httpClient, hrmExporter(), exportCache(), tempStorage(),
+				environment.getProperty("hrm.export.threads", Integer.class, 2),
+				environment.getProperty("hrm.export.queueSize", Integer.class, 20),
+				environment.getProperty("hrm.export.bulkThreads", Integer.class, 4),
+				environment.getProperty("hrm.export.jobRetentionMinutes", Long.class, 30L) * 60 * 1000);
+		exportService.setPipelined(environment.getProperty("hrm.export.pipelined", Boolean.class, true));
+		// Jobs are kept in memory, so polling one would fail whenever the router picks another instance
+		exportService.setJobsEnabled(!environment.getProperty("hrm.cluster.enabled", Boolean.class, false));
+		return exportService;
+	}
+
+}
@@ -0,0 +1,49 @@
+package org.springframework.social.quickstart.config;
+
+import javax.inject.Inject;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Shared HTTP client used to download Drive exports.
+ * Connections are pooled and kept alive between requests, so that each download does not need a new TLS handshake.
+ */
+@Configuration
+public class HttpClientConfig {
+
+	@Inject
+	private Environment environment;
+
+	@Bean(destroyMethod = "shutdown")
+	public PoolingHttpClientConnectionManager httpConnectionManager() {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(environment.getProperty("hrm.http.maxConnections", Integer.class, 40));
+		connectionManager.setDefaultMaxPerRoute(environment.getProperty("hrm.http.maxConnectionsPerRoute", Integer.class, 20));
+		return connectionManager;
+	}
+
+	/**
+	 * Gzip and deflate responses are decoded by the client, and the Accept-Encoding header is added to requests.
+	 */
+	@Bean(destroyMethod = "close")
+	public CloseableHttpClient httpClient() {
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout(environment.getProperty("hrm.http.connectTimeout", Integer.class, 10000))
+			.setConnectionRequestTimeout(environment.getProperty("hrm.http.connectionRequestTimeout", Integer.class, 10000))
+			.setSocketTimeout(environment.getProperty("hrm.http.socketTimeout", Integer.class, 60000))
+			.build();
+		return HttpClients.custom()
+			.setConnectionManager(httpConnectionManager())
+			.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+			.setDefaultRequestConfig(requestConfig)
+			.build();
+	}
+
+}
@@ -15,43 +15,152 @@
  */
 package org.springframework.social.quickstart.config;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.inject.Inject;
 import javax.sql.DataSource;
 
+import org.apache.commons.dbcp.BasicDataSource;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.ComponentScan.Filter;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
 import org.springframework.jdbc.datasource.init.DatabasePopulator;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
 import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
 import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+import org.springframework.social.quickstart.drive.DriveIndex;
+import org.springframework.social.quickstart.drive.TemplatePool;
 
 /**
  * Main configuration class for the application.
  * Turns on @Component scanning, loads externalized application.properties, and sets up the database.
+ * <p>
+ * The database is an in-memory H2 database, which is lost on restart, unless hrm.db.url is set. It can be
+ * the JDBC URL of any database with standard SQL and limit/offset paging, such as H2, PostgreSQL or MySQL,
+ * e.g. jdbc:h2:~/hrm-google for a file-backed H2 database, with hrm.db.driverClassName,
+ * hrm.db.username and hrm.db.password if needed. Connections are pooled, up to hrm.db.maxActive, and each
+ * keeps up to hrm.db.statementCacheSize prepared statements. Tables which are missing are created on startup.
  * @author Keith Donald
  */
 @Configuration
 @ComponentScan(basePackages = "org.springframework.social.quickstart", excludeFilters = { @Filter(Configuration.class) })
 public class MainConfig {
 
-	@Bean(destroyMethod = "shutdown")
-	public DataSource dataSource() {
-		EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
-		factory.setDatabaseName("spring-social-quickstart");
-		factory.setDatabaseType(EmbeddedDatabaseType.H2);
-		factory.setDatabasePopulator(databasePopulator());
-		return factory.getDatabase();
+	@Inject
+	private Environment environment;
+
+	@Bean
+	public DataSource dataSource() throws SQLException {
+		String url = environment.getProperty("hrm.db.url");
+		if (url == null || url.length() == 0) {
+			EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+			factory.setDatabaseName("spring-social-quickstart");
+			factory.setDatabaseType(EmbeddedDatabaseType.H2);
+			factory.setDatabasePopulator(databasePopulator());
+			return factory.getDatabase();
+		}
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName(environment.getProperty("hrm.db.driverClassName"));
+		dataSource.setUrl(url);
+		dataSource.setUsername(environment.getProperty("hrm.db.username"));
+		dataSource.setPassword(environment.getProperty("hrm.db.password"));
+		dataSource.setMaxActive(environment.getProperty("hrm.db.maxActive", Integer.class, 20));
+		// Keep idle connections open, so that their prepared statements are kept too
+		dataSource.setMaxIdle(environment.getProperty("hrm.db.maxActive", Integer.class, 20));
+		dataSource.setPoolPreparedStatements(true);
+		dataSource.setMaxOpenPreparedStatements(environment.getProperty("hrm.db.statementCacheSize", Integer.class, 100));
+		String validationQuery = environment.getProperty("hrm.db.validationQuery");
+		if (validationQuery != null) {
+			dataSource.setValidationQuery(validationQuery);
+			dataSource.setTestOnBorrow(true);
+		}
+		try {
+			List<Resource> scripts = missingTableScripts(dataSource);
+			if (!scripts.isEmpty()) {
+				try {
+					DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(scripts.toArray(new Resource[scripts.size()])), dataSource);
+				} catch (DataAccessException e) {
+					// Another instance starting at the same time may have created the tables first
+					if (!missingTableScripts(dataSource).isEmpty()) {
+						throw e;
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			dataSource.close();
+			throw e;
+		}
+		return dataSource;
 	}
 
 	// internal helpers
 
+	/**
+	 * @return The script which creates each table, keyed on the name of the table
+	 */
+	private Map<String, Resource> schemaScripts() {
+		Map<String, Resource> scripts = new LinkedHashMap<String, Resource>();
+		scripts.put("UserConnection", new ClassPathResource("JdbcUsersConnectionRepository.sql", JdbcUsersConnectionRepository.class));
+		scripts.put("DriveIndexFile", new ClassPathResource("DriveIndex.sql", DriveIndex.class));
+		scripts.put("TemplatePoolFile", new ClassPathResource("TemplatePool.sql", TemplatePool.class));
+		return scripts;
+	}
+
 	private DatabasePopulator databasePopulator() {
 		ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
-		populator.addScript(new ClassPathResource("JdbcUsersConnectionRepository.sql", JdbcUsersConnectionRepository.class));
+		for (Resource script : schemaScripts().values()) {
+			populator.addScript(script);
+		}
 		return populator;
 	}
+
+	/**
+	 * @return The scripts for the tables which are not in the database yet
+	 */
+	private List<Resource> missingTableScripts(DataSource dataSource) throws SQLException {
+		List<Resource> scripts = new ArrayList<Resource>();
+		Connection connection = dataSource.getConnection();
+		try {
+			DatabaseMetaData metaData = connection.getMetaData();
+			for (Map.Entry<String, Resource> script : schemaScripts().entrySet()) {
+				if (!tableExists(metaData, script.getKey())) {
+					scripts.add(script.getValue());
+				}
+			}
+		} finally {
+			connection.close();
+		}
+		return scripts;
+	}
+
+	private static boolean tableExists(DatabaseMetaData metaData, String table) throws SQLException {
+		// Databases store unquoted names in upper or lower case
+		for (String name : new String[] { table, table.toUpperCase(Locale.ENGLISH), table.toLowerCase(Locale.ENGLISH) }) {
+			ResultSet tables = metaData.getTables(null, null, name, null);
+			try {
+				if (tables.next()) {
+					return true;
+				}
+			} finally {
+				tables.close();
+			}
+		}
+		return false;
+	}
 	
 }
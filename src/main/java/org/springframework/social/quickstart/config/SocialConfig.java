@@ -18,30 +18,40 @@ package org.springframework.social.quickstart.config;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 
+import org.springframework.aop.TargetSource;
+import org.springframework.aop.framework.ProxyFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
 import org.springframework.context.annotation.ScopedProxyMode;
 import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.crypto.encrypt.Encryptors;
 import org.springframework.social.connect.ConnectionFactory;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionRepository;
-import org.springframework.social.connect.NotConnectedException;
 import org.springframework.social.connect.UsersConnectionRepository;
 import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
 import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.connect.support.OAuth2ConnectionFactory;
 import org.springframework.social.connect.web.ProviderSignInController;
+import org.springframework.social.quickstart.user.CachingUsersConnectionRepository;
+import org.springframework.social.quickstart.user.GoogleClientCache;
 import org.springframework.social.quickstart.user.IncludeEmailProviderSignInInterceptor;
+import org.springframework.social.quickstart.user.ProviderConnectionSignUp;
 import org.springframework.social.quickstart.user.SecurityContext;
 import org.springframework.social.quickstart.user.SimpleConnectionSignUp;
 import org.springframework.social.quickstart.user.SimpleSignInAdapter;
+import org.springframework.social.quickstart.user.TokenRefresher;
 import org.springframework.social.quickstart.user.User;
 import org.springframework.social.google.api.Google;
 import org.springframework.social.google.connect.GoogleConnectionFactory;
 
 /**
  * Spring Social Configuration.
+ * Set hrm.cluster.enabled to run several instances of the application against the shared database in
+ * hrm.db.url. Users are then given userIds made from their Google id, and the user cookie is signed with
+ * hrm.cookie.secret, which must be the same for every instance.
  * @author Keith Donald
  */
 @Configuration
@@ -67,13 +77,22 @@ public class SocialConfig {
 
 	/**
 	 * Singleton data access object providing access to connections across all users.
+	 * Primary connections are cached for hrm.connections.cacheSeconds, for up to hrm.connections.cacheSize users.
+	 * Other instances may change the connections when running in a cluster, so they are cached for less time.
 	 */
 	@Bean
 	public UsersConnectionRepository usersConnectionRepository() {
 		JdbcUsersConnectionRepository repository = new JdbcUsersConnectionRepository(dataSource,
 				connectionFactoryLocator(), Encryptors.noOpText());
-		repository.setConnectionSignUp(new SimpleConnectionSignUp());
-		return repository;
+		if (isCluster()) {
+			repository.setConnectionSignUp(new ProviderConnectionSignUp());
+		} else {
+			// Carry on from the stored userIds, so that new users are not given the userId of an existing one
+			repository.setConnectionSignUp(new SimpleConnectionSignUp(lastNumericUserId()));
+		}
+		return new CachingUsersConnectionRepository(repository,
+				environment.getProperty("hrm.connections.cacheSize", Integer.class, 1000),
+				environment.getProperty("hrm.connections.cacheSeconds", Long.class, isCluster() ? 30L : 300L) * 1000);
 	}
 
 	/**
@@ -87,13 +106,47 @@ public class SocialConfig {
 	}
 
 	/**
-	 * A proxy to a request-scoped object representing the current user's primary Facebook account.
-	 * @throws NotConnectedException if the user is not connected to facebook.
+	 * Refreshes the access tokens of users who have made a request within hrm.auth.activeMinutes, up to
+	 * hrm.auth.refreshLeadSeconds before they expire, on up to hrm.auth.refreshThreads threads.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	@SuppressWarnings("unchecked")
+	public TokenRefresher tokenRefresher() {
+		return new TokenRefresher(usersConnectionRepository(),
+				(OAuth2ConnectionFactory<Google>) connectionFactoryLocator().getConnectionFactory(Google.class),
+				environment.getProperty("hrm.auth.refreshLeadSeconds", Long.class, 300L) * 1000,
+				environment.getProperty("hrm.auth.activeMinutes", Long.class, 60L) * 60 * 1000,
+				environment.getProperty("hrm.auth.refreshThreads", Integer.class, 4));
+	}
+
+	/**
+	 * Singleton cache of the Google API bindings for each user.
+	 */
+	@Bean
+	public GoogleClientCache googleClientCache() {
+		return new GoogleClientCache(usersConnectionRepository());
+	}
+
+	/**
+	 * A proxy to the current user's primary Google account, which looks up the user's cached API binding on each call.
+	 * Calls throw NotConnectedException if the user is not connected to Google.
 	 */
 	@Bean
-	@Scope(value="request", proxyMode=ScopedProxyMode.INTERFACES)	
 	public Google google() {
-	    return connectionRepository().getPrimaryConnection(Google.class).getApi();
+		final GoogleClientCache clients = googleClientCache();
+		return ProxyFactory.getProxy(Google.class, new TargetSource() {
+			public Class<?> getTargetClass() {
+				return Google.class;
+			}
+			public boolean isStatic() {
+				return false;
+			}
+			public Object getTarget() {
+				return clients.getCurrentUserClient();
+			}
+			public void releaseTarget(Object target) {
+			}
+		});
 	}
 	
 	/**
@@ -102,9 +155,40 @@ public class SocialConfig {
 	@Bean
 	public ProviderSignInController providerSignInController() {
 		ProviderSignInController controller = new ProviderSignInController(connectionFactoryLocator(), usersConnectionRepository(),
-				new SimpleSignInAdapter());
+				new SimpleSignInAdapter(environment.getProperty("hrm.cookie.secret")));
 		controller.addSignInInterceptor(new IncludeEmailProviderSignInInterceptor());
 		return controller;
 	}
 
+	// internal helpers
+
+	/**
+	 * @return The largest numeric userId stored, or 0 if there are none. Ids which are not numbers, such as
+	 * those given in cluster mode, are skipped rather than cast, which would fail on some databases.
+	 */
+	private long lastNumericUserId() {
+		long lastUserId = 0;
+		for (String userId : new JdbcTemplate(dataSource).queryForList("select distinct userId from UserConnection", String.class)) {
+			try {
+				lastUserId = Math.max(lastUserId, Long.parseLong(userId));
+			} catch (NumberFormatException e) {
+				// Not one of our numbered userIds
+			}
+		}
+		return lastUserId;
+	}
+
+	private boolean isCluster() {
+		if (!environment.getProperty("hrm.cluster.enabled", Boolean.class, false)) {
+			return false;
+		}
+		if (environment.getProperty("hrm.db.url") == null) {
+			throw new IllegalStateException("hrm.db.url must be set to a database shared by every instance");
+		}
+		if (environment.getProperty("hrm.cookie.secret") == null) {
+			throw new IllegalStateException("hrm.cookie.secret must be set to a secret shared by every instance");
+		}
+		return true;
+	}
+
 }
\ No newline at end of file
@@ -21,7 +21,10 @@ import javax.inject.Inject;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.quickstart.user.GoogleClientCache;
+import org.springframework.social.quickstart.user.TokenRefresher;
 import org.springframework.social.quickstart.user.UserInterceptor;
 import org.springframework.web.multipart.MultipartResolver;
 import org.springframework.web.multipart.commons.CommonsMultipartResolver;
@@ -41,7 +44,7 @@ public class WebMvcConfig extends WebMvcConfigurerAdapter {
 
 	@Bean
 	public UserInterceptor userInterceptor() {
-		return new UserInterceptor(usersConnectionRepository);
+		return new UserInterceptor(usersConnectionRepository, tokenRefresher, googleClientCache, environment.getProperty("hrm.cookie.secret"));
 	}
 	
 //	@Bean
@@ -83,4 +86,10 @@ public class WebMvcConfig extends WebMvcConfigurerAdapter {
 
 	private @Inject UsersConnectionRepository usersConnectionRepository;
 
+	private @Inject TokenRefresher tokenRefresher;
+
+	private @Inject GoogleClientCache googleClientCache;
+
+	private @Inject Environment environment;
+
 }
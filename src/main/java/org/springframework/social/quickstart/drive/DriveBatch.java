@@ -0,0 +1,125 @@
+package org.springframework.social.quickstart.drive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stars, trashes or deletes several Drive files at once.
+ * <p>
+ * Each file is still a separate Drive call, but the calls are made in parallel on a fixed pool of threads
+ * which is shared by all users, so a large selection takes a few round trips rather than one per file,
+ * without any one request being able to flood Drive.
+ */
+public class DriveBatch {
+
+	public enum Action {
+		STAR, UNSTAR, TRASH, UNTRASH, DELETE
+	}
+
+	/**
+	 * The outcome of the action for one file
+	 */
+	public static final class Result {
+
+		private final String fileId;
+		private final String error;
+
+		Result(String fileId, String error) {
+			this.fileId = fileId;
+			this.error = error;
+		}
+
+		public String getFileId() {
+			return fileId;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * @return Why the action failed, or null if it succeeded
+		 */
+		public String getError() {
+			return error;
+		}
+
+	}
+
+	private final DriveMetadataClient driveMetadata;
+	private final ExecutorService executor;
+
+	/**
+	 * @param threads Number of Drive calls to make at the same time
+	 */
+	public DriveBatch(DriveMetadataClient driveMetadata, int threads) {
+		this.driveMetadata = driveMetadata;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "hrm-drive-batch-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Apply the action to each of the files, waiting until all of them are done
+	 * @return The result for each file, in the same order as the ids
+	 */
+	public List<Result> apply(final String accessToken, List<String> fileIds, final Action action) throws InterruptedException {
+		List<Callable<Result>> calls = new ArrayList<Callable<Result>>(fileIds.size());
+		for (final String fileId : fileIds) {
+			calls.add(new Callable<Result>() {
+				public Result call() throws Exception {
+					apply(accessToken, fileId, action);
+					return new Result(fileId, null);
+				}
+			});
+		}
+		List<Future<Result>> futures = executor.invokeAll(calls);
+		List<Result> results = new ArrayList<Result>(fileIds.size());
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				results.add(new Result(fileIds.get(i), cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName()));
+			}
+		}
+		return results;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void apply(String accessToken, String fileId, Action action) throws Exception {
+		switch (action) {
+		case STAR:
+			driveMetadata.setStarred(accessToken, fileId, true);
+			break;
+		case UNSTAR:
+			driveMetadata.setStarred(accessToken, fileId, false);
+			break;
+		case TRASH:
+			driveMetadata.trash(accessToken, fileId);
+			break;
+		case UNTRASH:
+			driveMetadata.untrash(accessToken, fileId);
+			break;
+		case DELETE:
+			driveMetadata.delete(accessToken, fileId);
+			break;
+		}
+	}
+
+}
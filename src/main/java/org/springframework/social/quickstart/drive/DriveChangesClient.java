@@ -0,0 +1,179 @@
+package org.springframework.social.quickstart.drive;
+
+import static org.springframework.social.quickstart.drive.DriveRequests.getText;
+import static org.springframework.social.quickstart.drive.DriveRequests.parseDate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.utils.URIBuilder;
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Reads HRM spreadsheets and changes to them from the Drive API.
+ * <p>
+ * The Google API binding has no support for the changes feed, so the requests are made directly. The
+ * API address can be changed so that a local stand-in can be used in place of Drive.
+ */
+public class DriveChangesClient {
+
+	private static final int MAX_RESULTS = 1000;
+	private static final String FILE_FIELDS = "id,title,mimeType,modifiedDate,lastViewedByMeDate,labels,properties";
+
+	private final DriveRequests requests;
+
+	/**
+	 * A page of files read from Drive
+	 */
+	public static final class Page {
+
+		private final List<IndexedFile> files;
+		private final List<String> removedIds;
+		private final String nextPageToken;
+		private final long largestChangeId;
+
+		Page(List<IndexedFile> files, List<String> removedIds, String nextPageToken, long largestChangeId) {
+			this.files = Collections.unmodifiableList(files);
+			this.removedIds = Collections.unmodifiableList(removedIds);
+			this.nextPageToken = nextPageToken;
+			this.largestChangeId = largestChangeId;
+		}
+
+		/**
+		 * @return HRM spreadsheets which have been added or changed
+		 */
+		public List<IndexedFile> getFiles() {
+			return files;
+		}
+
+		/**
+		 * @return Ids of files which have been deleted, or are no longer HRM spreadsheets
+		 */
+		public List<String> getRemovedIds() {
+			return removedIds;
+		}
+
+		/**
+		 * @return Token for the next page, or null if this is the last page
+		 */
+		public String getNextPageToken() {
+			return nextPageToken;
+		}
+
+		/**
+		 * @return The largest change id, or 0 if the response did not include it
+		 */
+		public long getLargestChangeId() {
+			return largestChangeId;
+		}
+
+	}
+
+	/**
+	 * @param apiUrl Address of the Drive v2 API, such as https://www.googleapis.com/drive/v2
+	 */
+	public DriveChangesClient(HttpClient httpClient, String apiUrl) {
+		this.requests = new DriveRequests(httpClient, apiUrl);
+	}
+
+	/**
+	 * @return The id of the latest change to the user's Drive
+	 */
+	public long getLargestChangeId(String accessToken) throws IOException {
+		URIBuilder uri = requests.newUri("/about").addParameter("fields", "largestChangeId");
+		return requests.get(uri, accessToken).path("largestChangeId").asLong();
+	}
+
+	/**
+	 * Read a page of the user's spreadsheets, for building the index from scratch
+	 * @param pageToken Token of the page to read, or null for the first page
+	 */
+	public Page getFiles(String accessToken, String pageToken) throws IOException {
+		URIBuilder uri = requests.newUri("/files")
+			.addParameter("q", "mimeType='" + IndexedFile.MIME_TYPE + "'")
+			.addParameter("maxResults", String.valueOf(MAX_RESULTS))
+			.addParameter("fields", "nextPageToken,items(" + FILE_FIELDS + ")");
+		if (pageToken != null) {
+			uri.addParameter("pageToken", pageToken);
+		}
+		JsonNode root = requests.get(uri, accessToken);
+		List<IndexedFile> files = new ArrayList<IndexedFile>();
+		for (JsonNode item : root.path("items")) {
+			IndexedFile file = toIndexedFile(item);
+			if (file != null) {
+				files.add(file);
+			}
+		}
+		return new Page(files, Collections.<String>emptyList(), getText(root, "nextPageToken"), 0);
+	}
+
+	/**
+	 * Read a page of changes to the user's Drive
+	 * @param startChangeId Id of the first change to read
+	 * @param pageToken Token of the page to read, or null for the first page
+	 */
+	public Page getChanges(String accessToken, long startChangeId, String pageToken) throws IOException {
+		URIBuilder uri = requests.newUri("/changes")
+			.addParameter("startChangeId", String.valueOf(startChangeId))
+			.addParameter("includeDeleted", "true")
+			.addParameter("includeSubscribed", "false")
+			.addParameter("maxResults", String.valueOf(MAX_RESULTS))
+			.addParameter("fields", "largestChangeId,nextPageToken,items(fileId,deleted,file(" + FILE_FIELDS + "))");
+		if (pageToken != null) {
+			uri.addParameter("pageToken", pageToken);
+		}
+		JsonNode root = requests.get(uri, accessToken);
+		List<IndexedFile> files = new ArrayList<IndexedFile>();
+		List<String> removedIds = new ArrayList<String>();
+		for (JsonNode item : root.path("items")) {
+			IndexedFile file = item.path("deleted").asBoolean() ? null : toIndexedFile(item.path("file"));
+			if (file != null) {
+				files.add(file);
+			} else {
+				removedIds.add(item.path("fileId").asText());
+			}
+		}
+		return new Page(files, removedIds, getText(root, "nextPageToken"), root.path("largestChangeId").asLong());
+	}
+
+	/**
+	 * @return The file as it should be indexed, or null if it is not a spreadsheet or is an unused spare
+	 */
+	private static IndexedFile toIndexedFile(JsonNode item) throws IOException {
+		if (item.isMissingNode() || !IndexedFile.MIME_TYPE.equals(getText(item, "mimeType"))) {
+			return null;
+		}
+		String hrmType = null, hrmRegion = null, spareType = null;
+		Double hrmVersion = null;
+		for (JsonNode property : item.path("properties")) {
+			String key = getText(property, "key");
+			String value = getText(property, "value");
+			if (value == null) {
+				continue;
+			}
+			if ("hrmType".equals(key)) {
+				hrmType = value;
+			} else if (TemplatePool.DRIVE_PROP_SPARE_TYPE.equals(key)) {
+				spareType = value;
+			} else if ("hrmRegion".equals(key)) {
+				hrmRegion = value;
+			} else if ("hrmVersion".equals(key)) {
+				try {
+					hrmVersion = Double.valueOf(value);
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		if (TemplatePool.isUnusedSpare(spareType)) {
+			return null;
+		}
+		JsonNode labels = item.path("labels");
+		return new IndexedFile(getText(item, "id"), getText(item, "title"), hrmType, hrmRegion, hrmVersion,
+				parseDate(getText(item, "modifiedDate")), labels.path("starred").asBoolean(),
+				labels.path("trashed").asBoolean(), getText(item, "lastViewedByMeDate") != null);
+	}
+
+}
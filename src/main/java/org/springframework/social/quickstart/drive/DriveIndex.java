@@ -0,0 +1,337 @@
+package org.springframework.social.quickstart.drive;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Local index of each user's spreadsheets, so that listing their HRM spreadsheets and searching all of
+ * their spreadsheets by title does not need a Drive query.
+ * <p>
+ * The first sync for a user reads all of their spreadsheets. After that only the changes since the
+ * stored change id are read from the Drive changes feed. Syncs run in the background, so listings are
+ * answered from the index as it stands. Changes made through the application are written to the index
+ * straight away, so they show up before the next sync.
+ */
+public class DriveIndex {
+
+	private static final Log logger = LogFactory.getLog(DriveIndex.class);
+
+	/** Prefix of the page tokens of the index, which keeps them apart from Drive page tokens */
+	private static final String PAGE_TOKEN_PREFIX = "index:";
+
+	private static final String FILE_COLUMNS = "userId, id, title, titleLower, hrmType, hrmRegion, hrmVersion, modified, starred, trashed, viewed";
+	private static final String FILE_UPDATE = "update DriveIndexFile set title = ?, titleLower = ?, hrmType = ?, hrmRegion = ?," +
+			" hrmVersion = ?, modified = ?, starred = ?, trashed = ?, viewed = ? where userId = ? and id = ?";
+	private static final String FILE_INSERT = "insert into DriveIndexFile (" + FILE_COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	/** Escape character for like patterns, which is not special in the string literals of any database */
+	private static final char LIKE_ESCAPE = '!';
+
+	private static final RowMapper<IndexedFile> FILE_MAPPER = new RowMapper<IndexedFile>() {
+		public IndexedFile mapRow(ResultSet rs, int rowNum) throws SQLException {
+			double version = rs.getDouble("hrmVersion");
+			Double hrmVersion = rs.wasNull() ? null : version;
+			return new IndexedFile(rs.getString("id"), rs.getString("title"), rs.getString("hrmType"),
+					rs.getString("hrmRegion"), hrmVersion, rs.getTimestamp("modified"),
+					rs.getBoolean("starred"), rs.getBoolean("trashed"), rs.getBoolean("viewed"));
+		}
+	};
+
+	private final JdbcTemplate jdbcTemplate;
+	private final DriveChangesClient changesClient;
+	private final long syncIntervalMillis;
+	private final ConcurrentMap<String, Long> lastSynced = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Object> syncLocks = new ConcurrentHashMap<String, Object>();
+	private final Set<String> syncing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ExecutorService executor;
+
+	/**
+	 * @param syncIntervalMillis How long after a sync the index is used without checking Drive for changes
+	 * @param syncThreads Number of background syncs which can run at once, shared by all users
+	 */
+	public DriveIndex(DataSource dataSource, DriveChangesClient changesClient, long syncIntervalMillis, int syncThreads) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.changesClient = changesClient;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.executor = Executors.newFixedThreadPool(syncThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "hrm-drive-index");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return True if the user's index has been built, even if it has not been synced recently
+	 */
+	public boolean isBuilt(String userId) {
+		return lastSynced.containsKey(userId) || !jdbcTemplate.queryForList(
+				"select nextChangeId from DriveIndexState where userId = ?", Long.class, userId).isEmpty();
+	}
+
+	/**
+	 * Bring the user's index up to date with Drive in the background, unless it was synced within the sync
+	 * interval or a sync is already running
+	 */
+	public void syncInBackground(final String userId, final String accessToken) {
+		if (!isSyncDue(userId) || !syncing.add(userId)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						sync(userId, accessToken);
+					} catch (Exception e) {
+						logger.warn("Could not sync Drive index for user " + userId, e);
+					} finally {
+						syncing.remove(userId);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			syncing.remove(userId);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Bring the user's index up to date with Drive, unless it was synced within the sync interval
+	 */
+	public void sync(String userId, String accessToken) throws IOException {
+		if (!isSyncDue(userId)) {
+			return;
+		}
+		Object lock = syncLocks.get(userId);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = syncLocks.putIfAbsent(userId, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		synchronized (lock) {
+			// Another request may have synced while this one waited for the lock
+			if (!isSyncDue(userId)) {
+				return;
+			}
+			long started = System.currentTimeMillis();
+			List<Long> changeIds = jdbcTemplate.queryForList(
+					"select nextChangeId from DriveIndexState where userId = ?", Long.class, userId);
+			long nextChangeId = changeIds.isEmpty() ? rebuild(userId, accessToken) : applyChanges(userId, accessToken, changeIds.get(0));
+			saveNextChangeId(userId, nextChangeId);
+			lastSynced.put(userId, started);
+		}
+	}
+
+	private boolean isSyncDue(String userId) {
+		Long synced = lastSynced.get(userId);
+		return synced == null || System.currentTimeMillis() - synced >= syncIntervalMillis;
+	}
+
+	/**
+	 * Check Drive for changes the next time the user's files are listed, for example after a new file
+	 * has been created
+	 */
+	public void requestSync(String userId) {
+		lastSynced.remove(userId);
+	}
+
+	/**
+	 * Find the user's spreadsheets which are not in the trash, most recently modified first
+	 * @param hrmType Type of spreadsheets to list, used when there is no title to search for
+	 * @param titleContains Text to search for in spreadsheet titles, or null to list by type
+	 * @param pageToken Token of the page to return, as given by an earlier page, or null for the first page
+	 */
+	public DriveIndexPage find(String userId, String hrmType, String titleContains, String pageToken, int pageSize) {
+		int offset = 0;
+		if (isPageToken(pageToken)) {
+			try {
+				offset = Math.max(0, Integer.parseInt(pageToken.substring(PAGE_TOKEN_PREFIX.length())));
+			} catch (NumberFormatException e) {
+			}
+		}
+		String filter;
+		Object filterValue;
+		if (titleContains != null && titleContains.length() > 0) {
+			filter = "titleLower like ? escape '" + LIKE_ESCAPE + "'";
+			filterValue = "%" + escapeLike(titleContains.toLowerCase(Locale.ENGLISH)) + "%";
+		} else {
+			filter = "hrmType = ?";
+			filterValue = hrmType;
+		}
+		// Read one more than a page to find out whether there is a next page
+		List<IndexedFile> items = jdbcTemplate.query("select " + FILE_COLUMNS + " from DriveIndexFile" +
+				" where userId = ? and trashed = false and " + filter +
+				" order by modified desc, id limit ? offset ?", FILE_MAPPER, userId, filterValue, pageSize + 1, offset);
+		String nextPageToken = null;
+		if (items.size() > pageSize) {
+			items = new ArrayList<IndexedFile>(items.subList(0, pageSize));
+			nextPageToken = PAGE_TOKEN_PREFIX + (offset + pageSize);
+		}
+		return new DriveIndexPage(items, nextPageToken);
+	}
+
+	/**
+	 * @return True if the token is a page token of the index rather than of a Drive listing
+	 */
+	public static boolean isPageToken(String pageToken) {
+		return pageToken != null && pageToken.startsWith(PAGE_TOKEN_PREFIX);
+	}
+
+	public void setStarred(String userId, String fileId, boolean starred) {
+		jdbcTemplate.update("update DriveIndexFile set starred = ? where userId = ? and id = ?", starred, userId, fileId);
+	}
+
+	public void setTrashed(String userId, String fileId, boolean trashed) {
+		jdbcTemplate.update("update DriveIndexFile set trashed = ? where userId = ? and id = ?", trashed, userId, fileId);
+	}
+
+	public void remove(String userId, String fileId) {
+		jdbcTemplate.update("delete from DriveIndexFile where userId = ? and id = ?", userId, fileId);
+	}
+
+	/**
+	 * Replace the user's index with all of their spreadsheets
+	 * @return Id of the first change which is not in the index
+	 */
+	private long rebuild(String userId, String accessToken) throws IOException {
+		// Read the change id first, so that changes made while the files are read are applied by the next sync
+		long largestChangeId = changesClient.getLargestChangeId(accessToken);
+		jdbcTemplate.update("delete from DriveIndexFile where userId = ?", userId);
+		String pageToken = null;
+		do {
+			DriveChangesClient.Page page = changesClient.getFiles(accessToken, pageToken);
+			store(userId, page);
+			pageToken = page.getNextPageToken();
+		} while (pageToken != null);
+		return largestChangeId + 1;
+	}
+
+	/**
+	 * Apply the changes since the last sync to the user's index
+	 * @return Id of the first change which is not in the index
+	 */
+	private long applyChanges(String userId, String accessToken, long startChangeId) throws IOException {
+		long nextChangeId = startChangeId;
+		String pageToken = null;
+		do {
+			DriveChangesClient.Page page = changesClient.getChanges(accessToken, startChangeId, pageToken);
+			store(userId, page);
+			if (page.getLargestChangeId() > 0) {
+				nextChangeId = Math.max(nextChangeId, page.getLargestChangeId() + 1);
+			}
+			pageToken = page.getNextPageToken();
+		} while (pageToken != null);
+		return nextChangeId;
+	}
+
+	private void store(String userId, DriveChangesClient.Page page) {
+		// Keyed on file id, as a page could list the same file twice
+		Map<String, Object[]> rowsById = new LinkedHashMap<String, Object[]>();
+		for (IndexedFile file : page.getFiles()) {
+			String title = file.getTitle();
+			rowsById.put(file.getId(), new Object[] { userId, file.getId(), title, title != null ? title.toLowerCase(Locale.ENGLISH) : null,
+					file.getHrmType(), file.getHrmRegion(), file.getHrmVersion(),
+					file.getModifiedDate() != null ? new Timestamp(file.getModifiedDate().getTime()) : null,
+					file.isStarred(), file.isTrashed(), file.isViewed() });
+		}
+		List<Object[]> rows = new ArrayList<Object[]>(rowsById.values());
+		if (!rows.isEmpty()) {
+			// Update the files which are already indexed, then insert the rest
+			List<Object[]> updates = new ArrayList<Object[]>(rows.size());
+			for (Object[] row : rows) {
+				updates.add(toUpdate(row));
+			}
+			int[] counts = jdbcTemplate.batchUpdate(FILE_UPDATE, updates);
+			List<Object[]> inserts = new ArrayList<Object[]>();
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0) {
+					inserts.add(rows.get(i));
+				}
+			}
+			if (!inserts.isEmpty()) {
+				try {
+					jdbcTemplate.batchUpdate(FILE_INSERT, inserts);
+				} catch (DuplicateKeyException e) {
+					// Another instance indexed some of the files at the same time
+					for (Object[] row : inserts) {
+						store(row);
+					}
+				}
+			}
+		}
+		List<Object[]> removed = new ArrayList<Object[]>(page.getRemovedIds().size());
+		for (String fileId : page.getRemovedIds()) {
+			removed.add(new Object[] { userId, fileId });
+		}
+		if (!removed.isEmpty()) {
+			jdbcTemplate.batchUpdate("delete from DriveIndexFile where userId = ? and id = ?", removed);
+		}
+	}
+
+	private void store(Object[] row) {
+		Object[] update = toUpdate(row);
+		if (jdbcTemplate.update(FILE_UPDATE, update) == 0) {
+			jdbcTemplate.update(FILE_INSERT, row);
+		}
+	}
+
+	/**
+	 * @return Parameters of the update statement for a row of the insert statement
+	 */
+	private static Object[] toUpdate(Object[] row) {
+		Object[] update = new Object[row.length];
+		System.arraycopy(row, 2, update, 0, row.length - 2);
+		update[row.length - 2] = row[0];
+		update[row.length - 1] = row[1];
+		return update;
+	}
+
+	/**
+	 * Record the id of the first change which is not in the user's index
+	 */
+	private void saveNextChangeId(String userId, long nextChangeId) {
+		if (jdbcTemplate.update("update DriveIndexState set nextChangeId = ? where userId = ?", nextChangeId, userId) == 0) {
+			try {
+				jdbcTemplate.update("insert into DriveIndexState (userId, nextChangeId) values (?, ?)", userId, nextChangeId);
+			} catch (DuplicateKeyException e) {
+				// Another instance built the index at the same time
+				jdbcTemplate.update("update DriveIndexState set nextChangeId = ? where userId = ?", nextChangeId, userId);
+			}
+		}
+	}
+
+	private static String escapeLike(String text) {
+		String escape = String.valueOf(LIKE_ESCAPE);
+		return text.replace(escape, escape + escape).replace("%", escape + "%").replace("_", escape + "_");
+	}
+
+}
@@ -0,0 +1,27 @@
+package org.springframework.social.quickstart.drive;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of files from the {@link DriveIndex}, in the same shape as a {@link DriveListing}.
+ */
+public final class DriveIndexPage {
+
+	private final List<IndexedFile> items;
+	private final String nextPageToken;
+
+	public DriveIndexPage(List<IndexedFile> items, String nextPageToken) {
+		this.items = Collections.unmodifiableList(items);
+		this.nextPageToken = nextPageToken;
+	}
+
+	public List<IndexedFile> getItems() {
+		return items;
+	}
+
+	public String getNextPageToken() {
+		return nextPageToken;
+	}
+
+}
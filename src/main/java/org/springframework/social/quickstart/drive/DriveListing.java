@@ -0,0 +1,29 @@
+package org.springframework.social.quickstart.drive;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.social.google.api.drive.DriveFile;
+
+/**
+ * A page of Drive files as shown on the listing page, which can be kept in the {@link DriveListingCache}.
+ */
+public final class DriveListing {
+
+	private final List<DriveFile> items;
+	private final String nextPageToken;
+
+	public DriveListing(List<DriveFile> items, String nextPageToken) {
+		this.items = Collections.unmodifiableList(items);
+		this.nextPageToken = nextPageToken;
+	}
+
+	public List<DriveFile> getItems() {
+		return items;
+	}
+
+	public String getNextPageToken() {
+		return nextPageToken;
+	}
+
+}
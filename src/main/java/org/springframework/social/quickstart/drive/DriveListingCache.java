@@ -0,0 +1,157 @@
+package org.springframework.social.quickstart.drive;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.social.google.api.drive.DriveFile;
+
+/**
+ * Short-lived cache of the Drive listing pages seen by each user, so that paging back and forth
+ * does not repeat the same Drive query.
+ * <p>
+ * Pages are keyed on the query and page token. Changes made through the application update the cached
+ * pages straight away: a starred file is replaced with its new version, a trashed or deleted file is
+ * removed, and a new file clears the user's pages as it could appear on any of them. Changes made
+ * elsewhere show up once the pages expire.
+ */
+public class DriveListingCache {
+
+	private final long ttlMillis;
+	private final int maxPagesPerUser;
+	private final ConcurrentMap<String, Map<String, CachedPage>> users = new ConcurrentHashMap<String, Map<String, CachedPage>>();
+
+	private static final class CachedPage {
+
+		private final DriveListing listing;
+		private final long expires;
+
+		CachedPage(DriveListing listing, long expires) {
+			this.listing = listing;
+			this.expires = expires;
+		}
+
+	}
+
+	/**
+	 * @param ttlMillis How long a page is kept before Drive is queried again
+	 * @param maxPagesPerUser Number of pages kept for each user, after which the least recently used are removed
+	 */
+	public DriveListingCache(long ttlMillis, int maxPagesPerUser) {
+		this.ttlMillis = ttlMillis;
+		this.maxPagesPerUser = maxPagesPerUser;
+	}
+
+	/**
+	 * @return Key of a listing page
+	 */
+	public static String key(String hrmType, String titleContains, String parentId, String pageToken) {
+		return hrmType + "|" + titleContains + "|" + parentId + "|" + pageToken;
+	}
+
+	/**
+	 * @return The cached page, or null if there is none or it has expired
+	 */
+	public DriveListing get(String userId, String key) {
+		Map<String, CachedPage> pages = users.get(userId);
+		if (pages == null) {
+			return null;
+		}
+		synchronized (pages) {
+			CachedPage entry = pages.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expires < System.currentTimeMillis()) {
+				pages.remove(key);
+				return null;
+			}
+			return entry.listing;
+		}
+	}
+
+	public void put(String userId, String key, DriveListing listing) {
+		Map<String, CachedPage> pages = getPages(userId);
+		long now = System.currentTimeMillis();
+		synchronized (pages) {
+			for (Iterator<CachedPage> entries = pages.values().iterator(); entries.hasNext();) {
+				if (entries.next().expires < now) {
+					entries.remove();
+				}
+			}
+			pages.put(key, new CachedPage(listing, now + ttlMillis));
+		}
+	}
+
+	/**
+	 * Replace a file on the cached pages with its new version, after it has been starred or unstarred
+	 */
+	public void updateFile(String userId, DriveFile file) {
+		patchFile(userId, file.getId(), file);
+	}
+
+	/**
+	 * Remove a file from the cached pages, after it has been trashed or deleted
+	 */
+	public void removeFile(String userId, String fileId) {
+		patchFile(userId, fileId, null);
+	}
+
+	/**
+	 * Remove all of the cached pages for a user, after a file has been added
+	 */
+	public void invalidate(String userId) {
+		users.remove(userId);
+	}
+
+	private void patchFile(String userId, String fileId, DriveFile replacement) {
+		Map<String, CachedPage> pages = users.get(userId);
+		if (pages == null) {
+			return;
+		}
+		synchronized (pages) {
+			for (Map.Entry<String, CachedPage> page : pages.entrySet()) {
+				DriveListing listing = page.getValue().listing;
+				List<DriveFile> items = new ArrayList<DriveFile>(listing.getItems().size());
+				boolean changed = false;
+				for (DriveFile item : listing.getItems()) {
+					if (item.getId().equals(fileId)) {
+						changed = true;
+						if (replacement != null) {
+							items.add(replacement);
+						}
+					} else {
+						items.add(item);
+					}
+				}
+				if (changed) {
+					page.setValue(new CachedPage(new DriveListing(items, listing.getNextPageToken()), page.getValue().expires));
+				}
+			}
+		}
+	}
+
+	private Map<String, CachedPage> getPages(String userId) {
+		Map<String, CachedPage> pages = users.get(userId);
+		if (pages == null) {
+			Map<String, CachedPage> newPages = new LinkedHashMap<String, CachedPage>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+					return size() > maxPagesPerUser;
+				}
+			};
+			pages = users.putIfAbsent(userId, newPages);
+			if (pages == null) {
+				pages = newPages;
+			}
+		}
+		return pages;
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.springframework.social.quickstart.drive;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.social.google.api.drive.FileProperty;
+
+/**
+ * A Drive file together with its custom properties, as read by {@link DriveMetadataClient} in a single request.
+ */
+public final class DriveMetadata {
+
+	private final String id;
+	private final String title;
+	private final String mimeType;
+	private final Date createdDate;
+	private final Date modifiedDate;
+	private final String lastModifyingUserName;
+	private final String thumbnailLink;
+	private final Map<String, String> exportLinks;
+	private final List<FileProperty> properties;
+
+	DriveMetadata(String id, String title, String mimeType, Date createdDate, Date modifiedDate, String lastModifyingUserName,
+			String thumbnailLink, Map<String, String> exportLinks, List<FileProperty> properties) {
+		this.id = id;
+		this.title = title;
+		this.mimeType = mimeType;
+		this.createdDate = createdDate;
+		this.modifiedDate = modifiedDate;
+		this.lastModifyingUserName = lastModifyingUserName;
+		this.thumbnailLink = thumbnailLink;
+		this.exportLinks = Collections.unmodifiableMap(exportLinks);
+		this.properties = Collections.unmodifiableList(properties);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public Date getCreatedDate() {
+		return createdDate;
+	}
+
+	public Date getModifiedDate() {
+		return modifiedDate;
+	}
+
+	public String getLastModifyingUserName() {
+		return lastModifyingUserName;
+	}
+
+	public String getThumbnailLink() {
+		return thumbnailLink;
+	}
+
+	/**
+	 * @return Export links keyed on MIME type
+	 */
+	public Map<String, String> getExportLinks() {
+		return exportLinks;
+	}
+
+	public List<FileProperty> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return The value of the custom property with the given key, or null if the file does not have it
+	 */
+	public String getProperty(String key) {
+		for (FileProperty property : properties) {
+			if (key.equals(property.getKey())) {
+				return property.getValue();
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,155 @@
+package org.springframework.social.quickstart.drive;
+
+import static org.springframework.social.quickstart.drive.DriveRequests.getText;
+import static org.springframework.social.quickstart.drive.DriveRequests.parseDate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.utils.URIBuilder;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.springframework.social.google.api.drive.FileProperty;
+import org.springframework.social.google.api.drive.PropertyVisibility;
+
+/**
+ * Reads and copies Drive files together with their custom properties.
+ * <p>
+ * The Google API binding reads a file and its properties in separate requests, and can only add properties
+ * to a copy one at a time after it has been made. Here the properties are included in the file through a
+ * field projection, and passed in the body of the copy request, so that each is a single request.
+ */
+public class DriveMetadataClient {
+
+	private static final String FILE_FIELDS = "id,title,mimeType,createdDate,modifiedDate,lastModifyingUserName," +
+			"thumbnailLink,exportLinks,properties(key,value,visibility)";
+
+	private final DriveRequests requests;
+
+	/**
+	 * @param apiUrl Address of the Drive v2 API, such as https://www.googleapis.com/drive/v2
+	 */
+	public DriveMetadataClient(HttpClient httpClient, String apiUrl) {
+		this.requests = new DriveRequests(httpClient, apiUrl);
+	}
+
+	/**
+	 * Read a file and its properties
+	 */
+	public DriveMetadata getFile(String accessToken, String fileId) throws IOException {
+		URIBuilder uri = requests.newUri("/files/" + fileId).addParameter("fields", FILE_FIELDS);
+		return toMetadata(requests.get(uri, accessToken));
+	}
+
+	/**
+	 * Copy a file, giving the copy the properties listed
+	 * @param parentIds Folders to put the copy in
+	 * @param properties Properties of the copy, which are added to any copied from the original
+	 */
+	public DriveMetadata copy(String accessToken, String fileId, String[] parentIds, String title,
+			List<FileProperty> properties) throws IOException {
+		URIBuilder uri = requests.newUri("/files/" + fileId + "/copy").addParameter("fields", FILE_FIELDS);
+		ObjectNode body = requests.getMapper().createObjectNode();
+		body.put("title", title);
+		ArrayNode parentsNode = body.putArray("parents");
+		for (String parentId : parentIds) {
+			parentsNode.addObject().put("id", parentId);
+		}
+		putProperties(body, properties);
+		return toMetadata(requests.post(uri, accessToken, body));
+	}
+
+	/**
+	 * Move a file from one folder to another, giving it a new title and adding the properties listed
+	 */
+	public DriveMetadata move(String accessToken, String fileId, String fromParentId, String toParentId, String title,
+			List<FileProperty> properties) throws IOException {
+		URIBuilder uri = requests.newUri("/files/" + fileId)
+			.addParameter("removeParents", fromParentId)
+			.addParameter("addParents", toParentId)
+			.addParameter("fields", FILE_FIELDS);
+		ObjectNode body = requests.getMapper().createObjectNode();
+		body.put("title", title);
+		putProperties(body, properties);
+		return toMetadata(requests.patch(uri, accessToken, body));
+	}
+
+	/**
+	 * Create a folder in the root of the user's Drive
+	 * @return Id of the new folder
+	 */
+	public String createFolder(String accessToken, String title) throws IOException {
+		URIBuilder uri = requests.newUri("/files").addParameter("fields", "id");
+		ObjectNode body = requests.getMapper().createObjectNode();
+		body.put("title", title);
+		body.put("mimeType", "application/vnd.google-apps.folder");
+		return getText(requests.post(uri, accessToken, body), "id");
+	}
+
+	/**
+	 * Move a file to the trash
+	 */
+	public void trash(String accessToken, String fileId) throws IOException {
+		URIBuilder uri = requests.newUri("/files/" + fileId + "/trash").addParameter("fields", "id");
+		requests.post(uri, accessToken, requests.getMapper().createObjectNode());
+	}
+
+	/**
+	 * Restore a file from the trash
+	 */
+	public void untrash(String accessToken, String fileId) throws IOException {
+		URIBuilder uri = requests.newUri("/files/" + fileId + "/untrash").addParameter("fields", "id");
+		requests.post(uri, accessToken, requests.getMapper().createObjectNode());
+	}
+
+	public void setStarred(String accessToken, String fileId, boolean starred) throws IOException {
+		URIBuilder uri = requests.newUri("/files/" + fileId).addParameter("fields", "id");
+		ObjectNode body = requests.getMapper().createObjectNode();
+		body.putObject("labels").put("starred", starred);
+		requests.patch(uri, accessToken, body);
+	}
+
+	/**
+	 * Delete a file permanently, without moving it to the trash
+	 */
+	public void delete(String accessToken, String fileId) throws IOException {
+		requests.delete(requests.newUri("/files/" + fileId), accessToken);
+	}
+
+	private static void putProperties(ObjectNode body, List<FileProperty> properties) {
+		ArrayNode propertiesNode = body.putArray("properties");
+		for (FileProperty property : properties) {
+			ObjectNode propertyNode = propertiesNode.addObject();
+			propertyNode.put("key", property.getKey());
+			propertyNode.put("value", property.getValue());
+			if (property.getVisibility() != null) {
+				propertyNode.put("visibility", property.getVisibility().name());
+			}
+		}
+	}
+
+	private static DriveMetadata toMetadata(JsonNode item) throws IOException {
+		Map<String, String> exportLinks = new LinkedHashMap<String, String>();
+		for (Iterator<Map.Entry<String, JsonNode>> it = item.path("exportLinks").getFields(); it.hasNext();) {
+			Map.Entry<String, JsonNode> link = it.next();
+			exportLinks.put(link.getKey(), link.getValue().asText());
+		}
+		List<FileProperty> properties = new ArrayList<FileProperty>();
+		for (JsonNode property : item.path("properties")) {
+			// Drive makes properties private unless they are marked otherwise
+			PropertyVisibility visibility = "PUBLIC".equals(getText(property, "visibility")) ?
+					PropertyVisibility.PUBLIC : PropertyVisibility.PRIVATE;
+			properties.add(new FileProperty(getText(property, "key"), getText(property, "value"), visibility));
+		}
+		return new DriveMetadata(getText(item, "id"), getText(item, "title"), getText(item, "mimeType"),
+				parseDate(getText(item, "createdDate")), parseDate(getText(item, "modifiedDate")),
+				getText(item, "lastModifyingUserName"), getText(item, "thumbnailLink"), exportLinks, properties);
+	}
+
+}
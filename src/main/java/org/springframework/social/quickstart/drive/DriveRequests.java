@@ -0,0 +1,140 @@
+package org.springframework.social.quickstart.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.MissingNode;
+import org.springframework.social.ExpiredAuthorizationException;
+
+/**
+ * Makes JSON requests to the Drive v2 API, for the calls which the Google API binding does not support
+ * or cannot make in a single request.
+ */
+final class DriveRequests {
+
+	private final HttpClient httpClient;
+	private final String apiUrl;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * @param apiUrl Address of the Drive v2 API, such as https://www.googleapis.com/drive/v2
+	 */
+	DriveRequests(HttpClient httpClient, String apiUrl) {
+		this.httpClient = httpClient;
+		this.apiUrl = apiUrl.endsWith("/") ? apiUrl.substring(0, apiUrl.length() - 1) : apiUrl;
+	}
+
+	ObjectMapper getMapper() {
+		return mapper;
+	}
+
+	URIBuilder newUri(String path) throws IOException {
+		try {
+			return new URIBuilder(apiUrl + path);
+		} catch (URISyntaxException e) {
+			throw new IOException("Bad Drive API address " + apiUrl, e);
+		}
+	}
+
+	JsonNode get(URIBuilder uri, String accessToken) throws IOException {
+		return execute(new HttpGet(build(uri)), accessToken);
+	}
+
+	JsonNode post(URIBuilder uri, String accessToken, JsonNode body) throws IOException {
+		return execute(withBody(new HttpPost(build(uri)), body), accessToken);
+	}
+
+	JsonNode patch(URIBuilder uri, String accessToken, JsonNode body) throws IOException {
+		return execute(withBody(new HttpPatch(build(uri)), body), accessToken);
+	}
+
+	void delete(URIBuilder uri, String accessToken) throws IOException {
+		execute(new HttpDelete(build(uri)), accessToken);
+	}
+
+	private HttpEntityEnclosingRequestBase withBody(HttpEntityEnclosingRequestBase request, JsonNode body) throws IOException {
+		request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(body), ContentType.APPLICATION_JSON));
+		return request;
+	}
+
+	private URI build(URIBuilder uri) throws IOException {
+		try {
+			return uri.build();
+		} catch (URISyntaxException e) {
+			throw new IOException("Bad Drive API address " + apiUrl, e);
+		}
+	}
+
+	private JsonNode execute(HttpRequestBase request, String accessToken) throws IOException {
+		request.setHeader("Authorization", "Bearer " + accessToken);
+		HttpResponse resp = httpClient.execute(request);
+		HttpEntity entity = resp.getEntity();
+		if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_NO_CONTENT) {
+			EntityUtils.consumeQuietly(entity);
+			return MissingNode.getInstance();
+		}
+		if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+			// Reported the same way as by the Google API binding, so that the token can be refreshed
+			EntityUtils.consumeQuietly(entity);
+			throw new ExpiredAuthorizationException("google");
+		}
+		if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			EntityUtils.consumeQuietly(entity);
+			throw new IOException("Drive request failed: " + resp.getStatusLine());
+		}
+		if (entity == null) {
+			throw new IOException("Response entity is null!");
+		}
+		InputStream in = entity.getContent();
+		try {
+			return mapper.readTree(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	static String getText(JsonNode node, String field) {
+		JsonNode value = node.get(field);
+		return value != null && !value.isNull() ? value.asText() : null;
+	}
+
+	/**
+	 * Parse an RFC 3339 date as returned by Drive, which is always in UTC
+	 */
+	static Date parseDate(String text) throws IOException {
+		if (text == null) {
+			return null;
+		}
+		SimpleDateFormat format = new SimpleDateFormat(text.indexOf('.') > 0 ?
+				"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" : "yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try {
+			return format.parse(text);
+		} catch (ParseException e) {
+			throw new IOException("Bad date from Drive: " + text, e);
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.springframework.social.quickstart.drive;
+
+import java.util.Date;
+
+/**
+ * A spreadsheet held in the {@link DriveIndex}.
+ * <p>
+ * Has the same properties as a Drive file where the listing page uses them, so that pages from the
+ * index can be shown in place of pages from Drive.
+ */
+public final class IndexedFile {
+
+	public static final String MIME_TYPE = "application/vnd.google-apps.spreadsheet";
+
+	private final String id;
+	private final String title;
+	private final String hrmType;
+	private final String hrmRegion;
+	private final Double hrmVersion;
+	private final Date modifiedDate;
+	private final boolean starred;
+	private final boolean trashed;
+	private final boolean viewed;
+
+	public IndexedFile(String id, String title, String hrmType, String hrmRegion, Double hrmVersion, Date modifiedDate,
+			boolean starred, boolean trashed, boolean viewed) {
+		this.id = id;
+		this.title = title;
+		this.hrmType = hrmType;
+		this.hrmRegion = hrmRegion;
+		this.hrmVersion = hrmVersion;
+		this.modifiedDate = modifiedDate;
+		this.starred = starred;
+		this.trashed = trashed;
+		this.viewed = viewed;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return The HRM type, or null if the spreadsheet is not tagged with one
+	 */
+	public String getHrmType() {
+		return hrmType;
+	}
+
+	public String getHrmRegion() {
+		return hrmRegion;
+	}
+
+	/**
+	 * @return The HRM version, or null if the file does not have one
+	 */
+	public Double getHrmVersion() {
+		return hrmVersion;
+	}
+
+	public Date getModifiedDate() {
+		return modifiedDate;
+	}
+
+	public String getMimeType() {
+		return MIME_TYPE;
+	}
+
+	public boolean isFolder() {
+		return false;
+	}
+
+	public boolean isStarred() {
+		return starred;
+	}
+
+	public boolean isTrashed() {
+		return trashed;
+	}
+
+	public boolean isViewed() {
+		return viewed;
+	}
+
+}
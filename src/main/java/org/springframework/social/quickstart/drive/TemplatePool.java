@@ -0,0 +1,213 @@
+package org.springframework.social.quickstart.drive;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.social.google.api.drive.DriveFileQueryBuilder;
+import org.springframework.social.google.api.drive.FileProperty;
+import org.springframework.social.google.api.drive.PropertyVisibility;
+
+/**
+ * Creates new HRM spreadsheets from the templates, using spare copies which were made in advance.
+ * <p>
+ * Copying a template is the slowest Drive call that the application makes. When the pool is enabled, a
+ * few spare copies of each template are kept in a folder in each user's Drive, so that creating a file
+ * only has to rename one and move it into place. Spares are made in the background whenever a user is
+ * about to need one, and after one has been used. Spares older than the maximum age are trashed and
+ * replaced, so that changes to the templates are picked up.
+ * <p>
+ * Spares are tagged with a private property rather than the HRM type, so that they are not listed as
+ * HRM files, or found by title searches, until they are used.
+ */
+public class TemplatePool {
+
+	private static final Log logger = LogFactory.getLog(TemplatePool.class);
+
+	private static final String SPARE_FOLDER_TITLE = "HRM spare files";
+	static final String DRIVE_PROP_SPARE_TYPE = "hrmSpareType";
+	/** Value of the spare property once a spare has been used, since properties are not removed by a move */
+	static final String SPARE_TYPE_USED = "used";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final DriveMetadataClient driveMetadata;
+	private final Map<String, String> templateIds;
+	private final int sparesPerType;
+	private final long maxAgeMillis;
+	private final ExecutorService executor;
+	private final Set<String> refilling = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * @param templateIds Ids of the template spreadsheets, keyed on HRM type
+	 * @param sparesPerType Number of spare copies of each template to keep for each user, or 0 to always copy the template
+	 * @param maxAgeMillis Age after which spares are replaced with new copies
+	 */
+	public TemplatePool(DataSource dataSource, DriveMetadataClient driveMetadata, Map<String, String> templateIds,
+			int sparesPerType, long maxAgeMillis) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.driveMetadata = driveMetadata;
+		this.templateIds = templateIds;
+		this.sparesPerType = sparesPerType;
+		this.maxAgeMillis = maxAgeMillis;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "hrm-template-pool");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create a new HRM spreadsheet, from a spare if there is one or else by copying the template
+	 * @param hrmType Type of spreadsheet, which is recorded in its hrmType property
+	 * @param parentId Folder to create the spreadsheet in
+	 */
+	public DriveMetadata create(String userId, String accessToken, String hrmType, String title, String parentId) throws IOException {
+		String templateId = templateIds.get(hrmType);
+		if (templateId == null) {
+			throw new IllegalArgumentException("No template for HRM type " + hrmType);
+		}
+		List<FileProperty> properties = Collections.singletonList(new FileProperty("hrmType", hrmType, PropertyVisibility.PUBLIC));
+		if (sparesPerType > 0) {
+			try {
+				String folderId = getFolderId(userId);
+				String spareId;
+				while (folderId != null && (spareId = claimSpare(userId, hrmType)) != null) {
+					try {
+						return driveMetadata.move(accessToken, spareId, folderId, parentId, title, Arrays.asList(properties.get(0),
+								new FileProperty(DRIVE_PROP_SPARE_TYPE, SPARE_TYPE_USED, PropertyVisibility.PRIVATE)));
+					} catch (IOException e) {
+						// The user may have removed the spare, so try the next one
+						logger.warn("Could not use spare file " + spareId, e);
+					}
+				}
+			} finally {
+				refill(userId, accessToken);
+			}
+		}
+		return driveMetadata.copy(accessToken, templateId, new String[] { parentId }, title, properties);
+	}
+
+	/**
+	 * Leave out of a Drive query the spares which have not been used yet
+	 */
+	public DriveFileQueryBuilder excludeSpares(DriveFileQueryBuilder query) {
+		for (String hrmType : templateIds.keySet()) {
+			query.not().propertiesHas(DRIVE_PROP_SPARE_TYPE, hrmType, PropertyVisibility.PRIVATE);
+		}
+		return query;
+	}
+
+	/**
+	 * @param spareType Value of the spare property of a file, or null if it does not have one
+	 * @return True if the file is a spare which has not been used yet
+	 */
+	static boolean isUnusedSpare(String spareType) {
+		return spareType != null && !SPARE_TYPE_USED.equals(spareType);
+	}
+
+	/**
+	 * Make any spares which the user is missing in the background, for example when they open the page to
+	 * create a new file
+	 */
+	public void refill(final String userId, final String accessToken) {
+		if (sparesPerType <= 0 || !refilling.add(userId)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					fill(userId, accessToken);
+				} catch (Exception e) {
+					logger.warn("Could not make spare files for user " + userId, e);
+				} finally {
+					refilling.remove(userId);
+				}
+			}
+		});
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void fill(String userId, String accessToken) throws IOException {
+		Timestamp expiry = new Timestamp(System.currentTimeMillis() - maxAgeMillis);
+		for (String spareId : jdbcTemplate.queryForList("select fileId from TemplatePoolFile where userId = ? and created < ?",
+				String.class, userId, expiry)) {
+			if (jdbcTemplate.update("delete from TemplatePoolFile where userId = ? and fileId = ?", userId, spareId) > 0) {
+				try {
+					driveMetadata.trash(accessToken, spareId);
+				} catch (IOException e) {
+					logger.warn("Could not trash spare file " + spareId, e);
+				}
+			}
+		}
+		String folderId = getFolderId(userId);
+		if (folderId == null) {
+			folderId = driveMetadata.createFolder(accessToken, SPARE_FOLDER_TITLE);
+			jdbcTemplate.update("insert into TemplatePoolFolder (userId, folderId) values (?, ?)", userId, folderId);
+		}
+		for (Map.Entry<String, String> template : templateIds.entrySet()) {
+			String hrmType = template.getKey();
+			int spares = jdbcTemplate.queryForObject("select count(*) from TemplatePoolFile where userId = ? and hrmType = ?",
+					Integer.class, userId, hrmType);
+			for (; spares < sparesPerType; spares++) {
+				DriveMetadata spare;
+				try {
+					spare = driveMetadata.copy(accessToken, template.getValue(), new String[] { folderId },
+							SPARE_FOLDER_TITLE + " - " + hrmType, Collections.singletonList(
+									new FileProperty(DRIVE_PROP_SPARE_TYPE, hrmType, PropertyVisibility.PRIVATE)));
+				} catch (IOException e) {
+					// The folder may have been removed, in which case a new one is made next time
+					jdbcTemplate.update("delete from TemplatePoolFolder where userId = ?", userId);
+					throw e;
+				}
+				jdbcTemplate.update("insert into TemplatePoolFile (userId, hrmType, fileId, created) values (?, ?, ?, ?)",
+						userId, hrmType, spare.getId(), new Timestamp(System.currentTimeMillis()));
+			}
+		}
+	}
+
+	private String getFolderId(String userId) {
+		List<String> folderIds = jdbcTemplate.queryForList("select folderId from TemplatePoolFolder where userId = ?",
+				String.class, userId);
+		return folderIds.isEmpty() ? null : folderIds.get(0);
+	}
+
+	/**
+	 * Take the newest spare of the given type out of the pool, so that no other request can use it
+	 * @return Id of the spare, or null if there are none which are recent enough
+	 */
+	private String claimSpare(String userId, String hrmType) {
+		Timestamp expiry = new Timestamp(System.currentTimeMillis() - maxAgeMillis);
+		while (true) {
+			List<String> spareIds = jdbcTemplate.queryForList("select fileId from TemplatePoolFile" +
+					" where userId = ? and hrmType = ? and created >= ? order by created desc limit 1",
+					String.class, userId, hrmType, expiry);
+			if (spareIds.isEmpty()) {
+				return null;
+			}
+			String spareId = spareIds.get(0);
+			// Another request may have claimed the same spare first
+			if (jdbcTemplate.update("delete from TemplatePoolFile where userId = ? and fileId = ?", userId, spareId) > 0) {
+				return spareId;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * A cell which replaces any existing cell at the same position in the exported sheet.
+ */
+final class CellOverride {
+
+	private final int column;
+	private final String text;
+	private final Double number;
+	private final Integer style;
+
+	private CellOverride(int column, String text, Double number, Integer style) {
+		this.column = column;
+		this.text = text;
+		this.number = number;
+		this.style = style;
+	}
+
+	static CellOverride text(int column, String text) {
+		return new CellOverride(column, text, null, null);
+	}
+
+	/**
+	 * @param number The cell value, or null to leave the cell blank
+	 */
+	static CellOverride number(int column, Double number, Integer style) {
+		return new CellOverride(column, null, number, style);
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public Double getNumber() {
+		return number;
+	}
+
+	public Integer getStyle() {
+		return style;
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * Converts cell text produced by formulas into numeric cell values.
+ * <p>
+ * This runs for every formula cell in the workbook, so the text is parsed by hand rather than with
+ * regular expressions, and the result is returned as a primitive.
+ */
+final class CellValues {
+
+	private static final double SECONDS_PER_DAY = 24 * 60 * 60;
+
+	/** Longest run of digits which is certain to fit in a long */
+	private static final int MAX_LONG_DIGITS = 18;
+
+	private CellValues() {
+	}
+
+	/**
+	 * Parse a whole number, or a time of day in H:MM:SS or HH:MM:SS format. Times are returned as the
+	 * fraction of a day which Excel stores for a time, without any date.
+	 * @return The numeric value, or NaN if the text is neither a whole number nor a time
+	 */
+	static double toNumber(String text) {
+		if (text == null) {
+			return Double.NaN;
+		}
+		int length = text.length();
+		int digits = countDigits(text, 0);
+		if (digits > 0 && digits == length) {
+			return digits <= MAX_LONG_DIGITS ? parseDigits(text, 0, digits) : Double.parseDouble(text);
+		}
+		// H:MM:SS or HH:MM:SS
+		if ((digits == 1 || digits == 2) && length == digits + 6 &&
+				text.charAt(digits) == ':' && countDigits(text, digits + 1) == 2 &&
+				text.charAt(digits + 3) == ':' && countDigits(text, digits + 4) == 2) {
+			long hours = parseDigits(text, 0, digits);
+			long minutes = parseDigits(text, digits + 1, digits + 3);
+			long seconds = parseDigits(text, digits + 4, digits + 6);
+			return (hours * 3600 + minutes * 60 + seconds) / SECONDS_PER_DAY;
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * @return The number of consecutive digits starting at the given index
+	 */
+	private static int countDigits(String text, int start) {
+		int i = start;
+		while (i < text.length() && isDigit(text.charAt(i))) {
+			i++;
+		}
+		return i - start;
+	}
+
+	private static long parseDigits(String text, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			value = value * 10 + (text.charAt(i) - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+}
@@ -0,0 +1,23 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * What happens to the cells of a column when a sheet is exported, as decided by its header.
+ */
+enum ColumnAction {
+
+	/** Copy the cells as they are */
+	KEEP,
+	/** Remove the column, moving the columns after it to the left */
+	REMOVE,
+	/** Clear the cells */
+	CLEAR,
+	/** Clear the cells, except for those marking a crew as ill */
+	CLEAR_NOTES,
+	/** Format numeric cells on race sheets as dates */
+	DATE,
+	/** Format numeric cells on race sheets as times */
+	TIME,
+	/** Rename the header to the NRM name for the position column, copying the other cells as they are */
+	RENAME_POSITION
+
+}
@@ -0,0 +1,142 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.springframework.util.DigestUtils;
+
+/**
+ * Local disk cache of exported HRM workbooks, so that repeated downloads of an unchanged Drive
+ * file can be served without exporting it again.
+ * <p>
+ * Entries are keyed on the Drive file id and modified date along with the export settings, so a
+ * change to the file or its HRM properties results in a miss. The least recently used entries are
+ * evicted once the total size of the cache exceeds the configured limit.
+ */
+public class ExportCache {
+
+	private static final String FILE_SUFFIX = ".xlsx";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final long maxBytes;
+	private final LinkedHashMap<String, File> entries = new LinkedHashMap<String, File>(16, 0.75f, true);
+	private long totalBytes = 0;
+
+	/**
+	 * @param directory Directory to store cached exports in. Exports already in the directory are reused.
+	 * @param maxBytes Maximum total size of the cached exports
+	 */
+	public ExportCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalStateException("Could not create export cache directory " + directory);
+		}
+		File[] existing = directory.listFiles();
+		if (existing != null) {
+			// Oldest first, so that the most recently written exports are the last to be evicted
+			Arrays.sort(existing, new Comparator<File>() {
+				public int compare(File f1, File f2) {
+					return Long.valueOf(f1.lastModified()).compareTo(Long.valueOf(f2.lastModified()));
+				}
+			});
+			for (File file : existing) {
+				if (file.isFile() && file.getName().endsWith(FILE_SUFFIX)) {
+					entries.put(file.getName(), file);
+					totalBytes += file.length();
+				}
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * @return The cache key for an export of the given version of a Drive file
+	 */
+	public static String key(String fileId, Date modifiedDate, ExportSettings settings) {
+		StringBuilder key = new StringBuilder(fileId)
+			.append('|').append(modifiedDate != null ? modifiedDate.getTime() : "")
+			.append('|').append(settings.getType())
+			.append('|').append(settings.getVersion())
+			.append('|').append(settings.getRegion())
+			.append('|').append(settings.getRaceName());
+		return DigestUtils.md5DigestAsHex(key.toString().getBytes(UTF_8)) + FILE_SUFFIX;
+	}
+
+	/**
+	 * @return The cached export, or null if there is no export for the key
+	 */
+	public synchronized File get(String key) {
+		File file = entries.get(key);
+		if (file != null && !file.isFile()) {
+			entries.remove(key);
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * Open the cached export. The file is opened while no other export can evict it, so the stream can be
+	 * read even if the export is evicted afterwards.
+	 * @return The opened export, or null if there is no export for the key
+	 */
+	public synchronized FileInputStream open(String key) {
+		File file = get(key);
+		if (file == null) {
+			return null;
+		}
+		try {
+			return new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			remove(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Move a completed export into the cache, evicting older exports if the cache is full
+	 * @return The cached file, which should be used in place of the export file from now on
+	 */
+	public synchronized File put(String key, File exportFile) throws IOException {
+		File file = new File(directory, key);
+		remove(key);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not replace cached export " + file);
+		}
+		FileUtils.moveFile(exportFile, file);
+		entries.put(key, file);
+		totalBytes += file.length();
+		evict();
+		return file;
+	}
+
+	private void remove(String key) {
+		File file = entries.remove(key);
+		if (file != null) {
+			totalBytes -= file.length();
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, File>> it = entries.entrySet().iterator();
+		// Always keep the most recent entry, even if it is larger than the cache
+		while (totalBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+			File file = it.next().getValue();
+			totalBytes -= file.length();
+			it.remove();
+			file.delete();
+		}
+	}
+
+}
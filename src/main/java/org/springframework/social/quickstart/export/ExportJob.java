@@ -0,0 +1,119 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * An export running in the background, which the browser polls until the workbook is ready to download.
+ */
+public class ExportJob {
+
+	public enum Stage {
+		QUEUED, DOWNLOADING, TRANSFORMING, WRITING, DONE, FAILED
+	}
+
+	private final String id = UUID.randomUUID().toString();
+	private final String owner;
+	private final ExportSource source;
+	private volatile Stage stage = Stage.QUEUED;
+	private volatile long bytesDownloaded = 0;
+	private volatile long bytesTotal = -1;
+	private volatile File file;
+	private volatile String error;
+	private volatile long finishedTime = 0;
+
+	/**
+	 * @param owner Id of the user who submitted the job
+	 */
+	public ExportJob(String owner, ExportSource source) {
+		this.owner = owner;
+		this.source = source;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public ExportSource getSource() {
+		return source;
+	}
+
+	public Stage getStage() {
+		return stage;
+	}
+
+	void setStage(Stage stage) {
+		this.stage = stage;
+	}
+
+	public long getBytesDownloaded() {
+		return bytesDownloaded;
+	}
+
+	/**
+	 * @return Size of the Drive export, or -1 if Drive did not send a content length
+	 */
+	public long getBytesTotal() {
+		return bytesTotal;
+	}
+
+	void setDownloadProgress(long bytesDownloaded, long bytesTotal) {
+		this.bytesDownloaded = bytesDownloaded;
+		this.bytesTotal = bytesTotal;
+	}
+
+	/**
+	 * @return Percentage of the download completed, or -1 if this is not known
+	 */
+	public int getProgress() {
+		switch (stage) {
+		case DOWNLOADING:
+			return bytesTotal > 0 ? (int) (bytesDownloaded * 100 / bytesTotal) : -1;
+		case QUEUED:
+			return 0;
+		case DONE:
+			return 100;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The exported workbook, once the job is done
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	void setDone(File file) {
+		this.file = file;
+		this.stage = Stage.DONE;
+		this.finishedTime = System.currentTimeMillis();
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	void setFailed(String error) {
+		this.error = error;
+		this.stage = Stage.FAILED;
+		this.finishedTime = System.currentTimeMillis();
+	}
+
+	public boolean isFinished() {
+		return stage == Stage.DONE || stage == Stage.FAILED;
+	}
+
+	/**
+	 * @return Time the job finished in milliseconds, or 0 if it is still running
+	 */
+	public long getFinishedTime() {
+		return finishedTime;
+	}
+
+}
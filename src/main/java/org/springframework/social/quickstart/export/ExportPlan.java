@@ -0,0 +1,109 @@
+package org.springframework.social.quickstart.export;
+
+import static org.springframework.social.quickstart.export.HrmWorkbook.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The export rules for one type of workbook, compiled into lookup tables.
+ * <p>
+ * Plans are built once and cached, along with a {@link SheetPlan} for each distinct header row,
+ * so that exporting a sheet only needs to look up the action for each column by its index.
+ */
+final class ExportPlan {
+
+	private static final ConcurrentMap<String, ExportPlan> PLANS = new ConcurrentHashMap<String, ExportPlan>();
+
+	/** Limit on the number of distinct types remembered, since the type can be set by the owner of a file */
+	private static final int MAX_PLANS = 16;
+
+	/** Limit on the number of distinct header rows remembered by each plan */
+	private static final int MAX_SHEET_PLANS = 256;
+
+	private final Set<String> disallowedSheets;
+	private final Map<String, ColumnAction> columnActions;
+	private final ExportStyleSet styles;
+	private final ConcurrentMap<List<String>, SheetPlan> sheetPlans = new ConcurrentHashMap<List<String>, SheetPlan>();
+
+	private ExportPlan(String type) {
+		disallowedSheets = new HashSet<String>(DISALLOWED_SHEETS);
+		columnActions = new HashMap<String, ColumnAction>();
+		for (String column : COLUMNS_TO_REMOVE) {
+			columnActions.put(column, ColumnAction.REMOVE);
+		}
+		columnActions.put(COLUMN_PAID, ColumnAction.CLEAR);
+		columnActions.put(COLUMN_NOTES, ColumnAction.CLEAR_NOTES);
+		columnActions.put(COLUMN_EXPIRY, ColumnAction.DATE);
+		for (String column : TIME_COLUMNS) {
+			columnActions.put(column, ColumnAction.TIME);
+		}
+		// For Nationals rename Posn header to be compliant with NRM
+		if (TYPE_NATIONALS.equals(type)) {
+			columnActions.put(COLUMN_POSITION, ColumnAction.RENAME_POSITION);
+		}
+		styles = ExportStyleSet.standard();
+	}
+
+	/**
+	 * @param type HRM type, or null if the type is not known
+	 * @return The plan for exporting workbooks of the given type
+	 */
+	static ExportPlan forType(String type) {
+		String key = String.valueOf(type);
+		ExportPlan plan = PLANS.get(key);
+		if (plan == null) {
+			plan = new ExportPlan(type);
+			if (PLANS.size() < MAX_PLANS) {
+				ExportPlan existing = PLANS.putIfAbsent(key, plan);
+				if (existing != null) {
+					plan = existing;
+				}
+			}
+		}
+		return plan;
+	}
+
+	public boolean isDisallowedSheet(String sheetName) {
+		return disallowedSheets.contains(sheetName);
+	}
+
+	/**
+	 * @return The cell formats applied to the race sheets
+	 */
+	public ExportStyleSet getStyles() {
+		return styles;
+	}
+
+	/**
+	 * @param headerNames Names of the columns in the header row, with null for cells which do not hold text
+	 * @return The plan for a sheet with the given header row
+	 */
+	SheetPlan getSheetPlan(String[] headerNames) {
+		List<String> key = Arrays.asList(headerNames.clone());
+		SheetPlan sheetPlan = sheetPlans.get(key);
+		if (sheetPlan == null) {
+			sheetPlan = compile(headerNames);
+			if (sheetPlans.size() < MAX_SHEET_PLANS) {
+				sheetPlans.putIfAbsent(key, sheetPlan);
+			}
+		}
+		return sheetPlan;
+	}
+
+	private SheetPlan compile(String[] headerNames) {
+		ColumnAction[] actions = new ColumnAction[headerNames.length];
+		for (int i = 0; i < headerNames.length; i++) {
+			ColumnAction action = headerNames[i] != null ? columnActions.get(headerNames[i]) : null;
+			actions[i] = action != null ? action : ColumnAction.KEEP;
+		}
+		return new SheetPlan(actions);
+	}
+
+}
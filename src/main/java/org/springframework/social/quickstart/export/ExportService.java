@@ -0,0 +1,465 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Downloads Drive files and exports them as HRM workbooks, either while the caller waits or as
+ * background jobs on a bounded pool of threads.
+ */
+public class ExportService {
+
+	private static final int MAX_OPEN_ATTEMPTS = 3;
+
+	private final HttpClient httpClient;
+	private final HrmExporter exporter;
+	private final ExportCache exportCache;
+	private final TempStorage tempStorage;
+	private final ExecutorService executor;
+	private final ExecutorService bulkExecutor;
+	private final int bulkThreads;
+	private final long jobRetentionMillis;
+	private boolean pipelined = true;
+	private boolean jobsEnabled = true;
+	private final Map<String, ExportJob> jobs = new ConcurrentHashMap<String, ExportJob>();
+	private final SingleFlight<String, File> exports = new SingleFlight<String, File>();
+
+	/**
+	 * @param threads Number of exports to run at the same time
+	 * @param queueSize Number of exports which may wait for a thread before new jobs are rejected
+	 * @param bulkThreads Number of files to export at the same time for bulk exports
+	 * @param jobRetentionMillis How long finished jobs are kept for, so that the browser can collect them
+	 */
+	public ExportService(HttpClient httpClient, HrmExporter exporter, ExportCache exportCache, TempStorage tempStorage,
+			int threads, int queueSize, int bulkThreads, long jobRetentionMillis) {
+		this.httpClient = httpClient;
+		this.exporter = exporter;
+		this.exportCache = exportCache;
+		this.tempStorage = tempStorage;
+		this.jobRetentionMillis = jobRetentionMillis;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ExportThreadFactory("hrm-export-"));
+		// Each bulk export keeps at most bulkThreads files in the queue, so the queue does not need a bound
+		this.bulkThreads = bulkThreads;
+		this.bulkExecutor = Executors.newFixedThreadPool(bulkThreads, new ExportThreadFactory("hrm-bulk-export-"));
+	}
+
+	/**
+	 * @param pipelined Whether to export files while they are still downloading, when the exporter supports it
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * @return True if files are exported while they are still downloading
+	 */
+	public boolean isPipelined() {
+		return pipelined && exporter instanceof PipelinedHrmExporter;
+	}
+
+	/**
+	 * @param jobsEnabled Whether exports can be run as background jobs, which are only known to this instance
+	 */
+	public void setJobsEnabled(boolean jobsEnabled) {
+		this.jobsEnabled = jobsEnabled;
+	}
+
+	/**
+	 * @return True if {@link #submit(ExportSource, String)} can be used
+	 */
+	public boolean isJobsEnabled() {
+		return jobsEnabled;
+	}
+
+	/**
+	 * Open the export of the file, exporting it first if it is not in the cache. The export is made again
+	 * if another export evicts it from the cache before it can be opened.
+	 * @return The opened export, which the caller must close
+	 */
+	public FileInputStream openExport(ExportSource source) throws IOException {
+		for (int attempt = 0; attempt < MAX_OPEN_ATTEMPTS; attempt++) {
+			FileInputStream in = exportCache.open(source.getCacheKey());
+			if (in != null) {
+				return in;
+			}
+			export(source);
+		}
+		throw new IOException("The export of " + source.getTitle() + " was removed from the cache before it could be read");
+	}
+
+	/**
+	 * Read the sheet names and protection of a file from its download, which is only read as far as the
+	 * workbook part. The type and version are those which the file is exported with.
+	 */
+	public WorkbookInfo probe(ExportSource source) throws IOException {
+		HttpGet request = downloadRequest(source);
+		try {
+			return WorkbookProbe.probe(openDownload(request).getContent(), source.getSettings());
+		} finally {
+			// Closing the content would read the rest of the download, so drop the connection instead
+			request.abort();
+		}
+	}
+
+	/**
+	 * Export a file while the caller waits
+	 * @return The exported workbook
+	 */
+	public File export(ExportSource source) throws IOException {
+		return export(source, new ExportJob(null, source));
+	}
+
+	private File exportPipelined(ExportSource source) throws IOException {
+		HttpEntity entity = openDownload(source);
+		InputStream instream = entity.getContent();
+		File exportFile = null;
+		boolean complete = false;
+		try {
+			exportFile = tempStorage.createTempFile(TempStorage.PREFIX_EXPORT, ".xlsx");
+			OutputStream eos = new FileOutputStream(exportFile);
+			try {
+				((PipelinedHrmExporter) exporter).export(instream, source.getSettings(), eos);
+			} finally {
+				eos.close();
+			}
+			complete = true;
+		} finally {
+			instream.close();
+			if (!complete) {
+				tempStorage.delete(exportFile);
+			}
+		}
+		return exportFile;
+	}
+
+	/**
+	 * Start exporting a file in the background
+	 * @param owner Id of the user submitting the job
+	 * @throws RejectedExecutionException if too many exports are already waiting
+	 */
+	public ExportJob submit(ExportSource source, String owner) {
+		removeExpiredJobs();
+		final ExportJob job = new ExportJob(owner, source);
+		File cached = exportCache.get(source.getCacheKey());
+		if (cached != null) {
+			job.setDone(cached);
+		} else {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						export(job.getSource(), job);
+					} catch (Exception e) {
+						job.setFailed(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+					}
+				}
+			});
+		}
+		jobs.put(job.getId(), job);
+		return job;
+	}
+
+	/**
+	 * @return The job, or null if there is no such job or it has expired
+	 */
+	public ExportJob getJob(String jobId) {
+		return jobId != null ? jobs.get(jobId) : null;
+	}
+
+	/**
+	 * Export several files, writing each workbook into a single ZIP as soon as it is ready. Files are
+	 * exported a few at a time, and the workbooks appear in the ZIP in the order that they finish.
+	 * Each file is looked up by the task which exports it, so the ZIP starts before all of the files have
+	 * been looked up. Files which cannot be looked up or exported are listed in an errors.txt entry at the
+	 * end of the ZIP.
+	 * @param out Stream to write the ZIP to. This is not closed.
+	 */
+	public void exportAll(List<String> fileIds, ExportSourceLookup lookup, OutputStream out) throws IOException {
+		CompletionService<ExportSource> completionService = new ExecutorCompletionService<ExportSource>(bulkExecutor);
+		Map<Future<ExportSource>, BulkFile> pending = new HashMap<Future<ExportSource>, BulkFile>();
+		Iterator<String> remaining = fileIds.iterator();
+		ZipOutputStream zipOut = new ZipOutputStream(out);
+		Set<String> entryNames = new HashSet<String>();
+		StringBuilder errors = new StringBuilder();
+		try {
+			while (pending.size() < bulkThreads && remaining.hasNext()) {
+				submit(completionService, pending, new BulkFile(remaining.next()), lookup);
+			}
+			while (!pending.isEmpty()) {
+				Future<ExportSource> future = completionService.take();
+				BulkFile file = pending.remove(future);
+				if (remaining.hasNext()) {
+					submit(completionService, pending, new BulkFile(remaining.next()), lookup);
+				}
+				ExportSource source;
+				try {
+					source = future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					errors.append(file.getName()).append(": ")
+						.append(cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName()).append("\r\n");
+					continue;
+				}
+				InputStream in = openExport(source);
+				zipOut.putNextEntry(new ZipEntry(getEntryName(source.getTitle(), entryNames)));
+				try {
+					IOUtils.copy(in, zipOut);
+				} finally {
+					in.close();
+				}
+				zipOut.closeEntry();
+				zipOut.flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while exporting files");
+		} finally {
+			// Stop any exports which are still running if the client has gone away
+			for (Future<ExportSource> future : pending.keySet()) {
+				future.cancel(true);
+			}
+		}
+		if (errors.length() > 0) {
+			zipOut.putNextEntry(new ZipEntry("errors.txt"));
+			zipOut.write(errors.toString().getBytes("UTF-8"));
+			zipOut.closeEntry();
+		}
+		zipOut.finish();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+		bulkExecutor.shutdownNow();
+	}
+
+	private void submit(CompletionService<ExportSource> completionService, Map<Future<ExportSource>, BulkFile> pending,
+			final BulkFile file, final ExportSourceLookup lookup) {
+		pending.put(completionService.submit(new Callable<ExportSource>() {
+			public ExportSource call() throws Exception {
+				ExportSource source = lookup.lookup(file.fileId);
+				file.title = source.getTitle();
+				export(source);
+				return source;
+			}
+		}), file);
+	}
+
+	/**
+	 * @return A name for the workbook in a bulk export, which is not already used by another workbook
+	 */
+	private static String getEntryName(String title, Set<String> entryNames) {
+		String baseName = title.replaceAll("[\\\\/:*?\"<>|]", "_");
+		String name = baseName + ".xlsx";
+		for (int i = 2; !entryNames.add(name.toLowerCase()); i++) {
+			name = baseName + " (" + i + ").xlsx";
+		}
+		return name;
+	}
+
+	private File export(final ExportSource source, final ExportJob job) throws IOException {
+		String cacheKey = source.getCacheKey();
+		File exportFile = exportCache.get(cacheKey);
+		if (exportFile == null) {
+			// Concurrent exports of the same file share one download and transform, which updates the job that started it
+			exportFile = coalesce(cacheKey, new Callable<File>() {
+				public File call() throws IOException {
+					return transform(source, job);
+				}
+			});
+		}
+		job.setDone(exportFile);
+		return exportFile;
+	}
+
+	private File transform(ExportSource source, ExportJob job) throws IOException {
+		String cacheKey = source.getCacheKey();
+		File exportFile = exportCache.get(cacheKey);
+		if (exportFile == null && isPipelined()) {
+			// Export the file while it is still downloading, without keeping the download
+			job.setStage(ExportJob.Stage.TRANSFORMING);
+			exportFile = exportPipelined(source);
+			job.setStage(ExportJob.Stage.WRITING);
+			exportFile = exportCache.put(cacheKey, exportFile);
+		} else if (exportFile == null) {
+			File temp = download(source, job);
+			try {
+				job.setStage(ExportJob.Stage.TRANSFORMING);
+				exportFile = tempStorage.createTempFile(TempStorage.PREFIX_EXPORT, ".xlsx");
+				OutputStream eos = new FileOutputStream(exportFile);
+				try {
+					exporter.export(temp, source.getSettings(), eos);
+				} catch (IOException e) {
+					eos.close();
+					tempStorage.delete(exportFile);
+					throw e;
+				} finally {
+					eos.close();
+				}
+			} finally {
+				tempStorage.delete(temp);
+			}
+			job.setStage(ExportJob.Stage.WRITING);
+			exportFile = exportCache.put(cacheKey, exportFile);
+		}
+		return exportFile;
+	}
+
+	/**
+	 * Run an export, or wait for the export of the same file which is already running
+	 */
+	private File coalesce(String cacheKey, Callable<File> export) throws IOException {
+		try {
+			return exports.execute(cacheKey, export);
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for an export");
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Download the XLSX export of the file from Google
+	 */
+	private File download(ExportSource source, ExportJob job) throws IOException {
+		job.setStage(ExportJob.Stage.DOWNLOADING);
+		HttpEntity entity = openDownload(source);
+		long length = entity.getContentLength();
+		InputStream instream = entity.getContent();
+		File temp = tempStorage.createTempFile(TempStorage.PREFIX_DOWNLOAD, ".xlsx");
+		boolean complete = false;
+		try {
+			OutputStream tos = new FileOutputStream(temp);
+			try {
+				byte[] buffer = new byte[8192];
+				int bytesRead;
+				long total = 0;
+				while ((bytesRead = instream.read(buffer)) != -1) {
+					tos.write(buffer, 0, bytesRead);
+					total += bytesRead;
+					job.setDownloadProgress(total, length);
+				}
+			} finally {
+				tos.close();
+			}
+			complete = true;
+		} finally {
+			instream.close();
+			if (!complete) {
+				tempStorage.delete(temp);
+			}
+		}
+		return temp;
+	}
+
+	/**
+	 * Request the XLSX export of the file from Google
+	 * @return The response entity, which must be read to the end or closed
+	 */
+	private HttpEntity openDownload(ExportSource source) throws IOException {
+		return openDownload(downloadRequest(source));
+	}
+
+	private HttpEntity openDownload(HttpGet httpget) throws IOException {
+		HttpResponse resp = httpClient.execute(httpget);
+		HttpEntity entity = resp.getEntity();
+		if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			EntityUtils.consumeQuietly(entity);
+			throw new IOException("Drive export failed: " + resp.getStatusLine());
+		}
+		if (entity == null) {
+			throw new IOException("Response entity is null!");
+		}
+		return entity;
+	}
+
+	private static HttpGet downloadRequest(ExportSource source) {
+		HttpGet httpget = new HttpGet(source.getExportUri());
+		httpget.setHeader("Authorization", "Bearer " + source.getAccessToken());
+		return httpget;
+	}
+
+	private void removeExpiredJobs() {
+		long expiry = System.currentTimeMillis() - jobRetentionMillis;
+		for (Iterator<ExportJob> it = jobs.values().iterator(); it.hasNext();) {
+			ExportJob job = it.next();
+			if (job.isFinished() && job.getFinishedTime() < expiry) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * A file in a bulk export, which is named by its id in errors.txt until it has been looked up
+	 */
+	private static class BulkFile {
+
+		private final String fileId;
+		private volatile String title;
+
+		BulkFile(String fileId) {
+			this.fileId = fileId;
+		}
+
+		String getName() {
+			return title != null ? title : fileId;
+		}
+	}
+
+	private static class ExportThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		ExportThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * Race details and file type used when exporting a workbook.
+ */
+public class ExportSettings {
+
+	private String type;
+
+	private double version = HrmWorkbook.VERSION_DEFAULT;
+
+	private String region = HrmWorkbook.REGION_DEFAULT;
+
+	private String raceName;
+
+	public ExportSettings() {
+
+	}
+
+	public ExportSettings(String type, double version, String region, String raceName) {
+		this.type = type;
+		this.version = version;
+		this.region = region;
+		this.raceName = raceName;
+	}
+
+	/**
+	 * @return The HRM file type, or null if this should be detected from the workbook
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public double getVersion() {
+		return version;
+	}
+
+	public void setVersion(double version) {
+		this.version = version;
+	}
+
+	public String getRegion() {
+		return region;
+	}
+
+	public void setRegion(String region) {
+		this.region = region;
+	}
+
+	public String getRaceName() {
+		return raceName;
+	}
+
+	public void setRaceName(String raceName) {
+		this.raceName = raceName;
+	}
+
+}
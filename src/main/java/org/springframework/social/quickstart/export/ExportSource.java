@@ -0,0 +1,69 @@
+package org.springframework.social.quickstart.export;
+
+import java.util.Date;
+
+/**
+ * A Drive file to be exported, captured while handling the request so that the export can be
+ * carried out later without access to the request-scoped Google API.
+ */
+public class ExportSource {
+
+	private final String fileId;
+	private final String title;
+	private final Date modifiedDate;
+	private final String exportUri;
+	private final String accessToken;
+	private final ExportSettings settings;
+
+	/**
+	 * @param exportUri The Drive XLSX export link for the file
+	 * @param accessToken OAuth access token to authorize the download with
+	 */
+	public ExportSource(String fileId, String title, Date modifiedDate, String exportUri, String accessToken, ExportSettings settings) {
+		this.fileId = fileId;
+		this.title = title;
+		this.modifiedDate = modifiedDate;
+		this.exportUri = exportUri;
+		this.accessToken = accessToken;
+		this.settings = settings;
+	}
+
+	public String getFileId() {
+		return fileId;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public Date getModifiedDate() {
+		return modifiedDate;
+	}
+
+	public String getExportUri() {
+		return exportUri;
+	}
+
+	public String getAccessToken() {
+		return accessToken;
+	}
+
+	public ExportSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return The same file and settings, downloaded with another access token
+	 */
+	public ExportSource withAccessToken(String accessToken) {
+		return new ExportSource(fileId, title, modifiedDate, exportUri, accessToken, settings);
+	}
+
+	/**
+	 * @return Key identifying this version of the file and its export settings in the {@link ExportCache}
+	 */
+	public String getCacheKey() {
+		return ExportCache.key(fileId, modifiedDate, settings);
+	}
+
+}
@@ -0,0 +1,15 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * Looks up a Drive file and its HRM properties, ready to export it.
+ */
+public interface ExportSourceLookup {
+
+	/**
+	 * Look up the file. This is called on the threads which run bulk exports, so it must not depend on
+	 * the request which started the export.
+	 * @param fileId Drive id of the file
+	 */
+	ExportSource lookup(String fileId) throws Exception;
+
+}
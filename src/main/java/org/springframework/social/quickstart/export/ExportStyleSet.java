@@ -0,0 +1,53 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * The cell formats applied to the race sheets of an exported workbook.
+ */
+final class ExportStyleSet {
+
+	static final String FONT_NAME = "Courier New";
+	static final double FONT_SIZE = 10;
+	static final String FIRST_COLUMN_COLOR = "FFFFFF99";
+	static final String DATE_FORMAT = "dd/mm/yy";
+	static final String TIME_FORMAT = "H:MM:SS";
+
+	private final StyleDescriptor body;
+	private final StyleDescriptor firstColumn;
+	private final StyleDescriptor date;
+	private final StyleDescriptor time;
+
+	ExportStyleSet(StyleDescriptor body, StyleDescriptor firstColumn, StyleDescriptor date, StyleDescriptor time) {
+		this.body = body;
+		this.firstColumn = firstColumn;
+		this.date = date;
+		this.time = time;
+	}
+
+	/**
+	 * @return The formats used for HRM, ARM and NRM workbooks
+	 */
+	static ExportStyleSet standard() {
+		return new ExportStyleSet(
+				new StyleDescriptor(FONT_NAME, FONT_SIZE, false, null, false, null),
+				new StyleDescriptor(FONT_NAME, FONT_SIZE, true, FIRST_COLUMN_COLOR, true, null),
+				new StyleDescriptor(FONT_NAME, FONT_SIZE, false, null, false, DATE_FORMAT),
+				new StyleDescriptor(FONT_NAME, FONT_SIZE, false, null, false, TIME_FORMAT));
+	}
+
+	public StyleDescriptor getBody() {
+		return body;
+	}
+
+	public StyleDescriptor getFirstColumn() {
+		return firstColumn;
+	}
+
+	public StyleDescriptor getDate() {
+		return date;
+	}
+
+	public StyleDescriptor getTime() {
+		return time;
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * Indexes of the cell formats (<code>cellXfs</code> entries) applied to the race sheets.
+ */
+final class ExportStyles {
+
+	private final int body;
+	private final int firstColumn;
+	private final int date;
+	private final int time;
+
+	ExportStyles(int body, int firstColumn, int date, int time) {
+		this.body = body;
+		this.firstColumn = firstColumn;
+		this.date = date;
+		this.time = time;
+	}
+
+	public int getBody() {
+		return body;
+	}
+
+	public int getFirstColumn() {
+		return firstColumn;
+	}
+
+	public int getDate() {
+		return date;
+	}
+
+	public int getTime() {
+		return time;
+	}
+
+}
@@ -0,0 +1,20 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts an XLSX workbook exported from Drive into the official HRM workbook format.
+ */
+public interface HrmExporter {
+
+	/**
+	 * Export the workbook
+	 * @param source The XLSX file downloaded from Drive
+	 * @param settings Race details and file type, taken from the Drive file properties
+	 * @param out Stream to write the HRM workbook to. This is not closed by the exporter.
+	 */
+	void export(File source, ExportSettings settings, OutputStream out) throws IOException;
+
+}
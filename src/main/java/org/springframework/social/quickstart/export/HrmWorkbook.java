@@ -0,0 +1,94 @@
+package org.springframework.social.quickstart.export;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sheet and column names used by the HRM, ARM and NRM workbooks, together with the
+ * rules used to turn a Drive export into a file the HRM software will accept.
+ */
+public final class HrmWorkbook {
+
+	public static final String TYPE_HASLER = "HRM";
+	public static final String TYPE_NATIONALS = "NRM";
+	public static final String TYPE_ASSESSMENT = "ARM";
+
+	public static final double VERSION_DEFAULT = 13.1;
+	public static final String REGION_DEFAULT = "ALL";
+
+	public static final String PROP_FMTID = "{D5CDD505-2E9C-101B-9397-08002B2CF9AE}";
+
+	public static final String SHEET_FINISHES = "Finishes";
+	public static final String SHEET_STARTS = "Starts";
+	public static final String SHEET_CLUBS = "Clubs";
+	public static final String SHEET_RESULTS = "Results";
+	public static final String SHEET_SUMMARY = "Summary";
+	public static final String SHEET_MEMBERSHIPS = "Memberships";
+	public static final String SHEET_ENTRY_SETS = "Entry Sets";
+	public static final String SHEET_RACES = "Races";
+
+	public static final String COLUMN_SET = "Set";
+	public static final String COLUMN_DUE = "Due";
+	public static final String COLUMN_FEE = "Fee";
+	public static final String COLUMN_PAID = "Paid";
+	public static final String COLUMN_NOTES = "Notes";
+	public static final String COLUMN_EXPIRY = "Expiry";
+	public static final String COLUMN_POSITION = "Posn";
+	public static final String COLUMN_POSITION_NRM = "Pos";
+
+	// Notes are cleared for the official HRM, unless they mark a crew as ill
+	public static final String NOTES_ILL = "ill";
+
+	// Start times are written to column AA of the summary sheet, from row 2 down
+	public static final int SUMMARY_START_TIME_COLUMN = 26;
+
+	// Race region and name are written to the first row of the clubs sheet
+	public static final int CLUBS_REGION_COLUMN = 18;
+	public static final int CLUBS_RACE_NAME_COLUMN = 19;
+
+	// List of sheets which should not be present for the official HRM
+	public static final List<String> DISALLOWED_SHEETS = Collections.unmodifiableList(Arrays.asList(
+			SHEET_STARTS, SHEET_ENTRY_SETS, SHEET_MEMBERSHIPS, SHEET_RACES, "Sheet1", "Courses", "Race Times",
+			"Chip Finishes", "Hasler Points", "Lightning Points", "Entry Fees"));
+
+	// List of columns which should not be present for the official HRM
+	public static final List<String> COLUMNS_TO_REMOVE = Collections.unmodifiableList(Arrays.asList(
+			COLUMN_DUE, COLUMN_FEE, COLUMN_SET, "Late?", "Chip Finish", "Manual Finish", "In Region",
+			"Boat in Region", "Allowed Points", "Boat Allowed Points", "Regional Posn", "Regional Points",
+			"Individual Points", "Individual Posn", "PDiv", "DDiv"));
+
+	// List of columns holding times, which are formatted as times on race sheets
+	public static final List<String> TIME_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+			"Time+/-", "Start", "Finish", "Elapsed"));
+
+	private HrmWorkbook() {
+	}
+
+	public static boolean isTimeColumn(String columnName) {
+		return TIME_COLUMNS.contains(columnName);
+	}
+
+	public static boolean isResultsSheet(String sheetName) {
+		return sheetName.indexOf(SHEET_RESULTS) > -1;
+	}
+
+	/**
+	 * Auto-detect the workbook type based on the first sheet name
+	 * @return The HRM type, or null if the sheet name is not recognised
+	 */
+	public static String detectType(String firstSheetName) {
+		String hrmFileType = null;
+		if (firstSheetName != null) {
+			if (firstSheetName.equals("Div1")) {
+				hrmFileType = TYPE_HASLER;
+			} else if (firstSheetName.equals("SMK1")) {
+				hrmFileType = TYPE_ASSESSMENT;
+			} else if (firstSheetName.equals("Div7") || firstSheetName.equals("U12 M")) {
+				hrmFileType = TYPE_NATIONALS;
+			}
+		}
+		return hrmFileType;
+	}
+
+}
@@ -0,0 +1,397 @@
+package org.springframework.social.quickstart.export;
+
+import static org.springframework.social.quickstart.export.HrmWorkbook.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Describes how the parts of a workbook package should be rewritten, and rewrites them.
+ * <p>
+ * The plan is worked out from the package-level parts (the package relationships, workbook, workbook
+ * relationships, shared strings and styles). Worksheet header rows, worksheet relationships and start
+ * times are then added as they are read, so that the worksheets can be rewritten in whatever order the
+ * package is read in.
+ */
+final class PackageExport {
+
+	/**
+	 * Source of the package-level parts
+	 */
+	interface Parts {
+
+		/**
+		 * @return Stream to read the part from, or null if the package does not contain the part
+		 */
+		InputStream getInputStream(String part) throws IOException;
+
+	}
+
+	private final ExportSettings settings;
+	private final PackageRewriter packageRewriter = new PackageRewriter();
+	private final StylesRewriter stylesRewriter = new StylesRewriter();
+	private final WorksheetRewriter worksheetRewriter;
+
+	private final String workbookPart;
+	private final String workbookRelsPart;
+	private final String stylesPart;
+	private final String customPropertiesPart;
+	private final String[] sharedStrings;
+	private final ExportStyles styles;
+	private final String hrmFileType;
+	private final ExportPlan plan;
+	private final String sheetPassword;
+
+	private final Map<String, SheetExport> sheetExports = new HashMap<String, SheetExport>();
+	private final Map<String, String> sheetParts = new HashMap<String, String>();
+	private final List<String> raceSheetNames = new ArrayList<String>();
+	private final Set<Integer> removedSheets = new HashSet<Integer>();
+	private final Set<String> droppedParts = new HashSet<String>();
+	private final Set<String> droppedWorkbookRels = new HashSet<String>();
+	private final Map<String, Set<String>> droppedSheetRels = new HashMap<String, Set<String>>();
+
+	/**
+	 * Work out how the package should be rewritten from its package-level parts
+	 */
+	PackageExport(Parts parts, ExportSettings settings) throws IOException {
+		this.settings = settings;
+		// Locate the main parts of the workbook
+		List<Relationship> rootRels = readRelationships(parts.getInputStream(SpreadsheetXml.ROOT_RELS_PART), null);
+		Relationship workbookRel = SpreadsheetXml.findRelationship(rootRels, SpreadsheetXml.REL_OFFICE_DOCUMENT);
+		workbookPart = workbookRel != null ? workbookRel.getTarget() : "xl/workbook.xml";
+		workbookRelsPart = SpreadsheetXml.relationshipsPartName(workbookPart);
+		List<Relationship> workbookRels = readRelationships(parts.getInputStream(workbookRelsPart), workbookPart);
+		Relationship customPropertiesRel = SpreadsheetXml.findRelationship(rootRels, SpreadsheetXml.REL_CUSTOM_PROPERTIES);
+		customPropertiesPart = customPropertiesRel != null ? customPropertiesRel.getTarget() : null;
+
+		List<PackageRewriter.Sheet> sheets;
+		InputStream workbookIn = getRequiredPart(parts, workbookPart);
+		try {
+			sheets = packageRewriter.readSheets(workbookIn);
+		} finally {
+			workbookIn.close();
+		}
+		Relationship sharedStringsRel = SpreadsheetXml.findRelationship(workbookRels, SpreadsheetXml.REL_SHARED_STRINGS);
+		InputStream sharedStringsIn = sharedStringsRel != null ? parts.getInputStream(sharedStringsRel.getTarget()) : null;
+		try {
+			sharedStrings = sharedStringsIn != null ? readSharedStrings(sharedStringsIn) : new String[0];
+		} finally {
+			if (sharedStringsIn != null) {
+				sharedStringsIn.close();
+			}
+		}
+
+		String type = settings.getType();
+		if (type == null && sheets.size() > 0) {
+			type = detectType(sheets.get(0).getName());
+		}
+		hrmFileType = type;
+		sheetPassword = hrmFileType;
+		plan = ExportPlan.forType(hrmFileType);
+
+		Relationship stylesRel = SpreadsheetXml.findRelationship(workbookRels, SpreadsheetXml.REL_STYLES);
+		stylesPart = stylesRel != null ? stylesRel.getTarget() : null;
+		InputStream stylesIn = getRequiredPart(parts, stylesPart);
+		try {
+			styles = stylesRewriter.scan(stylesIn, plan.getStyles());
+		} finally {
+			stylesIn.close();
+		}
+		worksheetRewriter = new WorksheetRewriter(sharedStrings, styles);
+
+		// Work out how each sheet should be rewritten
+		boolean isRaceSheet = true;
+		for (int i = 0; i < sheets.size(); i++) {
+			PackageRewriter.Sheet sheet = sheets.get(i);
+			String sheetName = sheet.getName();
+			String sheetPart = null;
+			for (Relationship rel : workbookRels) {
+				if (rel.getId().equals(sheet.getRelationshipId())) {
+					sheetPart = rel.getTarget();
+				}
+			}
+			isRaceSheet = isRaceSheet && !sheetName.equals(SHEET_FINISHES);
+			if (isRaceSheet) {
+				raceSheetNames.add(sheetName);
+			}
+			if (plan.isDisallowedSheet(sheetName)) {
+				removedSheets.add(i);
+				droppedWorkbookRels.add(sheet.getRelationshipId());
+				if (sheetPart != null) {
+					droppedParts.add(sheetPart);
+					droppedParts.add(SpreadsheetXml.relationshipsPartName(sheetPart));
+				}
+			}
+			if (sheetPart == null) {
+				continue;
+			}
+			sheetParts.put(sheetName, sheetPart);
+
+			SheetExport sheetExport = new SheetExport(sheetName);
+			sheetExport.setRaceSheet(isRaceSheet);
+			if (sheetName.equals(SHEET_FINISHES) || sheetName.equals(SHEET_CLUBS)) {
+				sheetExport.setProtection(SheetExport.Protection.PROTECT, "");
+			} else if (isResultsSheet(sheetName)) {
+				sheetExport.setProtection(SheetExport.Protection.REMOVE, null);
+			} else if (sheetPassword != null) {
+				sheetExport.setProtection(SheetExport.Protection.PROTECT, sheetPassword);
+			}
+			sheetExports.put(sheetPart, sheetExport);
+		}
+		for (Relationship rel : workbookRels) {
+			if (rel.isType(SpreadsheetXml.REL_CALC_CHAIN)) {
+				droppedWorkbookRels.add(rel.getId());
+				droppedParts.add(rel.getTarget());
+			}
+		}
+
+		// Race info is written to the clubs sheet, after unwanted columns are removed
+		if (sheetParts.containsKey(SHEET_CLUBS)) {
+			SheetExport clubsSheet = sheetExports.get(sheetParts.get(SHEET_CLUBS));
+			clubsSheet.addOverride(1, CellOverride.text(CLUBS_REGION_COLUMN, settings.getRegion()));
+			clubsSheet.addOverride(1, CellOverride.text(CLUBS_RACE_NAME_COLUMN, settings.getRaceName()));
+		}
+	}
+
+	String getWorkbookPart() {
+		return workbookPart;
+	}
+
+	String getCustomPropertiesPart() {
+		return customPropertiesPart;
+	}
+
+	/**
+	 * @return Worksheets to be rewritten, keyed by part name
+	 */
+	Map<String, SheetExport> getSheetExports() {
+		return sheetExports;
+	}
+
+	/**
+	 * @return Part name of the given sheet, or null if the workbook has no such sheet
+	 */
+	String getSheetPart(String sheetName) {
+		return sheetParts.get(sheetName);
+	}
+
+	boolean isDropped(String part) {
+		return droppedParts.contains(part);
+	}
+
+	/**
+	 * @return The worksheet part which the relationships part belongs to, or null if it does not belong to a worksheet
+	 */
+	String getSheetPartForRelationships(String relsPart) {
+		for (String sheetPart : sheetExports.keySet()) {
+			if (SpreadsheetXml.relationshipsPartName(sheetPart).equals(relsPart)) {
+				return sheetPart;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Leave out a worksheet which is listed in the workbook but missing from the package
+	 */
+	void removeSheet(String sheetName) {
+		String sheetPart = sheetParts.remove(sheetName);
+		if (sheetPart != null) {
+			sheetExports.remove(sheetPart);
+		}
+	}
+
+	/**
+	 * Read the header row of a worksheet, so that unwanted columns can be removed
+	 */
+	void readHeader(String sheetPart, InputStream in) throws IOException {
+		String[] headerNames = worksheetRewriter.readHeaderNames(in);
+		if (headerNames != null) {
+			sheetExports.get(sheetPart).setPlan(plan.getSheetPlan(headerNames));
+		}
+	}
+
+	/**
+	 * Read the relationships of a worksheet. Comments are removed along with the drawings which display them.
+	 * @param in Relationships part of the worksheet, or null if it has none
+	 */
+	void readSheetRelationships(String sheetPart, InputStream in) throws IOException {
+		Set<String> droppedRels = new HashSet<String>();
+		for (Relationship rel : readRelationships(in, sheetPart)) {
+			if (rel.isType(SpreadsheetXml.REL_COMMENTS) || rel.isType(SpreadsheetXml.REL_VML_DRAWING)) {
+				droppedRels.add(rel.getId());
+				if (!rel.isExternal()) {
+					droppedParts.add(rel.getTarget());
+				}
+			}
+		}
+		droppedSheetRels.put(SpreadsheetXml.relationshipsPartName(sheetPart), droppedRels);
+	}
+
+	/**
+	 * Read the race start times from the starts sheet and write them to the summary sheet
+	 */
+	void readStartTimes(InputStream in) throws IOException {
+		Map<String, Double> startTimes = getStartTimes(in);
+		if (startTimes.size() > 0 && raceSheetNames.size() > 0 && sheetParts.containsKey(SHEET_SUMMARY)) {
+			SheetExport summarySheet = sheetExports.get(sheetParts.get(SHEET_SUMMARY));
+			int rowNum = 2;
+			for (String sheetName : raceSheetNames) {
+				// Add times to column AA from row 2 down, in the order that the sheets appear
+				summarySheet.addOverride(rowNum++, CellOverride.number(SUMMARY_START_TIME_COLUMN, startTimes.get(sheetName), styles.getTime()));
+			}
+		}
+	}
+
+	/**
+	 * @return A rewriter for worksheets, which may only be used by one thread
+	 */
+	WorksheetRewriter newWorksheetRewriter() {
+		return new WorksheetRewriter(sharedStrings, styles);
+	}
+
+	void writeContentTypes(InputStream in, OutputStream out, boolean addCustomProperties) throws IOException {
+		packageRewriter.rewriteContentTypes(in, out, droppedParts, addCustomProperties);
+	}
+
+	void writeRootRelationships(InputStream in, OutputStream out, boolean addCustomProperties) throws IOException {
+		packageRewriter.rewriteRelationships(in, out, Collections.<String>emptySet(),
+				addCustomProperties ? SpreadsheetXml.REL_TYPE_CUSTOM_PROPERTIES : null, SpreadsheetXml.CUSTOM_PROPERTIES_PART);
+	}
+
+	/**
+	 * Write new custom properties, for a package which does not have any
+	 */
+	void writeCustomProperties(OutputStream out) throws IOException {
+		packageRewriter.rewriteCustomProperties(null, out, hrmFileType, settings.getVersion());
+	}
+
+	/**
+	 * Rewrite or copy any part other than the content types and package relationships
+	 */
+	void writePart(String name, InputStream in, OutputStream out) throws IOException {
+		if (name.equals(workbookPart)) {
+			packageRewriter.rewriteWorkbook(in, out, removedSheets, sheetPassword);
+		} else if (name.equals(workbookRelsPart)) {
+			packageRewriter.rewriteRelationships(in, out, droppedWorkbookRels, null, null);
+		} else if (name.equals(stylesPart)) {
+			stylesRewriter.rewrite(in, out);
+		} else if (name.equals(customPropertiesPart)) {
+			packageRewriter.rewriteCustomProperties(in, out, hrmFileType, settings.getVersion());
+		} else if (sheetExports.containsKey(name)) {
+			worksheetRewriter.rewrite(sheetExports.get(name), in, out);
+		} else if (droppedSheetRels.containsKey(name)) {
+			packageRewriter.rewriteRelationships(in, out, droppedSheetRels.get(name), null, null);
+		} else {
+			copy(in, out);
+		}
+	}
+
+	static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+	}
+
+	private static InputStream getRequiredPart(Parts parts, String part) throws IOException {
+		InputStream in = part != null ? parts.getInputStream(part) : null;
+		if (in == null) {
+			throw new IOException("Workbook part " + part + " not found");
+		}
+		return in;
+	}
+
+	private static List<Relationship> readRelationships(InputStream in, String part) throws IOException {
+		if (in == null) {
+			return Collections.emptyList();
+		}
+		try {
+			return SpreadsheetXml.readRelationships(in, part);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the shared strings table, ignoring formatting runs and phonetic text
+	 */
+	private static String[] readSharedStrings(InputStream in) throws IOException {
+		List<String> strings = new ArrayList<String>();
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			StringBuilder text = null;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					String name = event.asStartElement().getName().getLocalPart();
+					if (name.equals("si")) {
+						text = new StringBuilder();
+					} else if (name.equals("rPh")) {
+						SpreadsheetXml.skipElement(reader);
+					} else if (name.equals("t") && text != null) {
+						text.append(SpreadsheetXml.readText(reader));
+					}
+				} else if (event.isEndElement() && event.asEndElement().getName().getLocalPart().equals("si")) {
+					strings.add(text.toString());
+					text = null;
+				}
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read shared strings", e);
+		} finally {
+			in.close();
+		}
+		return strings.toArray(new String[strings.size()]);
+	}
+
+	/**
+	 * Read the race start times from the first two columns of the starts sheet
+	 */
+	private Map<String, Double> getStartTimes(InputStream in) throws IOException {
+		Map<String, Double> times = new HashMap<String, Double>();
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement() && event.asStartElement().getName().getLocalPart().equals("row")) {
+					String raceName = null;
+					double startTime = Double.NaN;
+					for (SheetCell cell : worksheetRewriter.readRow(reader)) {
+						if (cell.getColumn() == 0) {
+							raceName = cell.getStringValue(sharedStrings);
+						} else if (cell.getColumn() == 1) {
+							startTime = cell.isNumeric() ? Double.parseDouble(cell.getValue()) : CellValues.toNumber(cell.getStringValue(sharedStrings));
+						}
+					}
+					if (raceName != null && !Double.isNaN(startTime)) {
+						times.put(raceName, startTime);
+					}
+				}
+			}
+			reader.close();
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid start time in sheet " + SHEET_STARTS, e);
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read sheet " + SHEET_STARTS, e);
+		} finally {
+			in.close();
+		}
+		return times;
+	}
+
+}
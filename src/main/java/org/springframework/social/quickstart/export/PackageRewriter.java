@@ -0,0 +1,341 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Streaming rewrites of the package-level parts of a workbook: content types, relationships,
+ * the workbook part and the custom document properties.
+ */
+final class PackageRewriter {
+
+	private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+	/**
+	 * A sheet listed in the workbook part
+	 */
+	static final class Sheet {
+
+		private final String name;
+		private final String relationshipId;
+
+		Sheet(String name, String relationshipId) {
+			this.name = name;
+			this.relationshipId = relationshipId;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getRelationshipId() {
+			return relationshipId;
+		}
+
+	}
+
+	/**
+	 * @return The sheets listed in the workbook part, in workbook order
+	 */
+	List<Sheet> readSheets(InputStream in) throws IOException {
+		List<Sheet> sheets = new ArrayList<Sheet>();
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement element = event.asStartElement();
+					String name = element.getName().getLocalPart();
+					if (name.equals("sheet")) {
+						sheets.add(new Sheet(SpreadsheetXml.attribute(element, "name"), SpreadsheetXml.relationshipId(element)));
+					} else if (name.equals("definedNames") || name.equals("calcPr")) {
+						break;
+					}
+				}
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read workbook", e);
+		}
+		return sheets;
+	}
+
+	/**
+	 * Remove sheets from the workbook part and protect the workbook structure
+	 * @param removedSheets Indexes of the sheets to remove
+	 * @param password Workbook password, or null to lock the structure without a password
+	 */
+	void rewriteWorkbook(InputStream in, OutputStream out, Set<Integer> removedSheets, String password) throws IOException {
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			XMLEventWriter writer = SpreadsheetXml.createOutputFactory().createXMLEventWriter(out, "UTF-8");
+			int sheetIndex = 0;
+			boolean protectionWritten = false;
+			int depth = 0;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					depth++;
+					StartElement element = event.asStartElement();
+					String name = element.getName().getLocalPart();
+					if (depth == 2 && !protectionWritten && (name.equals("bookViews") || name.equals("sheets") || name.equals("workbookProtection"))) {
+						protectionWritten = true;
+						writeWorkbookProtection(writer, element, name.equals("workbookProtection") ? element : null, password);
+						if (name.equals("workbookProtection")) {
+							SpreadsheetXml.skipElement(reader);
+							depth--;
+							continue;
+						}
+					}
+					if (name.equals("sheet")) {
+						if (removedSheets.contains(sheetIndex++)) {
+							SpreadsheetXml.skipElement(reader);
+							depth--;
+							continue;
+						}
+					} else if (name.equals("definedName") && SpreadsheetXml.attribute(element, "localSheetId") != null) {
+						int localSheetId = Integer.parseInt(SpreadsheetXml.attribute(element, "localSheetId"));
+						if (removedSheets.contains(localSheetId)) {
+							SpreadsheetXml.skipElement(reader);
+							depth--;
+							continue;
+						}
+						event = withSheetIndex(element, "localSheetId", removedSheets);
+					} else if (name.equals("workbookView")) {
+						event = withSheetIndex(withSheetIndex(element, "activeTab", removedSheets), "firstSheet", removedSheets);
+					}
+					writer.add(event);
+				} else {
+					if (event.isEndElement()) {
+						depth--;
+					}
+					writer.add(event);
+				}
+			}
+			writer.flush();
+			writer.close();
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not rewrite workbook", e);
+		}
+	}
+
+	private void writeWorkbookProtection(XMLEventWriter writer, StartElement next, StartElement existing, String password) throws XMLStreamException {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		if (password != null) {
+			attributes.add(eventFactory.createAttribute("workbookPassword", WorksheetRewriter.passwordHash(password)));
+		}
+		attributes.add(eventFactory.createAttribute("lockStructure", "1"));
+		if (existing != null) {
+			Iterator<?> existingAttributes = existing.getAttributes();
+			while (existingAttributes.hasNext()) {
+				Attribute attribute = (Attribute) existingAttributes.next();
+				String name = attribute.getName().getLocalPart();
+				if (!name.startsWith("workbook") && !name.equals("lockStructure")) {
+					attributes.add(attribute);
+				}
+			}
+		}
+		QName name = new QName(next.getName().getNamespaceURI(), "workbookProtection", next.getName().getPrefix());
+		writer.add(eventFactory.createStartElement(name, attributes.iterator(), null));
+		writer.add(eventFactory.createEndElement(name, null));
+	}
+
+	/**
+	 * Adjust a sheet index attribute to allow for the removed sheets
+	 */
+	private StartElement withSheetIndex(StartElement element, String attributeName, Set<Integer> removedSheets) {
+		String value = SpreadsheetXml.attribute(element, attributeName);
+		if (value == null) {
+			return element;
+		}
+		int index = Integer.parseInt(value);
+		int newIndex = index;
+		for (Integer removed : removedSheets) {
+			if (removed < index) {
+				newIndex--;
+			}
+		}
+		if (removedSheets.contains(index)) {
+			newIndex = 0;
+		}
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Iterator<?> existing = element.getAttributes();
+		while (existing.hasNext()) {
+			Attribute attribute = (Attribute) existing.next();
+			if (attribute.getName().getLocalPart().equals(attributeName)) {
+				attributes.add(eventFactory.createAttribute(attributeName, Integer.toString(newIndex)));
+			} else {
+				attributes.add(attribute);
+			}
+		}
+		return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+	}
+
+	/**
+	 * Drop overrides for parts which are not being exported, and add one for the custom properties if needed
+	 */
+	void rewriteContentTypes(InputStream in, OutputStream out, Set<String> droppedParts, boolean addCustomProperties) throws IOException {
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			XMLEventWriter writer = SpreadsheetXml.createOutputFactory().createXMLEventWriter(out, "UTF-8");
+			QName overrideName = null;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement element = event.asStartElement();
+					if (element.getName().getLocalPart().equals("Override")) {
+						overrideName = element.getName();
+						String partName = SpreadsheetXml.attribute(element, "PartName");
+						if (partName != null) {
+							partName = SpreadsheetXml.resolvePartName(null, partName);
+							if (droppedParts.contains(partName) || (addCustomProperties && partName.equals(SpreadsheetXml.CUSTOM_PROPERTIES_PART))) {
+								SpreadsheetXml.skipElement(reader);
+								continue;
+							}
+						}
+					} else if (element.getName().getLocalPart().equals("Types") && overrideName == null) {
+						overrideName = new QName(element.getName().getNamespaceURI(), "Override", element.getName().getPrefix());
+					}
+				} else if (event.isEndElement() && event.asEndElement().getName().getLocalPart().equals("Types") && addCustomProperties) {
+					List<Attribute> attributes = new ArrayList<Attribute>();
+					attributes.add(eventFactory.createAttribute("PartName", "/" + SpreadsheetXml.CUSTOM_PROPERTIES_PART));
+					attributes.add(eventFactory.createAttribute("ContentType", SpreadsheetXml.CONTENT_TYPE_CUSTOM_PROPERTIES));
+					writer.add(eventFactory.createStartElement(overrideName, attributes.iterator(), null));
+					writer.add(eventFactory.createEndElement(overrideName, null));
+				}
+				writer.add(event);
+			}
+			writer.flush();
+			writer.close();
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not rewrite content types", e);
+		}
+	}
+
+	/**
+	 * Copy a relationships part, dropping the relationships with the given ids
+	 * @param addType Type of a relationship to add, or null
+	 * @param addTarget Target of the added relationship, relative to the package root
+	 */
+	void rewriteRelationships(InputStream in, OutputStream out, Set<String> droppedIds, String addType, String addTarget) throws IOException {
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			XMLEventWriter writer = SpreadsheetXml.createOutputFactory().createXMLEventWriter(out, "UTF-8");
+			QName relationshipName = null;
+			List<String> ids = new ArrayList<String>();
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement element = event.asStartElement();
+					if (element.getName().getLocalPart().equals("Relationship")) {
+						String id = SpreadsheetXml.attribute(element, "Id");
+						ids.add(id);
+						if (droppedIds.contains(id)) {
+							SpreadsheetXml.skipElement(reader);
+							continue;
+						}
+					} else if (element.getName().getLocalPart().equals("Relationships")) {
+						relationshipName = new QName(element.getName().getNamespaceURI(), "Relationship", element.getName().getPrefix());
+					}
+				} else if (event.isEndElement() && event.asEndElement().getName().getLocalPart().equals("Relationships") && addType != null) {
+					String id = "rId" + (ids.size() + 1);
+					for (int i = ids.size() + 2; ids.contains(id); i++) {
+						id = "rId" + i;
+					}
+					List<Attribute> attributes = new ArrayList<Attribute>();
+					attributes.add(eventFactory.createAttribute("Id", id));
+					attributes.add(eventFactory.createAttribute("Type", addType));
+					attributes.add(eventFactory.createAttribute("Target", addTarget));
+					writer.add(eventFactory.createStartElement(relationshipName, attributes.iterator(), null));
+					writer.add(eventFactory.createEndElement(relationshipName, null));
+				}
+				writer.add(event);
+			}
+			writer.flush();
+			writer.close();
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not rewrite relationships", e);
+		}
+	}
+
+	/**
+	 * Add the HRM type and version to the custom document properties
+	 * @param in The existing custom properties part, or null to create a new part
+	 * @param hrmType The HRM file type, or null if this is not known
+	 */
+	void rewriteCustomProperties(InputStream in, OutputStream out, String hrmType, double version) throws IOException {
+		try {
+			XMLEventWriter writer = SpreadsheetXml.createOutputFactory().createXMLEventWriter(out, "UTF-8");
+			if (in != null) {
+				XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+				QName rootName = null;
+				while (reader.hasNext()) {
+					XMLEvent event = reader.nextEvent();
+					if (event.isStartElement() && rootName == null) {
+						rootName = event.asStartElement().getName();
+					} else if (event.isEndElement() && event.asEndElement().getName().equals(rootName)) {
+						writeCustomProperties(writer, rootName, hrmType, version);
+					}
+					writer.add(event);
+				}
+				reader.close();
+			} else {
+				QName rootName = new QName(SpreadsheetXml.NS_CUSTOM_PROPERTIES, "Properties");
+				List<Namespace> namespaces = new ArrayList<Namespace>();
+				namespaces.add(eventFactory.createNamespace(SpreadsheetXml.NS_CUSTOM_PROPERTIES));
+				namespaces.add(eventFactory.createNamespace("vt", SpreadsheetXml.NS_VTYPES));
+				writer.add(eventFactory.createStartDocument("UTF-8", "1.0", true));
+				writer.add(eventFactory.createStartElement(rootName, null, namespaces.iterator()));
+				writeCustomProperties(writer, rootName, hrmType, version);
+				writer.add(eventFactory.createEndElement(rootName, null));
+				writer.add(eventFactory.createEndDocument());
+			}
+			writer.flush();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not write custom properties", e);
+		}
+	}
+
+	private void writeCustomProperties(XMLEventWriter writer, QName rootName, String hrmType, double version) throws XMLStreamException {
+		if (hrmType != null) {
+			writeCustomProperty(writer, rootName, hrmType, 2, "bool", "true");
+		}
+		writeCustomProperty(writer, rootName, "Version", 3, "r8", Double.toString(version));
+	}
+
+	private void writeCustomProperty(XMLEventWriter writer, QName rootName, String name, int pid, String valueType, String value) throws XMLStreamException {
+		QName propertyName = new QName(rootName.getNamespaceURI(), "property", rootName.getPrefix());
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(eventFactory.createAttribute("fmtid", HrmWorkbook.PROP_FMTID));
+		attributes.add(eventFactory.createAttribute("pid", Integer.toString(pid)));
+		attributes.add(eventFactory.createAttribute("name", name));
+		writer.add(eventFactory.createStartElement(propertyName, attributes.iterator(), null));
+		QName valueName = new QName(SpreadsheetXml.NS_VTYPES, valueType, "vt");
+		List<Namespace> namespaces = Collections.singletonList(eventFactory.createNamespace("vt", SpreadsheetXml.NS_VTYPES));
+		writer.add(eventFactory.createStartElement(valueName, null, namespaces.iterator()));
+		writer.add(eventFactory.createCharacters(value));
+		writer.add(eventFactory.createEndElement(valueName, null));
+		writer.add(eventFactory.createEndElement(propertyName, null));
+	}
+
+}
@@ -0,0 +1,332 @@
+package org.springframework.social.quickstart.export;
+
+import static org.springframework.social.quickstart.export.HrmWorkbook.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+
+/**
+ * A single export of a workbook which is read from a stream, such as the response to a Drive download.
+ * <p>
+ * Parts are read in the order that they appear in the source package. Until the package-level parts have
+ * arrived, every part is spooled to a temporary file. After that each worksheet is rewritten straight from
+ * the download as it arrives, so that reading the rest of the package overlaps with rewriting the worksheets
+ * and no worksheet is held in full. Other parts are spooled until the end, when it is known which of them
+ * are no longer needed.
+ */
+final class PipelinedExport {
+
+	private final ExportSettings settings;
+	private final ZipOutputStream zipOut;
+	private final TempStorage tempStorage;
+	private final Map<String, Part> heldParts = new LinkedHashMap<String, Part>();
+	private final List<Part> deferredParts = new ArrayList<Part>();
+	private final List<Part> spooledParts = new ArrayList<Part>();
+	private PackageExport packageExport;
+	private Part heldSummary;
+	private boolean startTimesRead;
+
+	/**
+	 * A part of the package which has been spooled to a temporary file
+	 */
+	private static final class Part {
+
+		private final String name;
+		private final long time;
+		private final File data;
+
+		Part(String name, long time, File data) {
+			this.name = name;
+			this.time = time;
+			this.data = data;
+		}
+
+		InputStream getInputStream() throws IOException {
+			return new BufferedInputStream(new FileInputStream(data));
+		}
+
+	}
+
+	/**
+	 * @param tempStorage Storage for parts which cannot be written out yet, or null to use the system temporary directory
+	 */
+	PipelinedExport(ExportSettings settings, OutputStream out, TempStorage tempStorage) {
+		this.settings = settings;
+		this.zipOut = new ZipOutputStream(out);
+		this.tempStorage = tempStorage;
+	}
+
+	void run(InputStream source) throws IOException {
+		try {
+			ZipInputStream zipIn = new ZipInputStream(source);
+			ZipEntry entry;
+			while ((entry = zipIn.getNextEntry()) != null) {
+				if (entry.isDirectory()) {
+					continue;
+				}
+				if (packageExport != null) {
+					process(entry, zipIn);
+				} else {
+					Part part = spool(entry, zipIn);
+					heldParts.put(part.name, part);
+					if (hasPackageParts()) {
+						start();
+					}
+				}
+			}
+			if (packageExport == null) {
+				start();
+			}
+			finish();
+		} finally {
+			for (Part part : spooledParts) {
+				deleteSpoolFile(part.data);
+			}
+		}
+	}
+
+	/**
+	 * @return True if the parts needed to work out how the package should be rewritten have been read
+	 */
+	private boolean hasPackageParts() throws IOException {
+		Part rootRels = heldParts.get(SpreadsheetXml.ROOT_RELS_PART);
+		if (rootRels == null) {
+			return false;
+		}
+		Relationship workbookRel = SpreadsheetXml.findRelationship(readRelationships(rootRels, null), SpreadsheetXml.REL_OFFICE_DOCUMENT);
+		String workbookPart = workbookRel != null ? workbookRel.getTarget() : "xl/workbook.xml";
+		Part workbookRels = heldParts.get(SpreadsheetXml.relationshipsPartName(workbookPart));
+		if (!heldParts.containsKey(workbookPart) || workbookRels == null) {
+			return false;
+		}
+		for (Relationship rel : readRelationships(workbookRels, workbookPart)) {
+			if ((rel.isType(SpreadsheetXml.REL_SHARED_STRINGS) || rel.isType(SpreadsheetXml.REL_STYLES)) &&
+					!heldParts.containsKey(rel.getTarget())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Relationship> readRelationships(Part part, String sourcePart) throws IOException {
+		InputStream in = part.getInputStream();
+		try {
+			return SpreadsheetXml.readRelationships(in, sourcePart);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Work out how the package should be rewritten, then process the parts which have been held so far
+	 */
+	private void start() throws IOException {
+		packageExport = new PackageExport(new PackageExport.Parts() {
+			public InputStream getInputStream(String part) throws IOException {
+				return heldParts.containsKey(part) ? heldParts.get(part).getInputStream() : null;
+			}
+		}, settings);
+		for (Part part : heldParts.values()) {
+			process(part);
+		}
+	}
+
+	/**
+	 * Process a part as it is read from the download, once it is known how the package should be rewritten
+	 */
+	private void process(ZipEntry entry, ZipInputStream zipIn) throws IOException {
+		String name = entry.getName();
+		if (packageExport.isDropped(name) && !name.equals(packageExport.getSheetPart(SHEET_STARTS))) {
+			writeHeldSummary();
+			return;
+		}
+		boolean waitForStarts = name.equals(packageExport.getSheetPart(SHEET_SUMMARY)) &&
+				packageExport.getSheetPart(SHEET_STARTS) != null && !startTimesRead;
+		if (!packageExport.getSheetExports().containsKey(name) || waitForStarts ||
+				name.equals(packageExport.getSheetPart(SHEET_STARTS))) {
+			// Parts which are read more than once, or written later, are spooled
+			process(spool(entry, zipIn));
+			return;
+		}
+		// Keep the bytes which are read to find the header row, then carry on reading where they end
+		InputStream in = new CloseShieldInputStream(zipIn);
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		packageExport.readHeader(name, new TeeInputStream(in, head));
+		InputStream sheet = new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), in);
+		zipOut.putNextEntry(newEntry(name, entry.getTime()));
+		packageExport.writePart(name, sheet, zipOut);
+		zipOut.closeEntry();
+		writeHeldSummary();
+	}
+
+	private void process(Part part) throws IOException {
+		String startsPart = packageExport.getSheetPart(SHEET_STARTS);
+		if (part.name.equals(startsPart)) {
+			// The starts sheet is read even if it is not exported, as the start times are written to the summary sheet
+			readStartTimes(part);
+		}
+		if (packageExport.isDropped(part.name)) {
+			writeHeldSummary();
+			return;
+		}
+		if (!packageExport.getSheetExports().containsKey(part.name)) {
+			String sheetPart = packageExport.getSheetPartForRelationships(part.name);
+			if (sheetPart != null) {
+				InputStream in = part.getInputStream();
+				try {
+					packageExport.readSheetRelationships(sheetPart, in);
+				} finally {
+					in.close();
+				}
+			}
+			deferredParts.add(part);
+			return;
+		}
+		InputStream in = part.getInputStream();
+		try {
+			packageExport.readHeader(part.name, in);
+		} finally {
+			in.close();
+		}
+		if (part.name.equals(packageExport.getSheetPart(SHEET_SUMMARY)) && startsPart != null && !startTimesRead) {
+			// Start times are written to the summary sheet, so it must wait for the starts sheet
+			heldSummary = part;
+		} else {
+			write(part);
+			writeHeldSummary();
+		}
+	}
+
+	private void readStartTimes(Part part) throws IOException {
+		InputStream in = part.getInputStream();
+		try {
+			packageExport.readStartTimes(in);
+		} finally {
+			in.close();
+		}
+		startTimesRead = true;
+	}
+
+	private void writeHeldSummary() throws IOException {
+		if (heldSummary != null && startTimesRead) {
+			write(heldSummary);
+			heldSummary = null;
+		}
+	}
+
+	/**
+	 * Write the remaining parts, finishing with the content types and package relationships which depend on
+	 * which parts have been left out
+	 */
+	private void finish() throws IOException {
+		if (heldSummary != null) {
+			write(heldSummary);
+		}
+		Part contentTypes = null;
+		Part rootRels = null;
+		Part workbook = null;
+		boolean addCustomProperties = true;
+		for (Part part : deferredParts) {
+			if (part.name.equals(SpreadsheetXml.CONTENT_TYPES_PART)) {
+				contentTypes = part;
+			} else if (part.name.equals(SpreadsheetXml.ROOT_RELS_PART)) {
+				rootRels = part;
+			} else if (!packageExport.isDropped(part.name)) {
+				if (part.name.equals(packageExport.getCustomPropertiesPart())) {
+					addCustomProperties = false;
+				} else if (part.name.equals(packageExport.getWorkbookPart())) {
+					workbook = part;
+				}
+				write(part);
+			}
+		}
+		if (contentTypes == null || rootRels == null) {
+			throw new IOException("Workbook part " + (contentTypes == null ? SpreadsheetXml.CONTENT_TYPES_PART :
+				SpreadsheetXml.ROOT_RELS_PART) + " not found");
+		}
+		if (addCustomProperties) {
+			zipOut.putNextEntry(newEntry(SpreadsheetXml.CUSTOM_PROPERTIES_PART, workbook != null ? workbook.time : contentTypes.time));
+			packageExport.writeCustomProperties(zipOut);
+			zipOut.closeEntry();
+		}
+		zipOut.putNextEntry(newEntry(contentTypes.name, contentTypes.time));
+		InputStream in = contentTypes.getInputStream();
+		try {
+			packageExport.writeContentTypes(in, zipOut, addCustomProperties);
+		} finally {
+			in.close();
+		}
+		zipOut.closeEntry();
+		zipOut.putNextEntry(newEntry(rootRels.name, rootRels.time));
+		in = rootRels.getInputStream();
+		try {
+			packageExport.writeRootRelationships(in, zipOut, addCustomProperties);
+		} finally {
+			in.close();
+		}
+		zipOut.closeEntry();
+		zipOut.finish();
+	}
+
+	private void write(Part part) throws IOException {
+		zipOut.putNextEntry(newEntry(part.name, part.time));
+		InputStream in = part.getInputStream();
+		try {
+			packageExport.writePart(part.name, in, zipOut);
+		} finally {
+			in.close();
+		}
+		zipOut.closeEntry();
+	}
+
+	private static ZipEntry newEntry(String name, long time) {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setTime(time);
+		return entry;
+	}
+
+	/**
+	 * Copy the entry which has just been started to a temporary file
+	 */
+	private Part spool(ZipEntry entry, ZipInputStream zipIn) throws IOException {
+		File file = tempStorage != null ? tempStorage.createTempFile(TempStorage.PREFIX_SHEET, ".part") :
+			File.createTempFile(TempStorage.PREFIX_SHEET, ".part");
+		Part part = new Part(entry.getName(), entry.getTime(), file);
+		spooledParts.add(part);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			PackageExport.copy(zipIn, out);
+		} finally {
+			out.close();
+		}
+		return part;
+	}
+
+	private void deleteSpoolFile(File file) {
+		if (tempStorage != null) {
+			tempStorage.delete(file);
+		} else {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link HrmExporter} which can also export a workbook while it is still being downloaded.
+ */
+public interface PipelinedHrmExporter extends HrmExporter {
+
+	/**
+	 * Export the workbook as it is read
+	 * @param source Stream of the XLSX file downloaded from Drive. This is read to the end but not closed.
+	 * @param settings Race details and file type, taken from the Drive file properties
+	 * @param out Stream to write the HRM workbook to. This is not closed by the exporter.
+	 */
+	void export(InputStream source, ExportSettings settings, OutputStream out) throws IOException;
+
+}
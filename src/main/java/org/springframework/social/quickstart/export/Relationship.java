@@ -0,0 +1,46 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * A relationship read from an OPC <code>.rels</code> part.
+ */
+final class Relationship {
+
+	private final String id;
+	private final String type;
+	private final String target;
+	private final boolean external;
+
+	Relationship(String id, String type, String target, boolean external) {
+		this.id = id;
+		this.type = type;
+		this.target = target;
+		this.external = external;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return The target part name, resolved against the source part, or the target URI if external
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	public boolean isExternal() {
+		return external;
+	}
+
+	/**
+	 * Relationship types differ between the transitional and strict schemas, so only compare the last path segment
+	 */
+	public boolean isType(String typeName) {
+		return type != null && type.endsWith("/" + typeName);
+	}
+
+}
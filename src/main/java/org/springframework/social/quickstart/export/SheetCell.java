@@ -0,0 +1,227 @@
+package org.springframework.social.quickstart.export;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * A single <code>&lt;c&gt;</code> element buffered from a worksheet part, so that its value can be
+ * inspected before it is written out again.
+ */
+final class SheetCell {
+
+	static final String TYPE_SHARED_STRING = "s";
+	static final String TYPE_FORMULA_STRING = "str";
+	static final String TYPE_INLINE_STRING = "inlineStr";
+	static final String TYPE_NUMBER = "n";
+
+	private final int column;
+	private final String style;
+	private final String type;
+	private final List<XMLEvent> formula;
+	private final String value;
+	private final List<Attribute> otherAttributes;
+	private final List<XMLEvent> content;
+
+	private SheetCell(int column, String style, String type, List<XMLEvent> formula, String value,
+			List<Attribute> otherAttributes, List<XMLEvent> content) {
+		this.column = column;
+		this.style = style;
+		this.type = type;
+		this.formula = formula;
+		this.value = value;
+		this.otherAttributes = otherAttributes;
+		this.content = content;
+	}
+
+	/**
+	 * Read a cell whose start element has just been consumed from the reader
+	 * @param defaultColumn Column index to use if the cell has no reference
+	 */
+	static SheetCell read(XMLEventReader reader, StartElement start, int defaultColumn) throws XMLStreamException {
+		int column = defaultColumn;
+		String style = null, type = null;
+		List<Attribute> otherAttributes = new ArrayList<Attribute>(0);
+		Iterator<?> attributes = start.getAttributes();
+		while (attributes.hasNext()) {
+			Attribute attribute = (Attribute) attributes.next();
+			String name = attribute.getName().getLocalPart();
+			if (name.equals("r")) {
+				column = SpreadsheetXml.columnIndex(attribute.getValue());
+			} else if (name.equals("s")) {
+				style = attribute.getValue();
+			} else if (name.equals("t")) {
+				type = attribute.getValue();
+			} else {
+				otherAttributes.add(attribute);
+			}
+		}
+		List<XMLEvent> formula = new ArrayList<XMLEvent>(0);
+		String value = null;
+		StringBuilder inlineText = null;
+		List<XMLEvent> content = new ArrayList<XMLEvent>(4);
+		int depth = 1;
+		boolean inText = false;
+		while (reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			if (event.isStartElement()) {
+				String name = event.asStartElement().getName().getLocalPart();
+				if (depth == 1 && name.equals("f")) {
+					formula.add(event);
+					copyElement(reader, formula);
+					continue;
+				}
+				if (depth == 1 && name.equals("v")) {
+					content.add(event);
+					value = readValue(reader, content);
+					continue;
+				}
+				if (name.equals("rPh")) {
+					// Phonetic runs are not part of the cell text
+					content.add(event);
+					copyElement(reader, content);
+					continue;
+				}
+				if (name.equals("t")) {
+					inText = true;
+					if (inlineText == null) {
+						inlineText = new StringBuilder();
+					}
+				}
+				depth++;
+			} else if (event.isEndElement()) {
+				depth--;
+				if (depth == 0) {
+					break;
+				}
+				if (event.asEndElement().getName().getLocalPart().equals("t")) {
+					inText = false;
+				}
+			} else if (inText && event.isCharacters()) {
+				inlineText.append(event.asCharacters().getData());
+			}
+			content.add(event);
+		}
+		if (TYPE_INLINE_STRING.equals(type)) {
+			value = inlineText != null ? inlineText.toString() : "";
+		}
+		return new SheetCell(column, style, type, formula, value, otherAttributes, content);
+	}
+
+	private static String readValue(XMLEventReader reader, List<XMLEvent> content) throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		while (reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			content.add(event);
+			if (event.isEndElement()) {
+				break;
+			} else if (event.isCharacters()) {
+				text.append(event.asCharacters().getData());
+			}
+		}
+		return text.toString();
+	}
+
+	private static void copyElement(XMLEventReader reader, List<XMLEvent> content) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			if (event.isStartElement()) {
+				depth++;
+			} else if (event.isEndElement()) {
+				depth--;
+			}
+			content.add(event);
+		}
+	}
+
+	/**
+	 * @return Zero-based column index of the cell in the source sheet
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	/**
+	 * @return The cell style index, or null if the cell uses the default style
+	 */
+	public String getStyle() {
+		return style;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public boolean hasFormula() {
+		return !formula.isEmpty();
+	}
+
+	/**
+	 * @return Text of the cell value, or null if the cell has no value. For shared strings this is the string index.
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	public List<Attribute> getOtherAttributes() {
+		return otherAttributes;
+	}
+
+	/**
+	 * @return Child events of the cell, excluding any formula
+	 */
+	public List<XMLEvent> getContent() {
+		return content;
+	}
+
+	/**
+	 * @return Child events of the cell, starting with any formula
+	 */
+	public List<XMLEvent> getContentWithFormula() {
+		if (formula.isEmpty()) {
+			return content;
+		}
+		List<XMLEvent> events = new ArrayList<XMLEvent>(formula.size() + content.size());
+		events.addAll(formula);
+		events.addAll(content);
+		return events;
+	}
+
+	public boolean isString() {
+		return TYPE_SHARED_STRING.equals(type) || TYPE_FORMULA_STRING.equals(type) || TYPE_INLINE_STRING.equals(type);
+	}
+
+	public boolean isNumeric() {
+		return (type == null || TYPE_NUMBER.equals(type)) && value != null;
+	}
+
+	/**
+	 * @return The text of a string cell, or null if the cell does not hold a string
+	 */
+	public String getStringValue(String[] sharedStrings) {
+		if (TYPE_SHARED_STRING.equals(type)) {
+			if (value == null) {
+				return "";
+			}
+			try {
+				int index = Integer.parseInt(value.trim());
+				return index >= 0 && index < sharedStrings.length ? sharedStrings[index] : "";
+			} catch (NumberFormatException e) {
+				return "";
+			}
+		} else if (TYPE_FORMULA_STRING.equals(type)) {
+			return value != null ? value : "";
+		} else if (TYPE_INLINE_STRING.equals(type)) {
+			return value;
+		}
+		return null;
+	}
+
+}
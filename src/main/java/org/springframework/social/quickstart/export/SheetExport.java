@@ -0,0 +1,119 @@
+package org.springframework.social.quickstart.export;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Describes how a single worksheet part should be rewritten by the {@link WorksheetRewriter}.
+ */
+final class SheetExport {
+
+	enum Protection {
+		/** Leave any existing sheet protection as it is */
+		KEEP,
+		/** Remove sheet protection */
+		REMOVE,
+		/** Protect the sheet with the given password */
+		PROTECT
+	}
+
+	private final String name;
+	private boolean raceSheet;
+	private Protection protection = Protection.KEEP;
+	private String password;
+	private SheetPlan plan;
+	private final SortedMap<Integer, List<CellOverride>> overrides = new TreeMap<Integer, List<CellOverride>>();
+
+	SheetExport(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isRaceSheet() {
+		return raceSheet;
+	}
+
+	public void setRaceSheet(boolean raceSheet) {
+		this.raceSheet = raceSheet;
+	}
+
+	public Protection getProtection() {
+		return protection;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setProtection(Protection protection, String password) {
+		this.protection = protection;
+		this.password = password;
+	}
+
+	/**
+	 * @return Plan for the columns of the sheet, or null if the sheet has no header row
+	 */
+	public SheetPlan getPlan() {
+		return plan;
+	}
+
+	public void setPlan(SheetPlan plan) {
+		this.plan = plan;
+	}
+
+	public boolean hasHeader() {
+		return plan != null;
+	}
+
+	public ColumnAction getColumnAction(int column) {
+		return plan != null ? plan.getAction(column) : ColumnAction.KEEP;
+	}
+
+	public boolean hasRemovedColumns() {
+		return plan != null && plan.hasRemovedColumns();
+	}
+
+	/**
+	 * @return Index of the column in the exported sheet, or -1 if the column is removed
+	 */
+	public int mapColumn(int column) {
+		return plan != null ? plan.map(column) : column;
+	}
+
+	public boolean isPositionColumn(int column) {
+		return plan != null && plan.isPositionColumn(column);
+	}
+
+	/**
+	 * @return Cells to replace in the exported sheet, keyed by one-based row number and sorted by column
+	 */
+	public SortedMap<Integer, List<CellOverride>> getOverrides() {
+		return overrides;
+	}
+
+	/**
+	 * @param rowNum One-based row number
+	 */
+	public void addOverride(int rowNum, CellOverride override) {
+		List<CellOverride> row = overrides.get(rowNum);
+		if (row == null) {
+			row = new ArrayList<CellOverride>();
+			overrides.put(rowNum, row);
+		}
+		int i = 0;
+		while (i < row.size() && row.get(i).getColumn() < override.getColumn()) {
+			i++;
+		}
+		if (i < row.size() && row.get(i).getColumn() == override.getColumn()) {
+			row.set(i, override);
+		} else {
+			row.add(i, override);
+		}
+	}
+
+}
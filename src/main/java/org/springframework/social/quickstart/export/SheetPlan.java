@@ -0,0 +1,67 @@
+package org.springframework.social.quickstart.export;
+
+/**
+ * The compiled rules for a sheet with a particular header row, giving the action and new position
+ * of each column by its index. Plans are immutable, so that they can be shared between exports.
+ */
+final class SheetPlan {
+
+	private final ColumnAction[] actions;
+	private final int[] columnMap;
+	private final int removedColumns;
+
+	/**
+	 * @param actions Action for each column of the header row
+	 */
+	SheetPlan(ColumnAction[] actions) {
+		this.actions = actions;
+		this.columnMap = new int[actions.length];
+		int removed = 0;
+		for (int i = 0; i < actions.length; i++) {
+			if (actions[i] == ColumnAction.REMOVE) {
+				columnMap[i] = -1;
+				removed++;
+			} else {
+				columnMap[i] = i - removed;
+			}
+		}
+		this.removedColumns = removed;
+	}
+
+	/**
+	 * @return The action for the column. Columns beyond the header row are kept.
+	 */
+	public ColumnAction getAction(int column) {
+		return column < actions.length ? actions[column] : ColumnAction.KEEP;
+	}
+
+	/**
+	 * @return Index of the column once unwanted columns are removed, or -1 if the column is removed
+	 */
+	public int map(int column) {
+		return column < columnMap.length ? columnMap[column] : column - removedColumns;
+	}
+
+	/**
+	 * @return The number of columns in the header row once unwanted columns are removed
+	 */
+	public int getExportedColumns() {
+		return actions.length - removedColumns;
+	}
+
+	public int getRemovedColumns() {
+		return removedColumns;
+	}
+
+	public boolean hasRemovedColumns() {
+		return removedColumns > 0;
+	}
+
+	/**
+	 * @return True if the header of the column should be renamed for the NRM
+	 */
+	public boolean isPositionColumn(int column) {
+		return getAction(column) == ColumnAction.RENAME_POSITION;
+	}
+
+}
@@ -0,0 +1,49 @@
+package org.springframework.social.quickstart.export;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares the result of a call between callers who make the same call at the same time.
+ * <p>
+ * The first caller for a key runs the call in its own thread. Callers who arrive with the same key while
+ * it is running wait for it and receive the same result or exception, instead of making the call again.
+ * Nothing is kept once the call has finished, so a caller who arrives afterwards makes a new call.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Run the call, or wait for the same call which is already running
+	 * @throws Exception The exception thrown by the call
+	 */
+	public V execute(K key, Callable<V> call) throws Exception {
+		FutureTask<V> task = new FutureTask<V>(call);
+		FutureTask<V> running = calls.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				calls.remove(key, task);
+			}
+			running = task;
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+}
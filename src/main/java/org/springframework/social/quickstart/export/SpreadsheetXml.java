@@ -0,0 +1,234 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Helpers shared by the streaming part rewriters.
+ */
+final class SpreadsheetXml {
+
+	static final String NS_MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+	static final String NS_RELATIONSHIPS = "http://schemas.openxmlformats.org/package/2006/relationships";
+	static final String NS_CONTENT_TYPES = "http://schemas.openxmlformats.org/package/2006/content-types";
+	static final String NS_CUSTOM_PROPERTIES = "http://schemas.openxmlformats.org/officeDocument/2006/custom-properties";
+	static final String NS_VTYPES = "http://schemas.openxmlformats.org/officeDocument/2006/docPropsVTypes";
+
+	// Width Excel uses for columns in a sheet which does not set a default, with the standard font
+	static final double DEFAULT_COLUMN_WIDTH = 9.140625;
+
+	static final String REL_OFFICE_DOCUMENT = "officeDocument";
+	static final String REL_WORKSHEET = "worksheet";
+	static final String REL_SHARED_STRINGS = "sharedStrings";
+	static final String REL_STYLES = "styles";
+	static final String REL_CALC_CHAIN = "calcChain";
+	static final String REL_COMMENTS = "comments";
+	static final String REL_VML_DRAWING = "vmlDrawing";
+	static final String REL_CUSTOM_PROPERTIES = "custom-properties";
+
+	static final String REL_TYPE_CUSTOM_PROPERTIES = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/custom-properties";
+	static final String CONTENT_TYPE_CUSTOM_PROPERTIES = "application/vnd.openxmlformats-officedocument.custom-properties+xml";
+
+	static final String CONTENT_TYPES_PART = "[Content_Types].xml";
+	static final String ROOT_RELS_PART = "_rels/.rels";
+	static final String CUSTOM_PROPERTIES_PART = "docProps/custom.xml";
+
+	private SpreadsheetXml() {
+	}
+
+	static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
+	static XMLOutputFactory createOutputFactory() {
+		return XMLOutputFactory.newInstance();
+	}
+
+	static String attribute(StartElement element, String localName) {
+		Attribute attribute = element.getAttributeByName(new QName(localName));
+		return attribute != null ? attribute.getValue() : null;
+	}
+
+	/**
+	 * @return The value of the r:id attribute, used to link elements to relationships
+	 */
+	static String relationshipId(StartElement element) {
+		Iterator<?> attributes = element.getAttributes();
+		while (attributes.hasNext()) {
+			Attribute attribute = (Attribute) attributes.next();
+			// Namespace differs between the transitional and strict schemas
+			if ("id".equals(attribute.getName().getLocalPart()) &&
+					attribute.getName().getNamespaceURI().endsWith("relationships")) {
+				return attribute.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Consume events up to and including the end of the element which has just been started
+	 */
+	static void skipElement(XMLEventReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			if (event.isStartElement()) {
+				depth++;
+			} else if (event.isEndElement()) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Read the text content of the element which has just been started, consuming its end element
+	 */
+	static String readText(XMLEventReader reader) throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			if (event.isStartElement()) {
+				depth++;
+			} else if (event.isEndElement()) {
+				depth--;
+			} else if (event.isCharacters()) {
+				text.append(event.asCharacters().getData());
+			}
+		}
+		return text.toString();
+	}
+
+	static List<Relationship> readRelationships(InputStream in, String sourcePart) throws IOException {
+		List<Relationship> relationships = new ArrayList<Relationship>();
+		try {
+			XMLEventReader reader = createInputFactory().createXMLEventReader(in);
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement() && "Relationship".equals(event.asStartElement().getName().getLocalPart())) {
+					StartElement element = event.asStartElement();
+					boolean external = "External".equals(attribute(element, "TargetMode"));
+					String target = attribute(element, "Target");
+					relationships.add(new Relationship(attribute(element, "Id"), attribute(element, "Type"),
+							external ? target : resolvePartName(sourcePart, target), external));
+				}
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read relationships for " + sourcePart, e);
+		}
+		return relationships;
+	}
+
+	static Relationship findRelationship(List<Relationship> relationships, String typeName) {
+		for (Relationship relationship : relationships) {
+			if (relationship.isType(typeName)) {
+				return relationship;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The name of the .rels part holding the relationships of the given part
+	 */
+	static String relationshipsPartName(String partName) {
+		int slash = partName.lastIndexOf('/');
+		return partName.substring(0, slash + 1) + "_rels/" + partName.substring(slash + 1) + ".rels";
+	}
+
+	/**
+	 * Resolve a relationship target against the part which holds the relationship. Part names are
+	 * returned without a leading slash, to match the names of the ZIP entries.
+	 */
+	static String resolvePartName(String sourcePart, String target) {
+		if (target.startsWith("/")) {
+			return target.substring(1);
+		}
+		int slash = sourcePart != null ? sourcePart.lastIndexOf('/') : -1;
+		List<String> segments = new ArrayList<String>();
+		if (slash > -1) {
+			for (String segment : sourcePart.substring(0, slash).split("/")) {
+				segments.add(segment);
+			}
+		}
+		for (String segment : target.split("/")) {
+			if (segment.equals("..")) {
+				if (!segments.isEmpty()) {
+					segments.remove(segments.size() - 1);
+				}
+			} else if (segment.length() > 0 && !segment.equals(".")) {
+				segments.add(segment);
+			}
+		}
+		StringBuilder name = new StringBuilder();
+		for (String segment : segments) {
+			if (name.length() > 0) {
+				name.append('/');
+			}
+			name.append(segment);
+		}
+		return name.toString();
+	}
+
+	/**
+	 * @return Zero-based column index of a cell reference such as AB12, or -1 if the reference has no column
+	 */
+	static int columnIndex(String cellRef) {
+		int column = 0;
+		int i = 0;
+		for (; i < cellRef.length(); i++) {
+			char c = cellRef.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				column = column * 26 + (c - 'A' + 1);
+			} else if (c >= 'a' && c <= 'z') {
+				column = column * 26 + (c - 'a' + 1);
+			} else if (c != '$') {
+				break;
+			}
+		}
+		return column - 1;
+	}
+
+	static String columnName(int columnIndex) {
+		StringBuilder name = new StringBuilder(3);
+		int column = columnIndex + 1;
+		while (column > 0) {
+			int remainder = (column - 1) % 26;
+			name.insert(0, (char) ('A' + remainder));
+			column = (column - remainder) / 26;
+		}
+		return name.toString();
+	}
+
+	/**
+	 * @param columnIndex Zero-based column index
+	 * @param rowNum One-based row number, as used in the sheet XML
+	 */
+	static String cellRef(int columnIndex, int rowNum) {
+		return columnName(columnIndex) + rowNum;
+	}
+
+	static String formatNumber(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+}
@@ -0,0 +1,241 @@
+package org.springframework.social.quickstart.export;
+
+import static org.springframework.social.quickstart.export.HrmWorkbook.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Exports the workbook by streaming each part of the XLSX package through StAX, so that memory use
+ * is bounded by the size of the largest row rather than the size of the workbook.
+ * <p>
+ * The changes made are the same as those made by {@link WorkbookHrmExporter}, except that all cell
+ * comments are removed rather than only those outside the header row.
+ * <p>
+ * Workbooks can also be exported while they are still being downloaded, in which case the worksheets
+ * are rewritten one after another as they arrive.
+ */
+public class StreamingHrmExporter implements PipelinedHrmExporter {
+
+	private final ExecutorService pool;
+	private final TempStorage tempStorage;
+
+	/**
+	 * Create an exporter which rewrites the worksheets one after another
+	 */
+	public StreamingHrmExporter() {
+		this(null, null);
+	}
+
+	/**
+	 * Create an exporter which rewrites the worksheets concurrently
+	 * @param pool Pool to rewrite the worksheets on, or null to rewrite them one after another
+	 * @param tempStorage Storage for the rewritten worksheets until they are written to the package
+	 */
+	public StreamingHrmExporter(ExecutorService pool, TempStorage tempStorage) {
+		this.pool = pool;
+		this.tempStorage = tempStorage;
+	}
+
+	public void export(File source, ExportSettings settings, OutputStream out) throws IOException {
+		ZipFile zip = new ZipFile(source);
+		try {
+			export(zip, settings, out);
+		} finally {
+			zip.close();
+		}
+	}
+
+	public void export(InputStream source, ExportSettings settings, OutputStream out) throws IOException {
+		new PipelinedExport(settings, out, tempStorage).run(source);
+	}
+
+	private void export(final ZipFile zip, ExportSettings settings, OutputStream out) throws IOException {
+		PackageExport packageExport = new PackageExport(new PackageExport.Parts() {
+			public InputStream getInputStream(String part) throws IOException {
+				ZipEntry entry = zip.getEntry(part);
+				return entry != null ? zip.getInputStream(entry) : null;
+			}
+		}, settings);
+		String customPropertiesPart = packageExport.getCustomPropertiesPart();
+		if (customPropertiesPart != null && zip.getEntry(customPropertiesPart) == null) {
+			customPropertiesPart = null;
+		}
+
+		// Read the header row and relationships of each sheet
+		Map<String, SheetExport> sheetExports = packageExport.getSheetExports();
+		for (SheetExport sheetExport : new ArrayList<SheetExport>(sheetExports.values())) {
+			if (zip.getEntry(packageExport.getSheetPart(sheetExport.getName())) == null) {
+				packageExport.removeSheet(sheetExport.getName());
+			}
+		}
+		for (String sheetPart : sheetExports.keySet()) {
+			packageExport.readHeader(sheetPart, getInputStream(zip, sheetPart));
+			ZipEntry relsEntry = zip.getEntry(SpreadsheetXml.relationshipsPartName(sheetPart));
+			packageExport.readSheetRelationships(sheetPart, relsEntry != null ? zip.getInputStream(relsEntry) : null);
+		}
+
+		// Start times are written to the summary sheet, after unwanted columns are removed
+		String startsPart = packageExport.getSheetPart(SHEET_STARTS);
+		if (startsPart != null) {
+			packageExport.readStartTimes(getInputStream(zip, startsPart));
+		}
+
+		Map<String, File> rewrittenSheets = Collections.emptyMap();
+		if (pool != null && sheetExports.size() > 1) {
+			rewrittenSheets = rewriteSheets(zip, packageExport);
+		}
+		try {
+			// Write the new package, starting with the content types and package relationships. Entries keep the
+			// timestamps of the source entries, so that exporting the same file twice gives the same result.
+			long packageTime = zip.getEntry(packageExport.getWorkbookPart()).getTime();
+			ZipOutputStream zipOut = new ZipOutputStream(out);
+			boolean addCustomProperties = customPropertiesPart == null;
+			zipOut.putNextEntry(newEntry(zip.getEntry(SpreadsheetXml.CONTENT_TYPES_PART)));
+			packageExport.writeContentTypes(getInputStream(zip, SpreadsheetXml.CONTENT_TYPES_PART), zipOut, addCustomProperties);
+			zipOut.closeEntry();
+			zipOut.putNextEntry(newEntry(zip.getEntry(SpreadsheetXml.ROOT_RELS_PART)));
+			packageExport.writeRootRelationships(getInputStream(zip, SpreadsheetXml.ROOT_RELS_PART), zipOut, addCustomProperties);
+			zipOut.closeEntry();
+
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory() || packageExport.isDropped(name) ||
+						name.equals(SpreadsheetXml.CONTENT_TYPES_PART) || name.equals(SpreadsheetXml.ROOT_RELS_PART)) {
+					continue;
+				}
+				zipOut.putNextEntry(newEntry(entry));
+				if (rewrittenSheets.containsKey(name)) {
+					InputStream in = new FileInputStream(rewrittenSheets.get(name));
+					try {
+						PackageExport.copy(in, zipOut);
+					} finally {
+						in.close();
+					}
+				} else {
+					InputStream in = zip.getInputStream(entry);
+					try {
+						packageExport.writePart(name, in, zipOut);
+					} finally {
+						in.close();
+					}
+				}
+				zipOut.closeEntry();
+			}
+			if (addCustomProperties) {
+				ZipEntry customPropertiesEntry = new ZipEntry(SpreadsheetXml.CUSTOM_PROPERTIES_PART);
+				customPropertiesEntry.setTime(packageTime);
+				zipOut.putNextEntry(customPropertiesEntry);
+				packageExport.writeCustomProperties(zipOut);
+				zipOut.closeEntry();
+			}
+			zipOut.finish();
+		} finally {
+			for (File file : rewrittenSheets.values()) {
+				tempStorage.delete(file);
+			}
+		}
+	}
+
+	private static ZipEntry newEntry(ZipEntry source) {
+		ZipEntry entry = new ZipEntry(source.getName());
+		entry.setTime(source.getTime());
+		return entry;
+	}
+
+	/**
+	 * Rewrite the worksheets concurrently, each into its own temporary file. The sheets only share the
+	 * shared strings and styles, which are read up front and not changed while the sheets are rewritten.
+	 * @return The rewritten worksheet files, keyed by part name
+	 */
+	private Map<String, File> rewriteSheets(final ZipFile zip, final PackageExport packageExport) throws IOException {
+		List<String> sheetParts = new ArrayList<String>();
+		List<Callable<File>> tasks = new ArrayList<Callable<File>>();
+		for (final Map.Entry<String, SheetExport> sheet : new TreeMap<String, SheetExport>(packageExport.getSheetExports()).entrySet()) {
+			sheetParts.add(sheet.getKey());
+			tasks.add(new Callable<File>() {
+				public File call() throws IOException {
+					File file = tempStorage.createTempFile(TempStorage.PREFIX_SHEET, ".xml");
+					OutputStream out = new FileOutputStream(file);
+					try {
+						packageExport.newWorksheetRewriter().rewrite(sheet.getValue(), getInputStream(zip, sheet.getKey()), out);
+					} catch (IOException e) {
+						out.close();
+						tempStorage.delete(file);
+						throw e;
+					} finally {
+						out.close();
+					}
+					return file;
+				}
+			});
+		}
+		List<Future<File>> results;
+		try {
+			results = pool.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while rewriting worksheets", e);
+		}
+		Map<String, File> files = new HashMap<String, File>();
+		IOException failure = null;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				files.put(sheetParts.get(i), results.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = new IOException("Interrupted while rewriting worksheets", e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException ? (IOException) e.getCause() :
+						new IOException("Could not rewrite worksheet " + sheetParts.get(i), e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			for (File file : files.values()) {
+				tempStorage.delete(file);
+			}
+			throw failure;
+		}
+		return files;
+	}
+
+	/**
+	 * @return Stream to read the given part from. The stream will be closed along with the ZIP file.
+	 */
+	private InputStream getInputStream(ZipFile zip, String part) throws IOException {
+		ZipEntry entry = part != null ? zip.getEntry(part) : null;
+		if (entry == null) {
+			throw new IOException("Workbook part " + part + " not found");
+		}
+		return zip.getInputStream(entry);
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.springframework.social.quickstart.export;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.IndexedColors;
+
+/**
+ * Describes a cell format used by the race sheets, so that an equivalent format which already exists
+ * in a workbook can be found and used instead of adding another one.
+ * <p>
+ * Fonts, fills, borders and whole cell formats are compared using keys built from the properties which
+ * affect how a cell appears. The same keys are built when reading the styles of a workbook, whether
+ * through POI or straight from the styles part. An entry with a colour which cannot be compared has no
+ * key, so that it is never reused.
+ */
+final class StyleDescriptor {
+
+	static final String GENERAL_FORMAT = BuiltinFormats.getBuiltinFormat(0);
+	static final String FILL_NONE = "none";
+	static final String FILL_SOLID = "solid";
+	static final String BORDER_NONE = "none";
+	static final String BORDER_THIN = "thin";
+	/** Key of the colour of an entry which does not set one */
+	static final String COLOR_NONE = "none";
+	/** Indexed colour of the right border */
+	static final short BORDER_COLOR = IndexedColors.BLACK.getIndex();
+
+	private final String fontName;
+	private final double fontSize;
+	private final boolean bold;
+	private final String fillColor;
+	private final boolean rightBorder;
+	private final String formatCode;
+	private final String key;
+
+	/**
+	 * @param fillColor ARGB hex colour of a solid fill, or null for no fill
+	 * @param formatCode Number format, or null for the general format
+	 */
+	StyleDescriptor(String fontName, double fontSize, boolean bold, String fillColor, boolean rightBorder, String formatCode) {
+		this.fontName = fontName;
+		this.fontSize = fontSize;
+		this.bold = bold;
+		this.fillColor = fillColor;
+		this.rightBorder = rightBorder;
+		this.formatCode = formatCode != null ? formatCode : GENERAL_FORMAT;
+		this.key = styleKey(this.formatCode, getFontKey(), getFillKey(), getBorderKey());
+	}
+
+	public String getFontName() {
+		return fontName;
+	}
+
+	public double getFontSize() {
+		return fontSize;
+	}
+
+	public boolean isBold() {
+		return bold;
+	}
+
+	/**
+	 * @return ARGB hex colour of a solid fill, or null for no fill
+	 */
+	public String getFillColor() {
+		return fillColor;
+	}
+
+	public boolean hasRightBorder() {
+		return rightBorder;
+	}
+
+	public String getFormatCode() {
+		return formatCode;
+	}
+
+	public boolean isGeneralFormat() {
+		return GENERAL_FORMAT.equals(formatCode);
+	}
+
+	public String getFontKey() {
+		return fontKey(fontName, fontSize, bold, false, false, false, COLOR_NONE, null, null, null);
+	}
+
+	public String getFillKey() {
+		if (fillColor == null) {
+			return fillKey(FILL_NONE, COLOR_NONE);
+		}
+		return fillKey(FILL_SOLID, colorKey(fillColor, null, null, false, 0));
+	}
+
+	public String getBorderKey() {
+		String none = borderSideKey(BORDER_NONE, COLOR_NONE);
+		String right = rightBorder ? borderSideKey(BORDER_THIN, colorKey(null, null, (long) BORDER_COLOR, false, 0)) : none;
+		return borderKey(none, right, none, none);
+	}
+
+	/**
+	 * @return Key of the whole cell format
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Key of a colour, which must be given by exactly one of its rgb, theme, indexed or auto properties
+	 * @param rgb Colour in RGB or ARGB hex
+	 * @return The key, or null if the colour cannot be compared
+	 */
+	static String colorKey(String rgb, Long theme, Long indexed, boolean auto, double tint) {
+		String key = null;
+		int count = 0;
+		if (rgb != null) {
+			key = "rgb:" + (rgb.length() == 6 ? "FF" + rgb : rgb).toUpperCase();
+			count++;
+		}
+		if (theme != null) {
+			key = "theme:" + theme;
+			count++;
+		}
+		if (indexed != null) {
+			key = "indexed:" + indexed;
+			count++;
+		}
+		if (auto) {
+			key = "auto";
+			count++;
+		}
+		if (count != 1) {
+			return null;
+		}
+		return tint != 0 ? key + "|" + SpreadsheetXml.formatNumber(tint) : key;
+	}
+
+	/**
+	 * @param color Key of the font colour, or null if it cannot be compared
+	 * @param family Font family number, or null if not set
+	 * @param scheme Font scheme, or null if not set
+	 * @param vertAlign Superscript or subscript, or null if not set
+	 * @return The key, or null if the font cannot be compared
+	 */
+	static String fontKey(String name, double size, boolean bold, boolean italic, boolean underline, boolean strikeout,
+			String color, Integer family, String scheme, String vertAlign) {
+		if (color == null) {
+			return null;
+		}
+		return name + "|" + SpreadsheetXml.formatNumber(size) + "|" + bold + "|" + italic + "|" + underline + "|" + strikeout
+				+ "|" + color + "|" + family + "|" + scheme + "|" + vertAlign;
+	}
+
+	/**
+	 * @param color Key of the foreground colour, which is ignored unless the pattern is solid
+	 * @return The key, or null if the fill cannot be compared
+	 */
+	static String fillKey(String pattern, String color) {
+		if (!FILL_SOLID.equals(pattern)) {
+			return pattern;
+		}
+		return color != null ? pattern + "|" + color : null;
+	}
+
+	/**
+	 * @param color Key of the border colour, which is ignored if the side has no border
+	 * @return The key, or null if the side cannot be compared
+	 */
+	static String borderSideKey(String style, String color) {
+		if (BORDER_NONE.equals(style)) {
+			return style;
+		}
+		return color != null ? style + ":" + color : null;
+	}
+
+	/**
+	 * @return The key, or null if any side cannot be compared
+	 */
+	static String borderKey(String left, String right, String top, String bottom) {
+		if (left == null || right == null || top == null || bottom == null) {
+			return null;
+		}
+		return left + "|" + right + "|" + top + "|" + bottom;
+	}
+
+	/**
+	 * @return The key, or null if the font, fill or border cannot be compared
+	 */
+	static String styleKey(String formatCode, String fontKey, String fillKey, String borderKey) {
+		if (fontKey == null || fillKey == null || borderKey == null) {
+			return null;
+		}
+		return formatCode + "/" + fontKey + "/" + fillKey + "/" + borderKey;
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.springframework.social.quickstart.export;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTColor;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTFont;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTXf;
+
+/**
+ * Finds the cell formats for the race sheets in a workbook loaded by POI, only creating the formats and
+ * fonts which the workbook does not already have.
+ */
+final class StyleRegistry {
+
+	private final XSSFWorkbook wb;
+	private final Map<String, Integer> styles = new HashMap<String, Integer>();
+	private final Map<String, Short> fonts = new HashMap<String, Short>();
+
+	private StyleRegistry(XSSFWorkbook wb) {
+		this.wb = wb;
+		for (short i = 0; i < wb.getNumberOfFonts(); i++) {
+			String key = fontKey(wb.getFontAt(i));
+			if (key != null && !fonts.containsKey(key)) {
+				fonts.put(key, i);
+			}
+		}
+		for (int i = 0; i < wb.getNumCellStyles(); i++) {
+			String key = styleKey(wb.getCellStyleAt(i));
+			if (key != null && !styles.containsKey(key)) {
+				styles.put(key, i);
+			}
+		}
+	}
+
+	/**
+	 * @return Indexes of the cell formats in the workbook
+	 */
+	static ExportStyles register(XSSFWorkbook wb, ExportStyleSet styleSet) {
+		StyleRegistry registry = new StyleRegistry(wb);
+		return new ExportStyles(registry.find(styleSet.getBody()), registry.find(styleSet.getFirstColumn()),
+				registry.find(styleSet.getDate()), registry.find(styleSet.getTime()));
+	}
+
+	private int find(StyleDescriptor descriptor) {
+		Integer index = styles.get(descriptor.getKey());
+		if (index == null) {
+			index = (int) create(descriptor).getIndex();
+			styles.put(descriptor.getKey(), index);
+		}
+		return index;
+	}
+
+	private XSSFCellStyle create(StyleDescriptor descriptor) {
+		XSSFCellStyle style = wb.createCellStyle();
+		style.setFont(findFont(descriptor));
+		if (descriptor.getFillColor() != null) {
+			int rgb = (int) Long.parseLong(descriptor.getFillColor(), 16);
+			style.setFillForegroundColor(new XSSFColor(new Color(rgb & 0xFFFFFF)));
+			style.setFillPattern(CellStyle.SOLID_FOREGROUND);
+		}
+		if (descriptor.hasRightBorder()) {
+			style.setBorderRight(CellStyle.BORDER_THIN);
+			style.setRightBorderColor(StyleDescriptor.BORDER_COLOR);
+		}
+		if (!descriptor.isGeneralFormat()) {
+			style.setDataFormat(wb.createDataFormat().getFormat(descriptor.getFormatCode()));
+		}
+		return style;
+	}
+
+	private XSSFFont findFont(StyleDescriptor descriptor) {
+		Short index = fonts.get(descriptor.getFontKey());
+		if (index != null) {
+			return wb.getFontAt(index);
+		}
+		XSSFFont font = wb.createFont();
+		font.setFontHeight(descriptor.getFontSize());
+		font.setFontName(descriptor.getFontName());
+		font.setBold(descriptor.isBold());
+		fonts.put(descriptor.getFontKey(), font.getIndex());
+		return font;
+	}
+
+	private static String fontKey(XSSFFont font) {
+		CTFont ctFont = font.getCTFont();
+		return StyleDescriptor.fontKey(font.getFontName(), font.getFontHeight() / 20.0, font.getBold(),
+				font.getItalic(), font.getUnderline() != Font.U_NONE, font.getStrikeout(),
+				ctFont.sizeOfColorArray() > 0 ? colorKey(ctFont.getColorArray(0)) : StyleDescriptor.COLOR_NONE,
+				ctFont.sizeOfFamilyArray() > 0 ? Integer.valueOf(ctFont.getFamilyArray(0).getVal()) : null,
+				ctFont.sizeOfSchemeArray() > 0 ? ctFont.getSchemeArray(0).getVal().toString() : null,
+				ctFont.sizeOfVertAlignArray() > 0 ? ctFont.getVertAlignArray(0).getVal().toString() : null);
+	}
+
+	private static String colorKey(XSSFColor color) {
+		return color != null ? colorKey(color.getCTColor()) : StyleDescriptor.COLOR_NONE;
+	}
+
+	/**
+	 * @return Key of the colour, or null if it cannot be compared
+	 */
+	private static String colorKey(CTColor color) {
+		String rgb = null;
+		if (color.isSetRgb()) {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : color.getRgb()) {
+				hex.append(String.format("%02X", b & 0xFF));
+			}
+			rgb = hex.toString();
+		}
+		return StyleDescriptor.colorKey(rgb, color.isSetTheme() ? Long.valueOf(color.getTheme()) : null,
+				color.isSetIndexed() ? Long.valueOf(color.getIndexed()) : null, color.isSetAuto() && color.getAuto(),
+				color.isSetTint() ? color.getTint() : 0);
+	}
+
+	/**
+	 * @return Key of the cell format, or null if it has alignment or protection settings and so cannot be reused
+	 */
+	private static String styleKey(XSSFCellStyle style) {
+		CTXf xf = style.getCoreXf();
+		if (xf.isSetAlignment() || xf.isSetProtection()) {
+			return null;
+		}
+		String fillKey;
+		if (style.getFillPattern() == CellStyle.NO_FILL) {
+			fillKey = StyleDescriptor.fillKey(StyleDescriptor.FILL_NONE, null);
+		} else if (style.getFillPattern() == CellStyle.SOLID_FOREGROUND) {
+			fillKey = StyleDescriptor.fillKey(StyleDescriptor.FILL_SOLID, colorKey(style.getFillForegroundXSSFColor()));
+		} else {
+			fillKey = StyleDescriptor.fillKey("pattern" + style.getFillPattern(), null);
+		}
+		String borderKey = StyleDescriptor.borderKey(
+				borderSideKey(style.getBorderLeft(), style.getLeftBorderXSSFColor()),
+				borderSideKey(style.getBorderRight(), style.getRightBorderXSSFColor()),
+				borderSideKey(style.getBorderTop(), style.getTopBorderXSSFColor()),
+				borderSideKey(style.getBorderBottom(), style.getBottomBorderXSSFColor()));
+		return StyleDescriptor.styleKey(style.getDataFormatString(), fontKey(style.getFont()), fillKey, borderKey);
+	}
+
+	private static String borderSideKey(short border, XSSFColor color) {
+		return StyleDescriptor.borderSideKey(borderName(border), colorKey(color));
+	}
+
+	private static String borderName(short border) {
+		if (border == CellStyle.BORDER_NONE) {
+			return StyleDescriptor.BORDER_NONE;
+		} else if (border == CellStyle.BORDER_THIN) {
+			return StyleDescriptor.BORDER_THIN;
+		}
+		return "border" + border;
+	}
+
+}
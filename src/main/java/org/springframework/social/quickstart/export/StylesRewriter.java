@@ -0,0 +1,428 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+
+/**
+ * Adds the fonts, fill, border, number formats and cell formats used by the race sheets to the
+ * workbook styles part, reusing any equivalent entries which the part already has.
+ */
+final class StylesRewriter {
+
+	// Custom number formats must not clash with the built-in formats
+	private static final int FIRST_CUSTOM_FORMAT = 164;
+
+	// Sections of the styles part which we add to
+	private static final List<String> SECTIONS = Arrays.asList("numFmts", "fonts", "fills", "borders", "cellXfs");
+
+	private static final List<String> ELEMENT_ORDER = Arrays.asList("numFmts", "fonts", "fills", "borders",
+			"cellStyleXfs", "cellXfs", "cellStyles", "dxfs", "tableStyles", "colors", "extLst");
+
+	private static final List<String> BORDER_SIDES = Arrays.asList("left", "right", "top", "bottom");
+
+	private final Map<String, Integer> counts = new HashMap<String, Integer>();
+	private final Map<String, List<Element>> additions = new HashMap<String, List<Element>>();
+	// Keys of the entries in each section, by index, with null for entries which cannot be reused
+	private final Map<String, List<String>> keys = new HashMap<String, List<String>>();
+	private final Map<Integer, String> formatCodes = new HashMap<Integer, String>();
+	private final Map<String, Integer> formatIds = new HashMap<String, Integer>();
+	private int nextFormatId = FIRST_CUSTOM_FORMAT;
+	private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+	StylesRewriter() {
+		for (String section : SECTIONS) {
+			keys.put(section, new ArrayList<String>());
+			additions.put(section, new ArrayList<Element>());
+		}
+	}
+
+	/**
+	 * Read the existing entries in the styles part, and work out which entries need to be added for the
+	 * race sheet formats
+	 */
+	ExportStyles scan(InputStream in, ExportStyleSet styleSet) throws IOException {
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			int depth = 0;
+			String section = null;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement element = event.asStartElement();
+					String name = element.getName().getLocalPart();
+					if (depth == 2 && section != null) {
+						// Entries are read whole, so the depth is unchanged
+						counts.put(section, counts.get(section) + 1);
+						readEntry(section, element, readChildren(reader));
+						continue;
+					}
+					depth++;
+					if (depth == 2 && SECTIONS.contains(name)) {
+						section = name;
+						counts.put(section, 0);
+					}
+				} else if (event.isEndElement()) {
+					if (depth == 2) {
+						section = null;
+					}
+					depth--;
+				}
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read workbook styles", e);
+		}
+		return new ExportStyles(find(styleSet.getBody()), find(styleSet.getFirstColumn()),
+				find(styleSet.getDate()), find(styleSet.getTime()));
+	}
+
+	private void readEntry(String section, StartElement element, Map<String, StartElement> children) {
+		String key = null;
+		if (section.equals("numFmts")) {
+			String id = SpreadsheetXml.attribute(element, "numFmtId");
+			String code = SpreadsheetXml.attribute(element, "formatCode");
+			if (id != null && code != null) {
+				int formatId = Integer.parseInt(id);
+				formatCodes.put(formatId, code);
+				if (!formatIds.containsKey(code)) {
+					formatIds.put(code, formatId);
+				}
+				nextFormatId = Math.max(nextFormatId, formatId + 1);
+			}
+		} else if (section.equals("fonts")) {
+			String size = attribute(children.get("sz"), "val");
+			String underline = attribute(children.get("u"), "val");
+			String family = attribute(children.get("family"), "val");
+			key = StyleDescriptor.fontKey(attribute(children.get("name"), "val"), size != null ? Double.parseDouble(size) : 0,
+					isSet(children.get("b")), isSet(children.get("i")),
+					children.containsKey("u") && !"none".equals(underline), isSet(children.get("strike")),
+					colorKey(children.get("color")), family != null ? Integer.valueOf(family) : null,
+					attribute(children.get("scheme"), "val"), attribute(children.get("vertAlign"), "val"));
+		} else if (section.equals("fills")) {
+			String pattern = children.containsKey("gradientFill") ? "gradient" : attribute(children.get("patternFill"), "patternType");
+			key = StyleDescriptor.fillKey(pattern != null ? pattern : StyleDescriptor.FILL_NONE, colorKey(children.get("patternFill/fgColor")));
+		} else if (section.equals("borders")) {
+			String[] sides = new String[BORDER_SIDES.size()];
+			for (int i = 0; i < sides.length; i++) {
+				String style = attribute(children.get(BORDER_SIDES.get(i)), "style");
+				sides[i] = StyleDescriptor.borderSideKey(style != null ? style : StyleDescriptor.BORDER_NONE,
+						colorKey(children.get(BORDER_SIDES.get(i) + "/color")));
+			}
+			key = StyleDescriptor.borderKey(sides[0], sides[1], sides[2], sides[3]);
+		} else if (section.equals("cellXfs") && children.isEmpty()) {
+			// Formats with alignment or protection settings are not reused
+			String fontKey = entryKey("fonts", SpreadsheetXml.attribute(element, "fontId"));
+			String fillKey = entryKey("fills", SpreadsheetXml.attribute(element, "fillId"));
+			String borderKey = entryKey("borders", SpreadsheetXml.attribute(element, "borderId"));
+			if (fontKey != null && fillKey != null && borderKey != null) {
+				key = StyleDescriptor.styleKey(formatCode(SpreadsheetXml.attribute(element, "numFmtId")), fontKey, fillKey, borderKey);
+			}
+		}
+		keys.get(section).add(key);
+	}
+
+	private String entryKey(String section, String index) {
+		int i = index != null ? Integer.parseInt(index) : 0;
+		List<String> sectionKeys = keys.get(section);
+		return i < sectionKeys.size() ? sectionKeys.get(i) : null;
+	}
+
+	private String formatCode(String numFmtId) {
+		int id = numFmtId != null ? Integer.parseInt(numFmtId) : 0;
+		String code = formatCodes.containsKey(id) ? formatCodes.get(id) : BuiltinFormats.getBuiltinFormat(id);
+		return code != null ? code : "format" + id;
+	}
+
+	/**
+	 * @return Index of an existing cell format matching the descriptor, or of the one which will be added
+	 */
+	private int find(StyleDescriptor descriptor) {
+		int index = keys.get("cellXfs").indexOf(descriptor.getKey());
+		if (index > -1) {
+			return index;
+		}
+		String format = Integer.toString(findFormat(descriptor.getFormatCode()));
+		String font = Integer.toString(find("fonts", descriptor.getFontKey(), fontElement(descriptor)));
+		String fill = Integer.toString(find("fills", descriptor.getFillKey(), fillElement(descriptor)));
+		String border = Integer.toString(find("borders", descriptor.getBorderKey(), borderElement(descriptor)));
+		Element xf = new Element("xf", "numFmtId", format, "fontId", font, "fillId", fill, "borderId", border, "xfId", "0", "applyFont", "1");
+		if (descriptor.getFillColor() != null) {
+			xf.attribute("applyFill", "1");
+		}
+		if (descriptor.hasRightBorder()) {
+			xf.attribute("applyBorder", "1");
+		}
+		if (!descriptor.isGeneralFormat()) {
+			xf.attribute("applyNumberFormat", "1");
+		}
+		return add("cellXfs", descriptor.getKey(), xf);
+	}
+
+	private int find(String section, String key, Element element) {
+		int index = keys.get(section).indexOf(key);
+		return index > -1 ? index : add(section, key, element);
+	}
+
+	private int add(String section, String key, Element element) {
+		List<String> sectionKeys = keys.get(section);
+		sectionKeys.add(key);
+		additions.get(section).add(element);
+		return sectionKeys.size() - 1;
+	}
+
+	private int findFormat(String formatCode) {
+		int id = BuiltinFormats.getBuiltinFormat(formatCode);
+		if (id > -1) {
+			return id;
+		}
+		Integer existing = formatIds.get(formatCode);
+		if (existing != null) {
+			return existing;
+		}
+		id = nextFormatId++;
+		formatIds.put(formatCode, id);
+		additions.get("numFmts").add(new Element("numFmt", "numFmtId", Integer.toString(id), "formatCode", formatCode));
+		return id;
+	}
+
+	private static Element fontElement(StyleDescriptor descriptor) {
+		Element font = new Element("font");
+		if (descriptor.isBold()) {
+			font.add(new Element("b"));
+		}
+		return font.add(new Element("sz", "val", SpreadsheetXml.formatNumber(descriptor.getFontSize())))
+				.add(new Element("name", "val", descriptor.getFontName()));
+	}
+
+	private static Element fillElement(StyleDescriptor descriptor) {
+		if (descriptor.getFillColor() == null) {
+			return new Element("fill").add(new Element("patternFill", "patternType", StyleDescriptor.FILL_NONE));
+		}
+		return new Element("fill").add(new Element("patternFill", "patternType", StyleDescriptor.FILL_SOLID)
+				.add(new Element("fgColor", "rgb", descriptor.getFillColor())));
+	}
+
+	private static Element borderElement(StyleDescriptor descriptor) {
+		Element right = descriptor.hasRightBorder() ?
+				new Element("right", "style", StyleDescriptor.BORDER_THIN)
+						.add(new Element("color", "indexed", Short.toString(StyleDescriptor.BORDER_COLOR))) : new Element("right");
+		return new Element("border").add(new Element("left")).add(right)
+				.add(new Element("top")).add(new Element("bottom")).add(new Element("diagonal"));
+	}
+
+	/**
+	 * Read the descendants of the element which has just been started, consuming its end
+	 * @return The first descendant at each path, such as patternFill/fgColor
+	 */
+	private static Map<String, StartElement> readChildren(XMLEventReader reader) throws XMLStreamException {
+		Map<String, StartElement> children = new HashMap<String, StartElement>();
+		List<String> paths = new ArrayList<String>();
+		while (reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			if (event.isStartElement()) {
+				String name = event.asStartElement().getName().getLocalPart();
+				String path = paths.isEmpty() ? name : paths.get(paths.size() - 1) + "/" + name;
+				paths.add(path);
+				if (!children.containsKey(path)) {
+					children.put(path, event.asStartElement());
+				}
+			} else if (event.isEndElement()) {
+				if (paths.isEmpty()) {
+					break;
+				}
+				paths.remove(paths.size() - 1);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * @return Key of the colour, or null if it cannot be compared
+	 */
+	private static String colorKey(StartElement color) {
+		if (color == null) {
+			return StyleDescriptor.COLOR_NONE;
+		}
+		String theme = SpreadsheetXml.attribute(color, "theme");
+		String indexed = SpreadsheetXml.attribute(color, "indexed");
+		String tint = SpreadsheetXml.attribute(color, "tint");
+		return StyleDescriptor.colorKey(SpreadsheetXml.attribute(color, "rgb"), theme != null ? Long.valueOf(theme) : null,
+				indexed != null ? Long.valueOf(indexed) : null, isSet(color, "auto"), tint != null ? Double.parseDouble(tint) : 0);
+	}
+
+	private static String attribute(StartElement element, String name) {
+		return element != null ? SpreadsheetXml.attribute(element, name) : null;
+	}
+
+	/**
+	 * @return True if a boolean font property such as b or i is present and not turned off
+	 */
+	private static boolean isSet(StartElement element) {
+		if (element == null) {
+			return false;
+		}
+		String val = SpreadsheetXml.attribute(element, "val");
+		return !("0".equals(val) || "false".equals(val));
+	}
+
+	/**
+	 * @return True if the boolean attribute is present and turned on
+	 */
+	private static boolean isSet(StartElement element, String name) {
+		String value = SpreadsheetXml.attribute(element, name);
+		return "1".equals(value) || "true".equals(value);
+	}
+
+	private int count(String section) {
+		Integer count = counts.get(section);
+		return count != null ? count : 0;
+	}
+
+	void rewrite(InputStream in, OutputStream out) throws IOException {
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			XMLEventWriter writer = SpreadsheetXml.createOutputFactory().createXMLEventWriter(out, "UTF-8");
+			String prefix = "", namespace = SpreadsheetXml.NS_MAIN;
+			List<String> written = new ArrayList<String>();
+			int depth = 0;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					depth++;
+					StartElement element = event.asStartElement();
+					String name = element.getName().getLocalPart();
+					if (depth == 1) {
+						prefix = element.getName().getPrefix();
+						namespace = element.getName().getNamespaceURI();
+					} else if (depth == 2) {
+						writeMissingSections(writer, written, name, prefix, namespace);
+						if (SECTIONS.contains(name)) {
+							written.add(name);
+							event = withCount(element, count(name) + added(name).size());
+						}
+					}
+					writer.add(event);
+				} else if (event.isEndElement()) {
+					if (depth == 1) {
+						writeMissingSections(writer, written, null, prefix, namespace);
+					} else if (depth == 2) {
+						String name = event.asEndElement().getName().getLocalPart();
+						if (SECTIONS.contains(name)) {
+							writeEntries(writer, added(name), prefix, namespace);
+						}
+					}
+					depth--;
+					writer.add(event);
+				} else {
+					writer.add(event);
+				}
+			}
+			writer.flush();
+			writer.close();
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not rewrite workbook styles", e);
+		}
+	}
+
+	/**
+	 * Write any of our sections which do not exist in the styles part and which must appear before the given element
+	 * @param before Name of the next element in the styles part, or null at the end of the part
+	 */
+	private void writeMissingSections(XMLEventWriter writer, List<String> written, String before, String prefix, String namespace) throws XMLStreamException {
+		int beforeIndex = before != null ? ELEMENT_ORDER.indexOf(before) : ELEMENT_ORDER.size();
+		for (String section : SECTIONS) {
+			if (written.contains(section) || ELEMENT_ORDER.indexOf(section) >= beforeIndex || added(section).isEmpty()) {
+				continue;
+			}
+			written.add(section);
+			QName name = new QName(namespace, section, prefix);
+			List<Attribute> attributes = Collections.singletonList(eventFactory.createAttribute("count", Integer.toString(added(section).size())));
+			writer.add(eventFactory.createStartElement(name, attributes.iterator(), null));
+			writeEntries(writer, added(section), prefix, namespace);
+			writer.add(eventFactory.createEndElement(name, null));
+		}
+	}
+
+	private StartElement withCount(StartElement element, int count) {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(eventFactory.createAttribute("count", Integer.toString(count)));
+		Iterator<?> existing = element.getAttributes();
+		while (existing.hasNext()) {
+			Attribute attribute = (Attribute) existing.next();
+			if (!attribute.getName().getLocalPart().equals("count")) {
+				attributes.add(attribute);
+			}
+		}
+		return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+	}
+
+	/**
+	 * @return The entries we add to a section, as simple element descriptions
+	 */
+	private List<Element> added(String section) {
+		return additions.get(section);
+	}
+
+	private void writeEntries(XMLEventWriter writer, List<Element> elements, String prefix, String namespace) throws XMLStreamException {
+		for (Element element : elements) {
+			QName name = new QName(namespace, element.name, prefix);
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			for (int i = 0; i < element.attributes.length; i += 2) {
+				attributes.add(eventFactory.createAttribute(element.attributes[i], element.attributes[i + 1]));
+			}
+			writer.add(eventFactory.createStartElement(name, attributes.iterator(), null));
+			writeEntries(writer, element.children, prefix, namespace);
+			writer.add(eventFactory.createEndElement(name, null));
+		}
+	}
+
+	/**
+	 * Minimal description of an element to be written to the styles part
+	 */
+	private static class Element {
+
+		private final String name;
+		private String[] attributes;
+		private final List<Element> children = new ArrayList<Element>();
+
+		Element(String name, String... attributes) {
+			this.name = name;
+			this.attributes = attributes;
+		}
+
+		Element add(Element child) {
+			children.add(child);
+			return this;
+		}
+
+		Element attribute(String name, String value) {
+			String[] extended = Arrays.copyOf(attributes, attributes.length + 2);
+			extended[attributes.length] = name;
+			extended[attributes.length + 1] = value;
+			attributes = extended;
+			return this;
+		}
+
+	}
+
+}
@@ -0,0 +1,158 @@
+package org.springframework.social.quickstart.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Temporary files used while downloading, exporting and uploading workbooks.
+ * <p>
+ * Files are created in a single directory, which is limited to a total size so that a burst of large
+ * exports cannot fill the disk. Callers should delete their files once the response is complete. Files
+ * which are left behind by a previous run of the application, or were not created through this class,
+ * are removed in the background once they are older than the maximum age. Files created by this run are
+ * kept until they are deleted, however long they are in use.
+ */
+public class TempStorage {
+
+	private static final Log logger = LogFactory.getLog(TempStorage.class);
+
+	public static final String PREFIX_DOWNLOAD = "hrmdownload-";
+	public static final String PREFIX_EXPORT = "hrmexport-";
+	public static final String PREFIX_UPLOAD = "hrmupload-";
+	public static final String PREFIX_SHEET = "hrmsheet-";
+
+	private static final List<String> PREFIXES = Arrays.asList(PREFIX_DOWNLOAD, PREFIX_EXPORT, PREFIX_UPLOAD, PREFIX_SHEET);
+
+	private final File directory;
+	private final long quotaBytes;
+	private final long maxAgeMillis;
+	private final ScheduledExecutorService sweeper;
+	private final Set<File> liveFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	/**
+	 * @param directory Directory to create temporary files in
+	 * @param quotaBytes Maximum total size of the temporary files
+	 * @param maxAgeMillis Age after which temporary files are assumed to have been left behind
+	 * @param sweepIntervalMillis How often to look for files which have been left behind
+	 */
+	public TempStorage(File directory, long quotaBytes, long maxAgeMillis, long sweepIntervalMillis) {
+		this.directory = directory;
+		this.quotaBytes = quotaBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalStateException("Could not create temporary directory " + directory);
+		}
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "hrm-temp-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, 0, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Create a new empty temporary file
+	 * @param prefix One of the PREFIX_ constants, so that the file is removed if it is left behind
+	 * @throws IOException if the temporary files already take up the whole quota
+	 */
+	public File createTempFile(String prefix, String suffix) throws IOException {
+		if (getUsedBytes() >= quotaBytes) {
+			sweep();
+			if (getUsedBytes() >= quotaBytes) {
+				throw new IOException("Temporary storage is full, please try again later");
+			}
+		}
+		File file = File.createTempFile(prefix, suffix, directory);
+		liveFiles.add(file);
+		return file;
+	}
+
+	/**
+	 * Delete a temporary file once it is no longer needed
+	 */
+	public void delete(File file) {
+		if (file == null) {
+			return;
+		}
+		if (file.exists() && !file.delete()) {
+			file.deleteOnExit();
+		}
+		liveFiles.remove(file);
+	}
+
+	/**
+	 * @return The total size of the temporary files
+	 */
+	public long getUsedBytes() {
+		long total = 0;
+		for (File file : listTempFiles()) {
+			total += file.length();
+		}
+		return total;
+	}
+
+	/**
+	 * Remove temporary files which are older than the maximum age and are not in use
+	 */
+	public void sweep() {
+		// Files which have been moved elsewhere, such as into the export cache, no longer need to be kept
+		for (Iterator<File> it = liveFiles.iterator(); it.hasNext();) {
+			if (!it.next().exists()) {
+				it.remove();
+			}
+		}
+		long expiry = System.currentTimeMillis() - maxAgeMillis;
+		for (File file : listTempFiles()) {
+			if (file.lastModified() < expiry && !liveFiles.contains(file) && !file.delete()) {
+				logger.warn("Could not delete temporary file " + file);
+			}
+		}
+	}
+
+	public void shutdown() {
+		sweeper.shutdownNow();
+	}
+
+	private File[] listTempFiles() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			if (file.isFile() && isTempFile(file.getName())) {
+				files[count++] = file;
+			}
+		}
+		return Arrays.copyOf(files, count);
+	}
+
+	private static boolean isTempFile(String name) {
+		for (String prefix : PREFIXES) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,410 @@
+package org.springframework.social.quickstart.export;
+
+import static org.springframework.social.quickstart.export.HrmWorkbook.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.POIXMLProperties;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellRangeAddressList;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFDataValidation;
+import org.apache.poi.xssf.usermodel.XSSFDataValidationConstraint;
+import org.apache.poi.xssf.usermodel.XSSFDataValidationHelper;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.usermodel.helpers.ColumnHelper;
+import org.openxmlformats.schemas.officeDocument.x2006.customProperties.CTProperty;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCol;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTSheetFormatPr;
+
+/**
+ * Exports the workbook by loading it fully into an {@link XSSFWorkbook} and editing it cell by cell.
+ * Memory use grows with the size of the workbook, so {@link StreamingHrmExporter} should be preferred
+ * for large files.
+ */
+public class WorkbookHrmExporter implements HrmExporter {
+
+	public void export(File source, ExportSettings settings, OutputStream out) throws IOException {
+		OPCPackage pkg;
+		try {
+			pkg = OPCPackage.open(source);
+		} catch (InvalidFormatException e) {
+			throw new IOException("Could not open workbook", e);
+		}
+		try {
+			XSSFWorkbook wb = new XSSFWorkbook(pkg);
+			export(wb, settings);
+			wb.write(out);
+		} finally {
+			// Close the package without writing our changes back to the source file
+			pkg.revert();
+		}
+	}
+
+	private void export(XSSFWorkbook wb, ExportSettings settings) {
+		String hrmFileType = settings.getType();
+		if (hrmFileType == null) {
+			hrmFileType = autoDetectHRMType(wb);
+		}
+
+		// Write properties
+		POIXMLProperties props = wb.getProperties();
+		POIXMLProperties.CustomProperties cust =  props.getCustomProperties();
+
+		if (hrmFileType != null) {
+			CTProperty hrmProperty = cust.getUnderlyingProperties().addNewProperty();
+			hrmProperty.setBool(true);
+			hrmProperty.setName(hrmFileType);
+			hrmProperty.setFmtid(PROP_FMTID);
+			hrmProperty.setPid(2);
+		}
+
+		CTProperty versionProperty = cust.getUnderlyingProperties().addNewProperty();
+		versionProperty.setName("Version");
+		versionProperty.setR8(settings.getVersion());
+		versionProperty.setFmtid(PROP_FMTID);
+		versionProperty.setPid(3);
+
+		String sheetPassword = hrmFileType;
+		ExportPlan plan = ExportPlan.forType(hrmFileType);
+		XSSFSheet sheet;
+		String sheetName;
+
+		// Reuse any equivalent formats the workbook already has, rather than adding more each time it is exported
+		ExportStyles styles = StyleRegistry.register(wb, plan.getStyles());
+		XSSFCellStyle bodyStyle = wb.getCellStyleAt(styles.getBody());
+		XSSFCellStyle firstColumnStyle = wb.getCellStyleAt(styles.getFirstColumn());
+		XSSFCellStyle dateStyle = wb.getCellStyleAt(styles.getDate());
+		XSSFCellStyle timeStyle = wb.getCellStyleAt(styles.getTime());
+
+		List<String> raceSheetNames = new ArrayList<String>();
+		// Go through sheets
+		boolean isRaceSheet = true;
+		int numSheets = wb.getNumberOfSheets();
+		for (int i = 0; i < numSheets; i++) {
+			sheet = wb.getSheetAt(i);
+			sheetName = sheet.getSheetName();
+			isRaceSheet = isRaceSheet && !sheetName.equals(SHEET_FINISHES);
+			if (isRaceSheet) {
+				raceSheetNames.add(sheetName);
+			}
+			// Set sheet protection
+			if (sheetName.equals(SHEET_FINISHES) || sheetName.equals(SHEET_CLUBS)) {
+				sheet.protectSheet("");
+			} else if (isResultsSheet(sheetName)) {
+				// No protection, at least for HRM (ARM seems to still apply empty password, Nationals applies none for Divisional / Singles but empty password for Doubles!)
+				if (sheet.getProtect()) {
+					sheet.protectSheet(null); // Throws IndexOutOfBoundsException if locking not enabled
+				}
+			} else {
+				if (sheetPassword != null) {
+					sheet.protectSheet(sheetPassword);
+				}
+			}
+			// Remove formulas from the race sheets
+			Row headerRow = sheet.getRow(0);
+			if (headerRow != null) {
+				SheetPlan sheetPlan = plan.getSheetPlan(getColumnNames(headerRow));
+				int headerColumns = Math.max(headerRow.getLastCellNum(), 0);
+				int rowStart = 1;
+				int rowEnd = sheet.getLastRowNum() + 1;
+				for (int rowNum = rowStart; rowNum < rowEnd; rowNum++) {
+					Row r = sheet.getRow(rowNum);
+					if (r != null) {
+						short colStart = r.getFirstCellNum();
+						short colEnd = r.getLastCellNum();
+						for (short cn = colStart; cn < colEnd; cn++) {
+							Cell c = r.getCell(cn, Row.RETURN_NULL_AND_BLANK);
+							if (c != null) {
+								ColumnAction action = sheetPlan.getAction(cn);
+								if (action == ColumnAction.CLEAR) {
+									c.setCellType(Cell.CELL_TYPE_BLANK);
+								} else if (action == ColumnAction.CLEAR_NOTES && !c.getStringCellValue().equals(NOTES_ILL)) {
+									c.setCellType(Cell.CELL_TYPE_BLANK);
+								}
+								if (c.getCellType() == Cell.CELL_TYPE_FORMULA) {
+									c.setCellFormula(null);
+									// Numeric values set as strings without this
+									setNumericValue(c);
+								}
+								c.removeCellComment();
+								if (isRaceSheet) {
+									CellStyle columnStyle = cn > 0 ? bodyStyle : firstColumnStyle;
+									CellStyle style = columnStyle;
+									if (cn > 0 && c.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+										if (action == ColumnAction.DATE) {
+											style = dateStyle;
+										} else if (action == ColumnAction.TIME) {
+											style = timeStyle;
+										}
+									}
+									// Blank cells which only carry the default style of their column are not needed
+									if (style == columnStyle && cn < headerColumns && c.getCellType() == Cell.CELL_TYPE_BLANK && !r.isFormatted()) {
+										r.removeCell(c);
+									} else if (((XSSFCell) c).getCTCell().getS() != style.getIndex()) {
+										c.setCellStyle(style);
+									}
+								}
+							}
+						}
+					}
+				}
+				// For Nationals rename Posn header to be compliant with NRM
+				for (short cn = 0; cn < headerRow.getLastCellNum(); cn++) {
+					if (sheetPlan.isPositionColumn(cn)) {
+						headerRow.getCell(cn).setCellValue(COLUMN_POSITION_NRM);
+					}
+				}
+				// Remove unwanted columns, now that we have finished iterating
+				if (sheetPlan.hasRemovedColumns()) {
+					projectColumns(sheet, sheetPlan);
+				}
+				if (isRaceSheet) {
+					setColumnStyles(sheet, sheetPlan.getExportedColumns(), firstColumnStyle, bodyStyle);
+				}
+			}
+			// Remove data validation from the sheet
+			// First we have to set up a new validation, or sheet.getDataValidations() returns an empty list
+			XSSFDataValidationHelper dvHelper = new XSSFDataValidationHelper(sheet);
+			XSSFDataValidationConstraint dvConstraint = (XSSFDataValidationConstraint) dvHelper.createExplicitListConstraint(new String[]{"11", "21", "31"});
+			CellRangeAddressList addressList = new CellRangeAddressList(0, 0, 0, 0);
+			XSSFDataValidation validation = (XSSFDataValidation)dvHelper.createValidation(dvConstraint, addressList);
+			validation.setSuppressDropDownArrow(false);
+			validation.setShowErrorBox(true);
+			sheet.addValidationData(validation);
+			if (sheet.getDataValidations().size() > 0) {
+				sheet.getCTWorksheet().unsetDataValidations();
+				// This sets the xsi:isNull property on the <dataValidations> element which causes the file to be unreadable by Excel
+				//sheet.getCTWorksheet().setDataValidations(null);
+			}
+			// Remove freeze pane
+			sheet.createFreezePane(0,0);
+		}
+
+		Map<String, Double> finishTimes = getStartTimes(wb);
+		if (finishTimes != null && finishTimes.size() > 0 && raceSheetNames.size() > 0) {
+			setHRMFinishTimes(wb, raceSheetNames, finishTimes, timeStyle);
+		}
+		setHRMRaceInfo(wb, settings.getRaceName(), settings.getRegion());
+
+		for (String disallowedSheet : DISALLOWED_SHEETS) {
+			int sheetIndex = wb.getSheetIndex(disallowedSheet);
+			if (sheetIndex > -1) {
+				wb.removeSheetAt(sheetIndex);
+			}
+		}
+
+		// Finally, protect the workbook
+		wb.setWorkbookPassword(sheetPassword, null);
+		wb.lockStructure();
+	}
+
+	/**
+	 * @return Names of the header row cells indexed by column, with null for cells which do not hold text
+	 */
+	private static String[] getColumnNames(Row headerRow) {
+		String[] columnNames = new String[Math.max(headerRow.getLastCellNum(), 0)];
+		for (Cell cell : headerRow) {
+			try {
+				columnNames[cell.getColumnIndex()] = cell.getStringCellValue();
+			} catch(IllegalStateException e) {
+				// We encountered a non-string value, move on
+			}
+		}
+		return columnNames;
+	}
+
+	private static String autoDetectHRMType(XSSFWorkbook wb) {
+		// Auto-detect the sheet type based on the first sheet name
+		if (wb.getNumberOfSheets() > 0) {
+			return detectType(wb.getSheetAt(0).getSheetName());
+		}
+		return null;
+	}
+
+	private static void setNumericValue(Cell c) {
+		if (c.getCellType() == Cell.CELL_TYPE_NUMERIC || c.getCellType() == Cell.CELL_TYPE_BOOLEAN) {
+			return;
+		}
+		try {
+			double number = CellValues.toNumber(c.getStringCellValue());
+			if (!Double.isNaN(number)) {
+				c.setCellValue(number);
+				c.setCellType(Cell.CELL_TYPE_NUMERIC);
+			}
+		} catch (IllegalStateException e) {
+
+		}
+	}
+
+	private static Map<String, Double> getStartTimes(XSSFWorkbook wb) {
+		Map<String, Double> times = new HashMap<String, Double>();
+		XSSFSheet startsSheet = wb.getSheet(SHEET_STARTS);
+		if (startsSheet == null) {
+			return null;
+		}
+		for (Row row : startsSheet) {
+			Cell raceNameCell = row.getCell(0);
+			Cell startTimeCell = row.getCell(1);
+			if (raceNameCell != null && startTimeCell != null) {
+				setNumericValue(startTimeCell);
+				if (raceNameCell != null && startTimeCell != null &&
+						raceNameCell.getCellType() == Cell.CELL_TYPE_STRING &&
+						startTimeCell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+					times.put(raceNameCell.getStringCellValue(), startTimeCell.getNumericCellValue());
+				}
+			}
+		}
+		return times;
+	}
+
+	private static void setHRMFinishTimes(XSSFWorkbook wb, List<String> sheetNames, Map<String, Double> times, CellStyle cellStyle) {
+		XSSFSheet summarySheet = wb.getSheet(SHEET_SUMMARY);
+		if (summarySheet != null) {
+			int i = 1;
+			for (String sheetName : sheetNames) {
+				Row row = summarySheet.getRow(i);
+				if (row == null) {
+					row = summarySheet.createRow(i);
+				}
+				// Add times to column AA from row 2 down, in the order that the sheets appear
+				Cell c = row.createCell(SUMMARY_START_TIME_COLUMN, Cell.CELL_TYPE_BLANK);
+				if (times.get(sheetName) != null) {
+					c.setCellValue(times.get(sheetName));
+				}
+				if (cellStyle != null) {
+					c.setCellStyle(cellStyle);
+				}
+				i ++;
+			}
+		}
+	}
+
+	private static void setHRMRaceInfo(XSSFWorkbook wb, String raceName, String raceRegion) {
+		XSSFSheet clubsSheet = wb.getSheet(SHEET_CLUBS);
+		if (clubsSheet != null) {
+			Row row = clubsSheet.getRow(0);
+			if (row == null) {
+				row = clubsSheet.createRow(0);
+			}
+			row.createCell(CLUBS_REGION_COLUMN, Cell.CELL_TYPE_STRING).setCellValue(raceRegion);
+			row.createCell(CLUBS_RACE_NAME_COLUMN, Cell.CELL_TYPE_STRING).setCellValue(raceName);
+		}
+	}
+
+	/**
+	 * Move every cell to its projected column in a single pass over the sheet, dropping cells in removed columns
+	 */
+	private static void projectColumns(XSSFSheet sheet, SheetPlan projection) {
+		int maxColumn = 0;
+		for (Row row : sheet) {
+			int lastColumn = row.getLastCellNum();
+			if (lastColumn > maxColumn) {
+				maxColumn = lastColumn;
+			}
+			// Surviving cells only ever move left, so each target has already been vacated
+			for (int cn = Math.max(row.getFirstCellNum(), 0); cn < lastColumn; cn++) {
+				Cell cell = row.getCell(cn);
+				int newColumn = projection.map(cn);
+				if (cell == null || newColumn == cn) {
+					continue;
+				}
+				if (newColumn > -1) {
+					cloneCell(row.createCell(newColumn, cell.getCellType()), cell);
+				}
+				row.removeCell(cell);
+			}
+		}
+
+		// Adjust the column widths and hidden flags to match
+		ColumnHelper columnHelper = sheet.getColumnHelper();
+		for (int c = 0; c < maxColumn; c++) {
+			int newColumn = projection.map(c);
+			if (newColumn < 0 || newColumn == c) {
+				continue;
+			}
+			if (hasCustomWidth(columnHelper, c) || hasCustomWidth(columnHelper, newColumn)) {
+				sheet.setColumnWidth(newColumn, sheet.getColumnWidth(c));
+			}
+			sheet.setColumnHidden(newColumn, sheet.isColumnHidden(c));
+		}
+		for (int c = maxColumn - projection.getRemovedColumns(); c < maxColumn; c++) {
+			if (hasCustomWidth(columnHelper, c)) {
+				sheet.setColumnWidth(c, sheet.getDefaultColumnWidth() * 256);
+			}
+			sheet.setColumnHidden(c, false);
+		}
+	}
+
+	/**
+	 * Give the columns covered by the header row of a race sheet their default style, which applies to any
+	 * cells that are not present in the sheet
+	 */
+	private static void setColumnStyles(XSSFSheet sheet, int columns, CellStyle firstColumnStyle, CellStyle bodyStyle) {
+		CTSheetFormatPr format = sheet.getCTWorksheet().getSheetFormatPr();
+		double defaultWidth = format != null && format.isSetDefaultColWidth() ?
+				format.getDefaultColWidth() : SpreadsheetXml.DEFAULT_COLUMN_WIDTH;
+		for (int c = 0; c < columns; c++) {
+			sheet.setDefaultColumnStyle(c, c > 0 ? bodyStyle : firstColumnStyle);
+			CTCol col = sheet.getColumnHelper().getColumn(c, false);
+			if (col != null && !col.isSetWidth()) {
+				col.setWidth(defaultWidth);
+			}
+		}
+		// New col elements are appended, but they must be in column order
+		if (sheet.getCTWorksheet().sizeOfColsArray() > 0) {
+			ColumnHelper.sortColumns(sheet.getCTWorksheet().getColsArray(0));
+		}
+	}
+
+	private static boolean hasCustomWidth(ColumnHelper columnHelper, int column) {
+		CTCol col = columnHelper.getColumn(column, false);
+		return col != null && col.isSetCustomWidth() && col.getCustomWidth();
+	}
+
+	/*
+	 * Takes an existing Cell and merges all the styles and forumla
+	 * into the new one
+	 */
+	private static void cloneCell( Cell cNew, Cell cOld ){
+
+		switch ( cOld.getCellType() ){
+			case Cell.CELL_TYPE_BOOLEAN:{
+				cNew.setCellValue( cOld.getBooleanCellValue() );
+				break;
+			}
+			case Cell.CELL_TYPE_NUMERIC:{
+				cNew.setCellValue( cOld.getNumericCellValue() );
+				break;
+			}
+			case Cell.CELL_TYPE_STRING:{
+				cNew.setCellValue( cOld.getStringCellValue() );
+				break;
+			}
+			case Cell.CELL_TYPE_ERROR:{
+				cNew.setCellValue( cOld.getErrorCellValue() );
+				break;
+			}
+			case Cell.CELL_TYPE_FORMULA:{
+				cNew.setCellFormula( cOld.getCellFormula() );
+				break;
+			}
+		}
+
+		cNew.setCellStyle( cOld.getCellStyle() );
+
+	}
+
+}
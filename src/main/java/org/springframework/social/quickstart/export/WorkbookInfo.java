@@ -0,0 +1,60 @@
+package org.springframework.social.quickstart.export;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Details of a workbook which can be read without loading the whole workbook.
+ *
+ * @see WorkbookProbe
+ */
+public final class WorkbookInfo {
+
+	private final String type;
+	private final Double version;
+	private final List<String> sheetNames;
+	private final boolean structureLocked;
+	private final boolean passwordProtected;
+
+	WorkbookInfo(String type, Double version, List<String> sheetNames, boolean structureLocked, boolean passwordProtected) {
+		this.type = type;
+		this.version = version;
+		this.sheetNames = Collections.unmodifiableList(sheetNames);
+		this.structureLocked = structureLocked;
+		this.passwordProtected = passwordProtected;
+	}
+
+	/**
+	 * @return The HRM type recorded in the custom properties, or detected from the first sheet name, or null if it is not known
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return The HRM version recorded in the custom properties, or null if there is none
+	 */
+	public Double getVersion() {
+		return version;
+	}
+
+	public List<String> getSheetNames() {
+		return sheetNames;
+	}
+
+	public boolean isStructureLocked() {
+		return structureLocked;
+	}
+
+	public boolean isPasswordProtected() {
+		return passwordProtected;
+	}
+
+	/**
+	 * @return True if the workbook structure is locked or protected with a password
+	 */
+	public boolean isProtected() {
+		return structureLocked || passwordProtected;
+	}
+
+}
@@ -0,0 +1,184 @@
+package org.springframework.social.quickstart.export;
+
+import static org.springframework.social.quickstart.export.HrmWorkbook.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+/**
+ * Reads the HRM type, version, sheet names and protection of a workbook from the workbook part and the
+ * custom properties, without reading the worksheets or building a POI workbook.
+ */
+public final class WorkbookProbe {
+
+	static final String WORKBOOK_PART = "xl/workbook.xml";
+
+	private static final List<String> TYPES = Arrays.asList(TYPE_HASLER, TYPE_ASSESSMENT, TYPE_NATIONALS);
+	private static final String PROPERTY_VERSION = "Version";
+
+	private final List<String> sheetNames = new ArrayList<String>();
+	private boolean structureLocked = false;
+	private boolean passwordProtected = false;
+	private String propertyType;
+	private Double version;
+
+	private WorkbookProbe() {
+	}
+
+	/**
+	 * Probe a workbook on disk. Only the two parts are read, using the directory at the end of the file.
+	 */
+	public static WorkbookInfo probe(File file) throws IOException {
+		WorkbookProbe probe = new WorkbookProbe();
+		ZipFile zip = new ZipFile(file);
+		try {
+			ZipEntry workbookEntry = zip.getEntry(WORKBOOK_PART);
+			if (workbookEntry == null) {
+				throw new IOException("Workbook part " + WORKBOOK_PART + " not found");
+			}
+			probe.readWorkbook(zip.getInputStream(workbookEntry));
+			ZipEntry customEntry = zip.getEntry(SpreadsheetXml.CUSTOM_PROPERTIES_PART);
+			if (customEntry != null) {
+				probe.readCustomProperties(zip.getInputStream(customEntry));
+			}
+		} finally {
+			zip.close();
+		}
+		return probe.getInfo();
+	}
+
+	/**
+	 * Probe a workbook as it is read from a stream, stopping once the workbook part has been read. The custom
+	 * properties are only read if they come before the workbook part. The stream is not closed.
+	 */
+	public static WorkbookInfo probe(InputStream in) throws IOException {
+		WorkbookProbe probe = new WorkbookProbe();
+		probe.readStream(in);
+		return probe.getInfo();
+	}
+
+	/**
+	 * Probe a workbook as it is read from a stream, taking the type and version from the export settings
+	 * instead of the custom properties. Only the stream up to the end of the workbook part is read, and the
+	 * stream is not closed.
+	 */
+	public static WorkbookInfo probe(InputStream in, ExportSettings settings) throws IOException {
+		WorkbookProbe probe = new WorkbookProbe();
+		probe.readStream(in);
+		probe.propertyType = settings.getType();
+		probe.version = settings.getVersion();
+		return probe.getInfo();
+	}
+
+	private void readStream(InputStream in) throws IOException {
+		ZipInputStream zipIn = new ZipInputStream(in);
+		boolean workbookRead = false;
+		ZipEntry entry;
+		while (!workbookRead && (entry = zipIn.getNextEntry()) != null) {
+			if (entry.getName().equals(WORKBOOK_PART)) {
+				// The XML reader may close the stream it is given, which would end the whole package
+				readWorkbook(new CloseShieldInputStream(zipIn));
+				workbookRead = true;
+			} else if (entry.getName().equals(SpreadsheetXml.CUSTOM_PROPERTIES_PART)) {
+				readCustomProperties(new CloseShieldInputStream(zipIn));
+			}
+		}
+		if (!workbookRead) {
+			throw new IOException("Workbook part " + WORKBOOK_PART + " not found");
+		}
+	}
+
+	private WorkbookInfo getInfo() {
+		String type = propertyType;
+		if (type == null && sheetNames.size() > 0) {
+			type = detectType(sheetNames.get(0));
+		}
+		return new WorkbookInfo(type, version, sheetNames, structureLocked, passwordProtected);
+	}
+
+	private void readWorkbook(InputStream in) throws IOException {
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			try {
+				while (reader.hasNext()) {
+					XMLEvent event = reader.nextEvent();
+					if (!event.isStartElement()) {
+						continue;
+					}
+					StartElement element = event.asStartElement();
+					String name = element.getName().getLocalPart();
+					if (name.equals("workbookProtection")) {
+						structureLocked = isTrue(SpreadsheetXml.attribute(element, "lockStructure"));
+						passwordProtected = SpreadsheetXml.attribute(element, "workbookPassword") != null ||
+								SpreadsheetXml.attribute(element, "workbookHashValue") != null;
+					} else if (name.equals("sheet")) {
+						sheetNames.add(SpreadsheetXml.attribute(element, "name"));
+					} else if (name.equals("definedNames") || name.equals("calcPr")) {
+						// Nothing we need comes after the sheets
+						break;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read workbook", e);
+		}
+	}
+
+	private void readCustomProperties(InputStream in) throws IOException {
+		try {
+			XMLEventReader reader = SpreadsheetXml.createInputFactory().createXMLEventReader(in);
+			try {
+				String propertyName = null;
+				while (reader.hasNext()) {
+					XMLEvent event = reader.nextEvent();
+					if (event.isStartElement()) {
+						StartElement element = event.asStartElement();
+						if (element.getName().getLocalPart().equals("property")) {
+							propertyName = SpreadsheetXml.attribute(element, "name");
+						} else if (propertyName != null) {
+							readProperty(propertyName, reader.getElementText().trim());
+							propertyName = null;
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read custom properties", e);
+		}
+	}
+
+	private void readProperty(String name, String value) {
+		if (TYPES.contains(name) && isTrue(value)) {
+			propertyType = name;
+		} else if (name.equals(PROPERTY_VERSION)) {
+			try {
+				version = Double.valueOf(value);
+			} catch (NumberFormatException e) {
+				// Not a version we recognise, leave it unset
+			}
+		}
+	}
+
+	private static boolean isTrue(String value) {
+		return "1".equals(value) || "true".equals(value);
+	}
+
+}
@@ -0,0 +1,535 @@
+package org.springframework.social.quickstart.export;
+
+import static org.springframework.social.quickstart.export.HrmWorkbook.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.poi.poifs.crypt.CryptoFunctions;
+
+/**
+ * Rewrites a worksheet part as a stream of XML events, applying the same changes that
+ * {@link WorkbookHrmExporter} makes through the POI object model: formulas are dropped below the
+ * header row of sheets which have one, Paid and Notes are blanked, unwanted columns are removed,
+ * race sheet cells are restyled and data validations, freeze panes and comments are stripped.
+ * <p>
+ * Only a single row is held in memory at a time.
+ */
+final class WorksheetRewriter {
+
+	private final String[] sharedStrings;
+	private final ExportStyles styles;
+	private final XMLInputFactory inputFactory = SpreadsheetXml.createInputFactory();
+	private final XMLOutputFactory outputFactory = SpreadsheetXml.createOutputFactory();
+	private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+	WorksheetRewriter(String[] sharedStrings, ExportStyles styles) {
+		this.sharedStrings = sharedStrings;
+		this.styles = styles;
+	}
+
+	/**
+	 * Read the names of the columns in the first row of a worksheet, stopping as soon as the row has been read
+	 * @return The column names, with null for cells which do not hold text, or null if the sheet has no first row
+	 */
+	String[] readHeaderNames(InputStream in) throws IOException {
+		try {
+			XMLEventReader reader = inputFactory.createXMLEventReader(in);
+			try {
+				while (reader.hasNext()) {
+					XMLEvent event = reader.nextEvent();
+					if (event.isStartElement() && event.asStartElement().getName().getLocalPart().equals("row")) {
+						String r = SpreadsheetXml.attribute(event.asStartElement(), "r");
+						if (r != null && !r.equals("1")) {
+							return null;
+						}
+						List<String> names = new ArrayList<String>();
+						for (SheetCell cell : readRow(reader)) {
+							while (names.size() <= cell.getColumn()) {
+								names.add(null);
+							}
+							names.set(cell.getColumn(), cell.getStringValue(sharedStrings));
+						}
+						return names.toArray(new String[names.size()]);
+					}
+				}
+				return null;
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read worksheet", e);
+		}
+	}
+
+	/**
+	 * Read the cells of the row which has just been started, consuming the end of the row
+	 */
+	List<SheetCell> readRow(XMLEventReader reader) throws XMLStreamException {
+		List<SheetCell> cells = new ArrayList<SheetCell>();
+		int column = 0;
+		while (reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			if (event.isStartElement()) {
+				StartElement element = event.asStartElement();
+				if (element.getName().getLocalPart().equals("c")) {
+					SheetCell cell = SheetCell.read(reader, element, column);
+					cells.add(cell);
+					column = cell.getColumn() + 1;
+				} else {
+					SpreadsheetXml.skipElement(reader);
+				}
+			} else if (event.isEndElement()) {
+				break;
+			}
+		}
+		return cells;
+	}
+
+	void rewrite(SheetExport sheet, InputStream in, OutputStream out) throws IOException {
+		try {
+			XMLEventReader reader = inputFactory.createXMLEventReader(in);
+			XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+			new Rewrite(sheet, reader, writer).run();
+			writer.flush();
+			writer.close();
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not rewrite worksheet " + sheet.getName(), e);
+		}
+	}
+
+	private class Rewrite {
+
+		private final SheetExport sheet;
+		private final XMLEventReader reader;
+		private final XMLEventWriter writer;
+		private String prefix = "";
+		private String namespace = SpreadsheetXml.NS_MAIN;
+		private boolean inSheetView = false;
+		private boolean protectionPending = false;
+		private int lastRowNum = 0;
+		// Race sheet columns covered by the header are given a default style, so that blank cells can be left out
+		private final int styledColumns;
+		private int nextStyledColumn = 0;
+		private boolean columnsWritten = false;
+		private String defaultColumnWidth = SpreadsheetXml.formatNumber(SpreadsheetXml.DEFAULT_COLUMN_WIDTH);
+		private boolean rowFormatted = false;
+
+		Rewrite(SheetExport sheet, XMLEventReader reader, XMLEventWriter writer) {
+			this.sheet = sheet;
+			this.reader = reader;
+			this.writer = writer;
+			this.styledColumns = sheet.isRaceSheet() && sheet.hasHeader() ? sheet.getPlan().getExportedColumns() : 0;
+		}
+
+		void run() throws XMLStreamException {
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement element = event.asStartElement();
+					String name = element.getName().getLocalPart();
+					if (name.equals("worksheet")) {
+						prefix = element.getName().getPrefix();
+						namespace = element.getName().getNamespaceURI();
+						writer.add(event);
+					} else if (name.equals("sheetView")) {
+						inSheetView = true;
+						writer.add(event);
+					} else if (inSheetView && (name.equals("pane") || name.equals("selection"))) {
+						// Remove freeze pane
+						SpreadsheetXml.skipElement(reader);
+					} else if (name.equals("sheetFormatPr")) {
+						String width = SpreadsheetXml.attribute(element, "defaultColWidth");
+						if (width != null) {
+							defaultColumnWidth = width;
+						}
+						writer.add(event);
+					} else if (name.equals("cols")) {
+						columnsWritten = true;
+						writer.add(event);
+					} else if (name.equals("sheetData")) {
+						if (!columnsWritten && styledColumns > 0) {
+							writer.add(eventFactory.createStartElement(name("cols"), null, null));
+							writeDefaultColumns(styledColumns);
+							writer.add(eventFactory.createEndElement(name("cols"), null));
+						}
+						writer.add(event);
+					} else if (name.equals("col")) {
+						writeColumns(element);
+						SpreadsheetXml.skipElement(reader);
+					} else if (name.equals("row")) {
+						writeRow(element);
+					} else if (name.equals("sheetProtection")) {
+						protectionPending = false;
+						writeProtection(element);
+						SpreadsheetXml.skipElement(reader);
+					} else if (name.equals("dataValidations") || name.equals("legacyDrawing")) {
+						// Data validations are not wanted in the HRM, comments are removed along with their drawing
+						SpreadsheetXml.skipElement(reader);
+					} else {
+						if (protectionPending && !name.equals("sheetCalcPr")) {
+							protectionPending = false;
+							writeProtection(null);
+						}
+						writer.add(event);
+					}
+				} else if (event.isEndElement()) {
+					String name = event.asEndElement().getName().getLocalPart();
+					if (name.equals("cols")) {
+						writeDefaultColumns(styledColumns);
+					} else if (name.equals("sheetData")) {
+						writeOverrideRows(Integer.MAX_VALUE);
+						protectionPending = true;
+					} else if (name.equals("sheetView")) {
+						inSheetView = false;
+					} else if (name.equals("worksheet") && protectionPending) {
+						protectionPending = false;
+						writeProtection(null);
+					}
+					writer.add(event);
+				} else {
+					writer.add(event);
+				}
+			}
+		}
+
+		private QName name(String localName) {
+			return new QName(namespace, localName, prefix);
+		}
+
+		/**
+		 * Write out the columns covered by a col element, splitting the range around any removed columns
+		 */
+		private void writeColumns(StartElement element) throws XMLStreamException {
+			int min = Integer.parseInt(SpreadsheetXml.attribute(element, "min")) - 1;
+			int max = Integer.parseInt(SpreadsheetXml.attribute(element, "max")) - 1;
+			int start = -1, end = -1;
+			for (int column = min; column <= max + 1; column++) {
+				int mapped = column <= max ? sheet.mapColumn(column) : -1;
+				if (mapped > -1 && start > -1 && mapped == end + 1) {
+					end = mapped;
+				} else {
+					if (start > -1) {
+						writeColumn(element, start, end);
+					}
+					start = mapped;
+					end = mapped;
+				}
+			}
+		}
+
+		/**
+		 * Write out a range of columns, splitting it where the default style of the columns changes
+		 */
+		private void writeColumn(StartElement element, int min, int max) throws XMLStreamException {
+			writeDefaultColumns(min);
+			int start = min;
+			while (start <= max) {
+				int end = start < styledColumns ? (start == 0 ? 0 : Math.min(max, styledColumns - 1)) : max;
+				writeColumn(element, start, end, start < styledColumns ? columnStyle(start) : null);
+				start = end + 1;
+			}
+			nextStyledColumn = Math.max(nextStyledColumn, max + 1);
+		}
+
+		/**
+		 * @param style Default style for the columns, or null to keep the existing one
+		 */
+		private void writeColumn(StartElement element, int min, int max, String style) throws XMLStreamException {
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			attributes.add(eventFactory.createAttribute("min", Integer.toString(min + 1)));
+			attributes.add(eventFactory.createAttribute("max", Integer.toString(max + 1)));
+			Iterator<?> existing = element.getAttributes();
+			while (existing.hasNext()) {
+				Attribute attribute = (Attribute) existing.next();
+				String name = attribute.getName().getLocalPart();
+				if (!name.equals("min") && !name.equals("max") && !(style != null && name.equals("style"))) {
+					attributes.add(attribute);
+				}
+			}
+			if (style != null) {
+				attributes.add(eventFactory.createAttribute("style", style));
+			}
+			writer.add(eventFactory.createStartElement(name("col"), attributes.iterator(), null));
+			writer.add(eventFactory.createEndElement(name("col"), null));
+		}
+
+		/**
+		 * Write col elements giving the default style to any styled columns before the given column which
+		 * have not been written yet
+		 */
+		private void writeDefaultColumns(int beforeColumn) throws XMLStreamException {
+			int end = Math.min(beforeColumn, styledColumns);
+			while (nextStyledColumn < end) {
+				int max = nextStyledColumn == 0 ? 0 : end - 1;
+				List<Attribute> attributes = new ArrayList<Attribute>(4);
+				attributes.add(eventFactory.createAttribute("min", Integer.toString(nextStyledColumn + 1)));
+				attributes.add(eventFactory.createAttribute("max", Integer.toString(max + 1)));
+				attributes.add(eventFactory.createAttribute("width", defaultColumnWidth));
+				attributes.add(eventFactory.createAttribute("style", columnStyle(nextStyledColumn)));
+				writer.add(eventFactory.createStartElement(name("col"), attributes.iterator(), null));
+				writer.add(eventFactory.createEndElement(name("col"), null));
+				nextStyledColumn = max + 1;
+			}
+		}
+
+		/**
+		 * @return Default style of a column on a race sheet
+		 */
+		private String columnStyle(int column) {
+			return Integer.toString(column == 0 ? styles.getFirstColumn() : styles.getBody());
+		}
+
+		private void writeRow(StartElement element) throws XMLStreamException {
+			String r = SpreadsheetXml.attribute(element, "r");
+			int rowNum = r != null ? Integer.parseInt(r) : lastRowNum + 1;
+			lastRowNum = rowNum;
+			writeOverrideRows(rowNum);
+			List<CellOverride> overrides = sheet.getOverrides().remove(rowNum);
+			if (overrides == null) {
+				overrides = Collections.emptyList();
+			}
+
+			String customFormat = SpreadsheetXml.attribute(element, "customFormat");
+			rowFormatted = "1".equals(customFormat) || "true".equals(customFormat);
+
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			Iterator<?> existing = element.getAttributes();
+			while (existing.hasNext()) {
+				Attribute attribute = (Attribute) existing.next();
+				// Span hints are no longer correct once columns have been removed
+				if (!(sheet.hasRemovedColumns() && attribute.getName().getLocalPart().equals("spans"))) {
+					attributes.add(attribute);
+				}
+			}
+			writer.add(eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces()));
+
+			int nextOverride = 0;
+			int column = 0;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement() && event.asStartElement().getName().getLocalPart().equals("c")) {
+					SheetCell cell = SheetCell.read(reader, event.asStartElement(), column);
+					column = cell.getColumn() + 1;
+					int mapped = sheet.mapColumn(cell.getColumn());
+					if (mapped < 0) {
+						continue;
+					}
+					while (nextOverride < overrides.size() && overrides.get(nextOverride).getColumn() < mapped) {
+						writeOverride(overrides.get(nextOverride++), rowNum);
+					}
+					if (nextOverride < overrides.size() && overrides.get(nextOverride).getColumn() == mapped) {
+						continue;
+					}
+					if (rowNum == 1) {
+						writeHeaderCell(cell, mapped, rowNum);
+					} else if (sheet.hasHeader()) {
+						writeDataCell(cell, mapped, rowNum);
+					} else {
+						writeCell(cell, mapped, rowNum, cell.getStyle(), cell.getType(), cell.getContentWithFormula());
+					}
+				} else if (event.isEndElement() && event.asEndElement().getName().getLocalPart().equals("row")) {
+					while (nextOverride < overrides.size()) {
+						writeOverride(overrides.get(nextOverride++), rowNum);
+					}
+					writer.add(event);
+					break;
+				} else {
+					writer.add(event);
+				}
+			}
+		}
+
+		/**
+		 * Write new rows holding override cells, for any rows before the given row which do not exist in the sheet
+		 */
+		private void writeOverrideRows(int beforeRowNum) throws XMLStreamException {
+			while (!sheet.getOverrides().isEmpty() && sheet.getOverrides().firstKey() < beforeRowNum) {
+				int rowNum = sheet.getOverrides().firstKey();
+				List<CellOverride> overrides = sheet.getOverrides().remove(rowNum);
+				List<Attribute> attributes = Collections.singletonList(eventFactory.createAttribute("r", Integer.toString(rowNum)));
+				writer.add(eventFactory.createStartElement(name("row"), attributes.iterator(), null));
+				for (CellOverride override : overrides) {
+					writeOverride(override, rowNum);
+				}
+				writer.add(eventFactory.createEndElement(name("row"), null));
+			}
+		}
+
+		private void writeHeaderCell(SheetCell cell, int column, int rowNum) throws XMLStreamException {
+			// For Nationals rename Posn header to be compliant with NRM
+			if (sheet.isPositionColumn(cell.getColumn())) {
+				writeCell(cell, column, rowNum, cell.getStyle(), SheetCell.TYPE_INLINE_STRING, inlineString(COLUMN_POSITION_NRM));
+			} else {
+				writeCell(cell, column, rowNum, cell.getStyle(), cell.getType(), cell.getContentWithFormula());
+			}
+		}
+
+		private void writeDataCell(SheetCell cell, int column, int rowNum) throws XMLStreamException {
+			ColumnAction action = sheet.getColumnAction(cell.getColumn());
+			String type = cell.getType();
+			List<XMLEvent> content = cell.getContent();
+			boolean numeric = cell.isNumeric();
+
+			if (action == ColumnAction.CLEAR ||
+					(action == ColumnAction.CLEAR_NOTES && !NOTES_ILL.equals(cell.getStringValue(sharedStrings)))) {
+				type = null;
+				content = Collections.emptyList();
+				numeric = false;
+			} else if (cell.hasFormula() && SheetCell.TYPE_FORMULA_STRING.equals(type)) {
+				// Numeric values set as strings without this
+				double number = CellValues.toNumber(cell.getValue());
+				if (!Double.isNaN(number)) {
+					type = null;
+					content = numberValue(number);
+					numeric = true;
+				}
+			}
+
+			String style = cell.getStyle();
+			if (sheet.isRaceSheet()) {
+				if (cell.getColumn() > 0) {
+					if (action == ColumnAction.DATE && numeric) {
+						style = Integer.toString(styles.getDate());
+					} else if (action == ColumnAction.TIME && numeric) {
+						style = Integer.toString(styles.getTime());
+					} else {
+						style = Integer.toString(styles.getBody());
+					}
+				} else {
+					style = Integer.toString(styles.getFirstColumn());
+				}
+				// Blank cells which only carry the default style of their column are not needed
+				if (column < styledColumns && !rowFormatted && isBlank(content) &&
+						cell.getOtherAttributes().isEmpty() && style.equals(columnStyle(column))) {
+					return;
+				}
+			}
+			writeCell(cell, column, rowNum, style, type, content);
+		}
+
+		private void writeOverride(CellOverride override, int rowNum) throws XMLStreamException {
+			List<Attribute> attributes = new ArrayList<Attribute>(3);
+			attributes.add(eventFactory.createAttribute("r", SpreadsheetXml.cellRef(override.getColumn(), rowNum)));
+			if (override.getStyle() != null) {
+				attributes.add(eventFactory.createAttribute("s", override.getStyle().toString()));
+			}
+			List<XMLEvent> content = Collections.emptyList();
+			if (override.getText() != null) {
+				attributes.add(eventFactory.createAttribute("t", SheetCell.TYPE_INLINE_STRING));
+				content = inlineString(override.getText());
+			} else if (override.getNumber() != null) {
+				content = numberValue(override.getNumber());
+			}
+			writer.add(eventFactory.createStartElement(name("c"), attributes.iterator(), null));
+			for (XMLEvent event : content) {
+				writer.add(event);
+			}
+			writer.add(eventFactory.createEndElement(name("c"), null));
+		}
+
+		private void writeCell(SheetCell cell, int column, int rowNum, String style, String type, List<XMLEvent> content) throws XMLStreamException {
+			List<Attribute> attributes = new ArrayList<Attribute>(3 + cell.getOtherAttributes().size());
+			attributes.add(eventFactory.createAttribute("r", SpreadsheetXml.cellRef(column, rowNum)));
+			if (style != null) {
+				attributes.add(eventFactory.createAttribute("s", style));
+			}
+			if (type != null) {
+				attributes.add(eventFactory.createAttribute("t", type));
+			}
+			attributes.addAll(cell.getOtherAttributes());
+			writer.add(eventFactory.createStartElement(name("c"), attributes.iterator(), null));
+			for (XMLEvent event : content) {
+				writer.add(event);
+			}
+			writer.add(eventFactory.createEndElement(name("c"), null));
+		}
+
+		private boolean isBlank(List<XMLEvent> content) {
+			for (XMLEvent event : content) {
+				if (event.isStartElement()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private List<XMLEvent> numberValue(double number) {
+			List<XMLEvent> content = new ArrayList<XMLEvent>(3);
+			content.add(eventFactory.createStartElement(name("v"), null, null));
+			content.add(eventFactory.createCharacters(SpreadsheetXml.formatNumber(number)));
+			content.add(eventFactory.createEndElement(name("v"), null));
+			return content;
+		}
+
+		private List<XMLEvent> inlineString(String text) {
+			List<XMLEvent> content = new ArrayList<XMLEvent>(5);
+			content.add(eventFactory.createStartElement(name("is"), null, null));
+			content.add(eventFactory.createStartElement(name("t"), null, null));
+			content.add(eventFactory.createCharacters(text));
+			content.add(eventFactory.createEndElement(name("t"), null));
+			content.add(eventFactory.createEndElement(name("is"), null));
+			return content;
+		}
+
+		/**
+		 * Write the sheet protection element, keeping any options from the existing element
+		 * @param existing The existing sheetProtection element, or null if the sheet is not protected
+		 */
+		private void writeProtection(StartElement existing) throws XMLStreamException {
+			if (sheet.getProtection() == SheetExport.Protection.REMOVE) {
+				return;
+			}
+			if (sheet.getProtection() == SheetExport.Protection.KEEP) {
+				if (existing != null) {
+					writer.add(existing);
+					writer.add(eventFactory.createEndElement(existing.getName(), null));
+				}
+				return;
+			}
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			attributes.add(eventFactory.createAttribute("password", passwordHash(sheet.getPassword())));
+			attributes.add(eventFactory.createAttribute("sheet", "1"));
+			attributes.add(eventFactory.createAttribute("objects", "1"));
+			attributes.add(eventFactory.createAttribute("scenarios", "1"));
+			if (existing != null) {
+				Iterator<?> existingAttributes = existing.getAttributes();
+				while (existingAttributes.hasNext()) {
+					Attribute attribute = (Attribute) existingAttributes.next();
+					String name = attribute.getName().getLocalPart();
+					if (!name.equals("password") && !name.equals("sheet") && !name.equals("objects") && !name.equals("scenarios")) {
+						attributes.add(attribute);
+					}
+				}
+			}
+			writer.add(eventFactory.createStartElement(name("sheetProtection"), attributes.iterator(), null));
+			writer.add(eventFactory.createEndElement(name("sheetProtection"), null));
+		}
+
+	}
+
+	/**
+	 * @return The legacy XOR password hash, as stored by Excel when protecting sheets and workbooks
+	 */
+	static String passwordHash(String password) {
+		return String.format("%04X", CryptoFunctions.createXorVerifier1(password));
+	}
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Converts Drive spreadsheet exports into workbooks that can be loaded by the HRM software.
+ */
+package org.springframework.social.quickstart.export;
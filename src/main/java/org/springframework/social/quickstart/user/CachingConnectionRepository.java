@@ -0,0 +1,92 @@
+package org.springframework.social.quickstart.user;
+
+import java.util.List;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A user's connections, with the primary connections read through the cache in
+ * {@link CachingUsersConnectionRepository}. Changes to the connections remove them from the cache.
+ */
+final class CachingConnectionRepository implements ConnectionRepository {
+
+	private final String userId;
+	private final ConnectionRepository delegate;
+	private final CachingUsersConnectionRepository cache;
+
+	CachingConnectionRepository(String userId, ConnectionRepository delegate, CachingUsersConnectionRepository cache) {
+		this.userId = userId;
+		this.delegate = delegate;
+		this.cache = cache;
+	}
+
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return delegate.findAllConnections();
+	}
+
+	public List<Connection<?>> findConnections(String providerId) {
+		return delegate.findConnections(providerId);
+	}
+
+	public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+		return delegate.findConnections(apiType);
+	}
+
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(MultiValueMap<String, String> providerUserIds) {
+		return delegate.findConnectionsToUsers(providerUserIds);
+	}
+
+	public Connection<?> getConnection(ConnectionKey connectionKey) {
+		return delegate.getConnection(connectionKey);
+	}
+
+	public <A> Connection<A> getConnection(Class<A> apiType, String providerUserId) {
+		return delegate.getConnection(apiType, providerUserId);
+	}
+
+	public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+		Connection<A> connection = findPrimaryConnection(apiType);
+		// Let the underlying repository report that the user is not connected
+		return connection != null ? connection : delegate.getPrimaryConnection(apiType);
+	}
+
+	public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+		return cache.findPrimaryConnection(userId, apiType, delegate);
+	}
+
+	public void addConnection(Connection<?> connection) {
+		try {
+			delegate.addConnection(connection);
+		} finally {
+			cache.evict(userId);
+		}
+	}
+
+	public void updateConnection(Connection<?> connection) {
+		try {
+			delegate.updateConnection(connection);
+		} finally {
+			cache.evict(userId);
+		}
+	}
+
+	public void removeConnections(String providerId) {
+		try {
+			delegate.removeConnections(providerId);
+		} finally {
+			cache.evict(userId);
+		}
+	}
+
+	public void removeConnection(ConnectionKey connectionKey) {
+		try {
+			delegate.removeConnection(connectionKey);
+		} finally {
+			cache.evict(userId);
+		}
+	}
+
+}
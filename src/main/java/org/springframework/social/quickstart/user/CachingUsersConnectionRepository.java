@@ -0,0 +1,107 @@
+package org.springframework.social.quickstart.user;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UsersConnectionRepository;
+
+/**
+ * Keeps each user's primary connections in memory, so that looking up the signed-in user's Google
+ * connection on every request does not need a database query.
+ * <p>
+ * Entries are kept for a limited time, up to a maximum number after which the least recently used are
+ * removed. Adding, updating or removing any of a user's connections through this repository, including
+ * signing out, removes their entries straight away.
+ */
+public class CachingUsersConnectionRepository implements UsersConnectionRepository {
+
+	private final UsersConnectionRepository delegate;
+	private final long ttlMillis;
+	private final Map<String, CachedConnection> entries;
+
+	private static final class CachedConnection {
+
+		private final Connection<?> connection;
+		private final long expires;
+
+		CachedConnection(Connection<?> connection, long expires) {
+			this.connection = connection;
+			this.expires = expires;
+		}
+
+	}
+
+	/**
+	 * @param maxEntries Number of connections to keep, after which the least recently used are removed
+	 * @param ttlMillis How long a connection is kept before it is read from the database again
+	 */
+	public CachingUsersConnectionRepository(UsersConnectionRepository delegate, final int maxEntries, long ttlMillis) {
+		this.delegate = delegate;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<String, CachedConnection>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedConnection> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		List<String> userIds = delegate.findUserIdsWithConnection(connection);
+		// Signing in may have added the connection for a new user
+		for (String userId : userIds) {
+			evict(userId);
+		}
+		return userIds;
+	}
+
+	public Set<String> findUserIdsConnectedTo(String providerId, Set<String> providerUserIds) {
+		return delegate.findUserIdsConnectedTo(providerId, providerUserIds);
+	}
+
+	public ConnectionRepository createConnectionRepository(String userId) {
+		return new CachingConnectionRepository(userId, delegate.createConnectionRepository(userId), this);
+	}
+
+	/**
+	 * Remove all of the user's connections from the cache
+	 */
+	public void evict(String userId) {
+		String prefix = userId + "|";
+		synchronized (entries) {
+			for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+				if (it.next().startsWith(prefix)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The user's primary connection to the API, from the cache if it is there
+	 */
+	@SuppressWarnings("unchecked")
+	<A> Connection<A> findPrimaryConnection(String userId, Class<A> apiType, ConnectionRepository repository) {
+		String key = userId + "|" + apiType.getName();
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			CachedConnection entry = entries.get(key);
+			if (entry != null && entry.expires > now) {
+				return (Connection<A>) entry.connection;
+			}
+		}
+		// Users who are not connected are cached too, so that an old cookie does not cause a query on every request
+		Connection<A> connection = repository.findPrimaryConnection(apiType);
+		synchronized (entries) {
+			entries.put(key, new CachedConnection(connection, now + ttlMillis));
+		}
+		return connection;
+	}
+
+}
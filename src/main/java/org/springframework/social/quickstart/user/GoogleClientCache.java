@@ -0,0 +1,99 @@
+package org.springframework.social.quickstart.user;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.NotConnectedException;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.google.api.Google;
+
+/**
+ * Keeps a ready-to-use Google API binding for each connected Google account.
+ * <p>
+ * Building a binding creates a RestTemplate with its message converters and interceptors, which is too
+ * much to do on every request. Bindings are kept for as long as the account's access token stays the
+ * same. When the token is refreshed or expires the old binding is dropped, and a new one is built from
+ * the connection the next time it is needed.
+ */
+public class GoogleClientCache {
+
+	private final UsersConnectionRepository usersConnectionRepository;
+	private final ConcurrentMap<String, Entry> clients = new ConcurrentHashMap<String, Entry>();
+
+	private static final class Entry {
+
+		private final String accessToken;
+		private final Long expireTime;
+		private final Google google;
+
+		Entry(String accessToken, Long expireTime, Google google) {
+			this.accessToken = accessToken;
+			this.expireTime = expireTime;
+			this.google = google;
+		}
+
+		boolean isExpired(long now) {
+			return expireTime != null && expireTime <= now;
+		}
+
+	}
+
+	public GoogleClientCache(UsersConnectionRepository usersConnectionRepository) {
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	/**
+	 * @return The Google API binding for the currently signed-in user
+	 * @throws NotConnectedException if the user is not connected to Google
+	 */
+	public Google getCurrentUserClient() {
+		String userId = SecurityContext.getCurrentUser().getId();
+		Connection<Google> connection = usersConnectionRepository.createConnectionRepository(userId)
+				.findPrimaryConnection(Google.class);
+		if (connection == null) {
+			throw new NotConnectedException("google");
+		}
+		return getClient(connection);
+	}
+
+	/**
+	 * @return The Google API binding for the connection, which is shared with other requests using the same access token
+	 */
+	public Google getClient(Connection<Google> connection) {
+		ConnectionData data = connection.createData();
+		String key = data.getProviderUserId();
+		long now = System.currentTimeMillis();
+		Entry entry = clients.get(key);
+		if (entry != null && entry.accessToken.equals(data.getAccessToken()) && !entry.isExpired(now)) {
+			return entry.google;
+		}
+		Google google = connection.getApi();
+		clients.put(key, new Entry(data.getAccessToken(), data.getExpireTime(), google));
+		if (entry == null) {
+			removeExpired(now);
+		}
+		return google;
+	}
+
+	/**
+	 * Drop the binding for the Google account, for example when the user signs out
+	 */
+	public void evict(String providerUserId) {
+		clients.remove(providerUserId);
+	}
+
+	/**
+	 * Drop the bindings for accounts whose tokens have expired, so that users who do not come back are not kept
+	 */
+	private void removeExpired(long now) {
+		for (Iterator<Entry> it = clients.values().iterator(); it.hasNext();) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+
+}
@@ -16,6 +16,8 @@ public class IncludeEmailProviderSignInInterceptor implements ProviderSignInInte
 		if (login != null && !login.equals("")) {
 			parameters.add("login_hint", login);
 		}
+		// Ask for a refresh token, so that the access token can be refreshed without signing in again
+		parameters.add("access_type", "offline");
 	}
 
 	@Override
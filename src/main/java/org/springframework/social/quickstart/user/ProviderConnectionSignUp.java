@@ -0,0 +1,19 @@
+package org.springframework.social.quickstart.user;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionSignUp;
+
+/**
+ * {@link ConnectionSignUp} command that makes the userId from the provider's id for the user, such as google-1234.
+ * Every instance of the application gives a user the same userId without sharing a sequence, so several
+ * instances can sign up users into the same database.
+ */
+public final class ProviderConnectionSignUp implements ConnectionSignUp {
+
+	public String execute(Connection<?> connection) {
+		ConnectionKey key = connection.getKey();
+		return key.getProviderId() + "-" + key.getProviderUserId();
+	}
+
+}
@@ -27,7 +27,18 @@ import org.springframework.social.connect.ConnectionSignUp;
  */
 public final class SimpleConnectionSignUp implements ConnectionSignUp {
 
-	private final AtomicLong userIdSequence = new AtomicLong();
+	private final AtomicLong userIdSequence;
+
+	public SimpleConnectionSignUp() {
+		this(0);
+	}
+
+	/**
+	 * @param lastUserId The largest userId already in use, when the connections are kept across restarts
+	 */
+	public SimpleConnectionSignUp(long lastUserId) {
+		this.userIdSequence = new AtomicLong(lastUserId);
+	}
 	
 	public String execute(Connection<?> connection) {
 		return Long.toString(userIdSequence.incrementAndGet());
@@ -31,7 +31,18 @@ import org.springframework.web.context.request.NativeWebRequest;
  */
 public final class SimpleSignInAdapter implements SignInAdapter {
 
-	private final UserCookieGenerator userCookieGenerator = new UserCookieGenerator();
+	private final UserCookieGenerator userCookieGenerator;
+
+	public SimpleSignInAdapter() {
+		this(null);
+	}
+
+	/**
+	 * @param cookieSecret Secret to sign the user cookie with, or null to store the user's id as it is
+	 */
+	public SimpleSignInAdapter(String cookieSecret) {
+		this.userCookieGenerator = new UserCookieGenerator(cookieSecret);
+	}
 	
 	public String signIn(String userId, Connection<?> connection, NativeWebRequest request) {
 		SecurityContext.setCurrentUser(new User(userId));
@@ -0,0 +1,174 @@
+package org.springframework.social.quickstart.user;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.connect.support.OAuth2ConnectionFactory;
+import org.springframework.social.google.api.Google;
+import org.springframework.social.oauth2.AccessGrant;
+import org.springframework.social.quickstart.export.SingleFlight;
+
+/**
+ * Refreshes the Google access tokens of active users before they expire, so that users are not sent
+ * through the sign-in flow again in the middle of their work.
+ * <p>
+ * Users are active for a while after each request. The stored connections of active users are checked
+ * every minute, and tokens which expire within the lead time are refreshed in the background using the
+ * stored refresh token, a few at a time. A request which fails because its token has expired anyway can
+ * ask for the token to be refreshed straight away, and then be tried again.
+ */
+public class TokenRefresher {
+
+	private static final Log logger = LogFactory.getLog(TokenRefresher.class);
+
+	private static final long SCAN_INTERVAL_MILLIS = 60 * 1000;
+
+	private final UsersConnectionRepository usersConnectionRepository;
+	private final OAuth2ConnectionFactory<Google> connectionFactory;
+	private final long leadMillis;
+	private final long activeMillis;
+	private final ScheduledExecutorService scanner;
+	private final ExecutorService refreshers;
+	private final ConcurrentMap<String, Long> lastSeen = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Long> lastRefreshed = new ConcurrentHashMap<String, Long>();
+	private final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final SingleFlight<String, Boolean> refreshes = new SingleFlight<String, Boolean>();
+
+	/**
+	 * @param leadMillis How long before a token expires that it is refreshed
+	 * @param activeMillis How long after their last request a user's token is kept fresh
+	 * @param threads Number of tokens which can be refreshed in the background at the same time
+	 */
+	public TokenRefresher(UsersConnectionRepository usersConnectionRepository, OAuth2ConnectionFactory<Google> connectionFactory,
+			long leadMillis, long activeMillis, int threads) {
+		this.usersConnectionRepository = usersConnectionRepository;
+		this.connectionFactory = connectionFactory;
+		this.leadMillis = leadMillis;
+		this.activeMillis = activeMillis;
+		this.scanner = Executors.newSingleThreadScheduledExecutor(newThreadFactory("hrm-token-scan"));
+		this.refreshers = Executors.newFixedThreadPool(threads, newThreadFactory("hrm-token-refresh"));
+		scanner.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					scan();
+				} catch (Exception e) {
+					logger.warn("Could not check access tokens", e);
+				}
+			}
+		}, SCAN_INTERVAL_MILLIS, SCAN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Record that the user has made a request, so that their token is kept fresh
+	 */
+	public void touch(String userId) {
+		lastSeen.put(userId, System.currentTimeMillis());
+	}
+
+	/**
+	 * Refresh the user's token after a request failed because it had expired
+	 * @return true if the token was refreshed and the request should be tried again, or false if it has
+	 *     already been refreshed within the last scan interval or cannot be refreshed, in which case the
+	 *     user needs to sign in again
+	 */
+	public boolean refreshExpired(String userId) {
+		Long refreshed = lastRefreshed.get(userId);
+		if (refreshed != null && System.currentTimeMillis() - refreshed < SCAN_INTERVAL_MILLIS) {
+			return false;
+		}
+		return refresh(userId);
+	}
+
+	public void shutdown() {
+		scanner.shutdownNow();
+		refreshers.shutdownNow();
+	}
+
+	private void scan() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Long>> it = lastSeen.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Long> entry = it.next();
+			final String userId = entry.getKey();
+			if (now - entry.getValue() > activeMillis) {
+				it.remove();
+				lastRefreshed.remove(userId);
+				continue;
+			}
+			Connection<Google> connection = usersConnectionRepository.createConnectionRepository(userId)
+					.findPrimaryConnection(Google.class);
+			if (connection == null || !expiresSoon(connection.createData(), now) || !queued.add(userId)) {
+				continue;
+			}
+			refreshers.execute(new Runnable() {
+				public void run() {
+					try {
+						refresh(userId);
+					} finally {
+						queued.remove(userId);
+					}
+				}
+			});
+		}
+	}
+
+	private boolean expiresSoon(ConnectionData data, long now) {
+		return data.getRefreshToken() != null && data.getExpireTime() != null && data.getExpireTime() - leadMillis <= now;
+	}
+
+	/**
+	 * Refresh the user's token and store it, or wait for the refresh which is already running for the user
+	 */
+	private boolean refresh(final String userId) {
+		try {
+			return refreshes.execute(userId, new Callable<Boolean>() {
+				public Boolean call() {
+					ConnectionRepository repository = usersConnectionRepository.createConnectionRepository(userId);
+					Connection<Google> connection = repository.findPrimaryConnection(Google.class);
+					ConnectionData data = connection != null ? connection.createData() : null;
+					if (data == null || data.getRefreshToken() == null) {
+						return false;
+					}
+					// Google does not send a new refresh token, so keep the old one. The connection is shared with
+					// other requests, so a new one is stored instead of refreshing it in place.
+					AccessGrant grant = connectionFactory.getOAuthOperations().refreshAccess(data.getRefreshToken(), null);
+					String refreshToken = grant.getRefreshToken() != null ? grant.getRefreshToken() : data.getRefreshToken();
+					repository.updateConnection(connectionFactory.createConnection(new ConnectionData(data.getProviderId(),
+							data.getProviderUserId(), data.getDisplayName(), data.getProfileUrl(), data.getImageUrl(),
+							grant.getAccessToken(), data.getSecret(), refreshToken, grant.getExpireTime())));
+					lastRefreshed.put(userId, System.currentTimeMillis());
+					return true;
+				}
+			});
+		} catch (Exception e) {
+			logger.warn("Could not refresh access token for user " + userId, e);
+			return false;
+		}
+	}
+
+}
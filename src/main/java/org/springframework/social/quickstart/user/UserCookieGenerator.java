@@ -15,28 +15,48 @@
  */
 package org.springframework.social.quickstart.user;
 
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.web.util.CookieGenerator;
 
 /**
  * Utility class for managing the quick_start user cookie that remembers the signed-in user.
+ * When there is a secret the user id is signed with it, so that the cookie cannot be made up and is
+ * accepted by every instance of the application which has the same secret.
  * @author Keith Donald
  */
 final class UserCookieGenerator {
 
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
 	private final CookieGenerator userCookieGenerator = new CookieGenerator();
 	private final CookieGenerator urlHistoryCookieGenerator = new CookieGenerator();
+	private final SecretKeySpec secret;
 
 	public UserCookieGenerator() {
+		this(null);
+	}
+
+	/**
+	 * @param secret Secret to sign user ids with, or null to store them as they are
+	 */
+	public UserCookieGenerator(String secret) {
 		userCookieGenerator.setCookieName("quickstart_user");
 		urlHistoryCookieGenerator.setCookieName("quickstart_previous_url");
+		this.secret = secret != null && secret.length() > 0 ? new SecretKeySpec(Utf8.encode(secret), HMAC_ALGORITHM) : null;
 	}
 
 	public void addCookie(String userId, HttpServletResponse response) {
-		userCookieGenerator.addCookie(response, userId);
+		userCookieGenerator.addCookie(response, secret != null ? userId + "." + sign(userId) : userId);
 	}
 
 	public void addUrlHistoryCookie(String url, HttpServletResponse response) {
@@ -51,14 +71,37 @@ final class UserCookieGenerator {
 		urlHistoryCookieGenerator.addCookie(response, "");
 	}
 
+	/**
+	 * @return The user id from the cookie, or null if there is none or its signature is wrong
+	 */
 	public String readCookieValue(HttpServletRequest request) {
-		return readCookieValue(request, userCookieGenerator);
+		String value = readCookieValue(request, userCookieGenerator);
+		if (value == null || secret == null) {
+			return value;
+		}
+		int separator = value.lastIndexOf('.');
+		if (separator < 0) {
+			return null;
+		}
+		String userId = value.substring(0, separator);
+		boolean valid = MessageDigest.isEqual(Utf8.encode(sign(userId)), Utf8.encode(value.substring(separator + 1)));
+		return valid ? userId : null;
 	}
 
 	public String readUrlHistoryCookieValue(HttpServletRequest request) {
 		return readCookieValue(request, urlHistoryCookieGenerator);
 	}
 
+	private String sign(String userId) {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(secret);
+			return new String(Hex.encode(mac.doFinal(Utf8.encode(userId))));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Could not sign the user cookie", e);
+		}
+	}
+
 	private static String readCookieValue(HttpServletRequest request, CookieGenerator cg) {
 		Cookie[] cookies = request.getCookies();
 		if (cookies == null) {
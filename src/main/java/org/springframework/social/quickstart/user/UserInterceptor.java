@@ -18,6 +18,8 @@ package org.springframework.social.quickstart.user;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.UsersConnectionRepository;
 import org.springframework.social.google.api.Google;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
@@ -32,11 +34,22 @@ import org.springframework.web.servlet.view.RedirectView;
 public final class UserInterceptor extends HandlerInterceptorAdapter {
 
 	private final UsersConnectionRepository connectionRepository;
+
+	private final TokenRefresher tokenRefresher;
+
+	private final GoogleClientCache googleClientCache;
 	
-	private final UserCookieGenerator userCookieGenerator = new UserCookieGenerator();
+	private final UserCookieGenerator userCookieGenerator;
 
-	public UserInterceptor(UsersConnectionRepository connectionRepository) {
+	/**
+	 * @param cookieSecret Secret which the user cookie is signed with, or null if it is not signed
+	 */
+	public UserInterceptor(UsersConnectionRepository connectionRepository, TokenRefresher tokenRefresher,
+			GoogleClientCache googleClientCache, String cookieSecret) {
 		this.connectionRepository = connectionRepository;
+		this.tokenRefresher = tokenRefresher;
+		this.googleClientCache = googleClientCache;
+		this.userCookieGenerator = new UserCookieGenerator(cookieSecret);
 	}
 	
 	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
@@ -65,11 +78,17 @@ public final class UserInterceptor extends HandlerInterceptorAdapter {
 			return;
 		}
 		SecurityContext.setCurrentUser(new User(userId));
+		tokenRefresher.touch(userId);
 	}
 
 	private void handleSignOut(HttpServletRequest request, HttpServletResponse response) {
 		if (SecurityContext.userSignedIn() && request.getServletPath().startsWith("/signout")) {
-			connectionRepository.createConnectionRepository(SecurityContext.getCurrentUser().getId()).removeConnections("facebook");
+			ConnectionRepository userConnections = connectionRepository.createConnectionRepository(SecurityContext.getCurrentUser().getId());
+			Connection<Google> google = userConnections.findPrimaryConnection(Google.class);
+			if (google != null) {
+				googleClientCache.evict(google.getKey().getProviderUserId());
+			}
+			userConnections.removeConnections("facebook");
 			userCookieGenerator.removeCookie(response);
 			SecurityContext.remove();			
 		}
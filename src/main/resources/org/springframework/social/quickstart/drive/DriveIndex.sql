@@ -0,0 +1,15 @@
+create table DriveIndexFile (userId varchar(255) not null,
+	id varchar(255) not null,
+	title varchar(1024),
+	titleLower varchar(1024),
+	hrmType varchar(32),
+	hrmRegion varchar(32),
+	hrmVersion double precision,
+	modified timestamp,
+	starred boolean not null,
+	trashed boolean not null,
+	viewed boolean not null,
+	primary key (userId, id));
+create index DriveIndexFileType on DriveIndexFile(userId, hrmType, trashed, modified);
+create table DriveIndexState (userId varchar(255) not null primary key,
+	nextChangeId bigint not null);
@@ -0,0 +1,8 @@
+create table TemplatePoolFolder (userId varchar(255) not null primary key,
+	folderId varchar(255) not null);
+create table TemplatePoolFile (userId varchar(255) not null,
+	hrmType varchar(32) not null,
+	fileId varchar(255) not null,
+	created timestamp not null,
+	primary key (userId, fileId));
+create index TemplatePoolFileType on TemplatePoolFile(userId, hrmType, created);
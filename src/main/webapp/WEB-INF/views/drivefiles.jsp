@@ -45,8 +45,16 @@
 			</c:if>
 			
 			<c:if test="${not empty files.items}">
+				<div class="batch-actions hide">
+					<span class="selected-count"><!--  --></span><![CDATA[&nbsp;]]>
+					<a href="javascript:void(0)" class="btn btn-small" data-action="star">Star</a>
+					<a href="javascript:void(0)" class="btn btn-small" data-action="unstar">Unstar</a>
+					<a href="javascript:void(0)" class="btn btn-small" data-action="trash">Trash</a>
+					<a href="javascript:void(0)" class="btn btn-small btn-danger" data-action="delete">Delete</a>
+				</div>
 				<table class="table table-hover">
 					<thead>
+						<th width="16"><input type="checkbox" class="select-all" title="Select all"/></th>
 						<th></th>
 						<th colspan="2">File Name</th>
 						<th></th>
@@ -57,6 +65,7 @@
 					<tbody>
 						<c:forEach items="${files.items}" var="file">
 							<tr file-id="${file.id}" file-name="${file.title}">
+								<td width="16"><input type="checkbox" class="select-file"/></td>
 								<td width="16">
 									<a href="javascript:void(0)" class="star ui-silk ${file.starred ? '' : 'gray'} ui-silk-star" title="${file.starred ? 'Unstar' : 'Star'}"><!--  --></a>
 								</td>
@@ -1,3 +1,8 @@
+// Escape text so that it can be included in an HTML message
+function escapeHtml(text) {
+	return $('<div/>').text(text).html();
+}
+
 function getIcon(mimeType) {
 	switch(mimeType) {
 	case 'application/vnd.google-apps.document':
@@ -87,6 +92,97 @@ $(function() {
 		});
 	});
 	
+	$('.export').click(function(e) {
+		var link = $(e.target),
+			row = link.parents('tr'),
+			fileId = row.attr('file-id'),
+			fileName = row.attr('file-name'),
+			title = link.attr('title');
+		if (link.hasClass('exporting')) {
+			return false;
+		}
+		link.addClass('exporting');
+		// Run the export in the background and poll until it is ready, falling back to a direct download
+		$.post('exportjob', {fileId: fileId}, function(job) {
+			var poll = function(job) {
+				if (job.stage == 'DONE') {
+					link.removeClass('exporting').attr('title', title);
+					window.location = 'downloadexport/' + encodeURIComponent(fileName) + '.xlsx?jobId=' + job.id;
+				} else if (job.stage == 'FAILED') {
+					link.removeClass('exporting').attr('title', title);
+					bootbox.alert('Export of "' + escapeHtml(fileName) + '" failed: ' + escapeHtml(job.error));
+				} else {
+					link.attr('title', job.stage.charAt(0) + job.stage.substring(1).toLowerCase() +
+						(job.progress > 0 ? ' (' + job.progress + '%)' : '') + '...');
+					setTimeout(function() {
+						$.getJSON('exportstatus', {jobId: job.id}, poll).fail(function() {
+							// The job may have expired or be kept by another instance, so download the file directly
+							link.removeClass('exporting').attr('title', title);
+							window.open(link.attr('href'), '_blank');
+						});
+					}, 1000);
+				}
+			};
+			poll(job);
+		}, 'json').fail(function() {
+			link.removeClass('exporting');
+			window.open(link.attr('href'), '_blank');
+		});
+		return false;
+	});
+	
+	var updateSelection = function() {
+		var count = $('.select-file:checked').length;
+		$('.batch-actions').toggleClass('hide', count == 0);
+		$('.batch-actions .selected-count').text(count + (count == 1 ? ' file' : ' files') + ' selected');
+		$('.select-all').prop('checked', count > 0 && count == $('.select-file').length);
+	};
+	
+	$('.select-all').change(function(e) {
+		$('.select-file').prop('checked', $(e.target).prop('checked'));
+		updateSelection();
+	});
+	
+	$('.select-file').change(updateSelection);
+	
+	$('.batch-actions a').click(function(e) {
+		var action = $(e.target).attr('data-action'),
+			rows = $('.select-file:checked').parents('tr'),
+			fileIds = rows.map(function() { return $(this).attr('file-id'); }).get();
+		var run = function() {
+			// Send all of the selected files in one request, which reports the outcome for each file
+			$.ajax({type: 'POST', url: 'batchfiles', data: {fileId: fileIds, action: action}, traditional: true, dataType: 'json'}).done(function(results) {
+				var failed = [];
+				$.each(results, function(i, result) {
+					var row = rows.filter('[file-id="' + result.id + '"]');
+					if (!result.success) {
+						failed.push(escapeHtml(row.attr('file-name')) + ': ' + escapeHtml(result.error));
+					} else if (action == 'trash' || action == 'delete') {
+						row.remove();
+					} else {
+						row.find('.star').toggleClass('gray', action == 'unstar').attr('title', action == 'star' ? 'Unstar' : 'Star');
+						row.find('.select-file').prop('checked', false);
+					}
+				});
+				updateSelection();
+				if (failed.length > 0) {
+					bootbox.alert('Some files could not be changed:<br/>' + failed.join('<br/>'));
+				}
+			}).fail(function(xhr) {
+				bootbox.alert('The files could not be changed: ' + escapeHtml(xhr.statusText));
+			});
+		};
+		if (action == 'delete') {
+			bootbox.confirm('This will permanently delete ' + fileIds.length + (fileIds.length == 1 ? ' file' : ' files'), function(result) {
+				if(result) {
+					run();
+				}
+			});
+		} else {
+			run();
+		}
+	});
+	
 	$('.delete').click(function(e) {
 		var row = $(e.target).parents('tr');
 		var fileId = row.attr('file-id');